@@ -0,0 +1,55 @@
+package org.apache.minibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+public final class BenchmarkUtils {
+
+  private BenchmarkUtils() {
+  }
+
+  public static String createDataDir(String prefix) throws IOException {
+    return Files.createTempDirectory("minibase-" + prefix + "-").toString();
+  }
+
+  public static void deleteDataDir(String dataDir) {
+    if (dataDir == null) {
+      return;
+    }
+    File[] files = new File(dataDir).listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    new File(dataDir).delete();
+  }
+
+  public static byte[] randomBytes(Random random, int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * The keys are big endian longs, so they sort in the numeric order.
+   */
+  public static byte[] key(long i) {
+    return Bytes.toBytes(i);
+  }
+
+  /**
+   * Put the keys 0, step, 2 * step, ... with the random values.
+   */
+  public static void load(MiniBase db, int count, int step, int valueSize) throws IOException {
+    Random random = new Random(0);
+    for (int i = 0; i < count; i++) {
+      db.put(key((long) i * step), randomBytes(random, valueSize));
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package org.apache.minibase;
+
+import org.apache.minibase.DiskFile.BlockReader;
+import org.apache.minibase.DiskFile.BlockWriter;
+import org.apache.minibase.MiniBase.Iter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link BlockWriter#serialize(Compression)} and {@link BlockReader#parseFrom(ByteBuffer,
+ * Compression, BlockEncoding)} for a block of about blockSize bytes, in each compression and
+ * encoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BlockBenchmark {
+
+  @Param({"65536"})
+  private int blockSize;
+
+  @Param({"100"})
+  private int valueSize;
+
+  @Param({"NONE", "LZ4", "ZLIB"})
+  private Compression compression;
+
+  @Param({"NONE", "PREFIX"})
+  private BlockEncoding encoding;
+
+  private List<KeyValue> kvs;
+  private byte[] serialized;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    kvs = new ArrayList<>();
+    BlockWriter writer = new BlockWriter(encoding);
+    // Values of a few distinct bytes, so that they're compressible like the real data.
+    Random random = new Random(0);
+    for (int i = 0; writer.size() < blockSize; i++) {
+      byte[] value = new byte[valueSize];
+      for (int j = 0; j < valueSize; j++) {
+        value[j] = (byte) ('a' + random.nextInt(4));
+      }
+      KeyValue kv = KeyValue.createPut(Bytes.toBytes(String.format("user/row-%010d", i)),
+        value, i);
+      kvs.add(kv);
+      writer.append(kv);
+    }
+    serialized = writer.serialize(compression);
+  }
+
+  @Benchmark
+  public byte[] serialize() throws IOException {
+    BlockWriter writer = new BlockWriter(encoding);
+    for (KeyValue kv : kvs) {
+      writer.append(kv);
+    }
+    return writer.serialize(compression);
+  }
+
+  @Benchmark
+  public BlockReader parseFrom() throws IOException {
+    return BlockReader.parseFrom(ByteBuffer.wrap(serialized), compression, encoding);
+  }
+
+  @Benchmark
+  public void parseAndIterate(Blackhole bh) throws IOException {
+    BlockReader reader = BlockReader.parseFrom(ByteBuffer.wrap(serialized), compression, encoding);
+    for (Iter<KeyValue> it = reader.iterator(); it.hasNext(); ) {
+      bh.consume(it.next());
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.apache.minibase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of generating a {@link BloomFilter} over keyCount keys, and of checking a present or an
+ * absent key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BloomFilterBenchmark {
+
+  @Param({"1000", "100000"})
+  private int keyCount;
+
+  private byte[][] keys;
+  private byte[][] absentKeys;
+  private BloomFilter filter;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    keys = new byte[keyCount][];
+    absentKeys = new byte[keyCount][];
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = BenchmarkUtils.key(i * 2);
+      absentKeys[i] = BenchmarkUtils.key(i * 2 + 1);
+    }
+    byte[] bits = new BloomFilter(DiskFile.BLOOM_FILTER_HASH_COUNT,
+        DiskFile.BLOOM_FILTER_BITS_PER_KEY).generate(keys);
+    filter = new BloomFilter(DiskFile.BLOOM_FILTER_HASH_COUNT, bits);
+  }
+
+  @Benchmark
+  public byte[] generate() {
+    return new BloomFilter(DiskFile.BLOOM_FILTER_HASH_COUNT, DiskFile.BLOOM_FILTER_BITS_PER_KEY)
+        .generate(keys);
+  }
+
+  @Benchmark
+  public boolean containsPresent() {
+    return filter.contains(keys[ThreadLocalRandom.current().nextInt(keyCount)]);
+  }
+
+  @Benchmark
+  public boolean containsAbsent() {
+    return filter.contains(absentKeys[ThreadLocalRandom.current().nextInt(keyCount)]);
+  }
+}
@@ -0,0 +1,96 @@
+package org.apache.minibase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of comparing two keys of keyLength bytes, which share a common prefix of commonPrefix
+ * bytes. The byte-at-a-time loop is kept here as the baseline of {@link Bytes#compare}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BytesCompareBenchmark {
+
+  @Param({"8", "16", "32", "64", "256"})
+  private int keyLength;
+
+  // 0 means the keys differ at the first byte, -1 means they differ only at the last byte.
+  @Param({"0", "-1"})
+  private int commonPrefix;
+
+  private byte[] a;
+  private byte[] b;
+  private KeyValue kvA;
+  private KeyValue kvB;
+  private KeyValue directA;
+  private KeyValue directB;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int diffAt = commonPrefix < 0 ? keyLength - 1 : commonPrefix;
+    a = new byte[keyLength];
+    b = new byte[keyLength];
+    for (int i = 0; i < keyLength; i++) {
+      a[i] = b[i] = (byte) ('a' + i % 26);
+    }
+    b[diffAt]++;
+    kvA = KeyValue.createPut(a, Bytes.EMPTY_BYTES, 1L);
+    kvB = KeyValue.createPut(b, Bytes.EMPTY_BYTES, 1L);
+    directA = directView(a);
+    directB = directView(b);
+  }
+
+  private static KeyValue directView(byte[] key) {
+    ByteBuffer buf = ByteBuffer.allocateDirect(key.length);
+    buf.put(key);
+    return KeyValue.createView(buf, 0, key.length, 0, 0, KeyValue.Op.Put, 1L);
+  }
+
+  private static int byteAtATime(byte[] a, byte[] b) {
+    for (int i = 0; i < a.length && i < b.length; i++) {
+      int x = a[i] & 0xFF;
+      int y = b[i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  @Benchmark
+  public int baseline() {
+    return byteAtATime(a, b);
+  }
+
+  @Benchmark
+  public int bytesCompare() {
+    return Bytes.compare(a, b);
+  }
+
+  @Benchmark
+  public int keyValueCompare() {
+    return kvA.compareTo(kvB);
+  }
+
+  @Benchmark
+  public int directViewCompare() {
+    return directA.compareTo(directB);
+  }
+}
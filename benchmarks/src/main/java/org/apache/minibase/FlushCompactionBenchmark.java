@@ -0,0 +1,92 @@
+package org.apache.minibase;
+
+import org.apache.minibase.DiskStore.DefaultCompactor;
+import org.apache.minibase.DiskStore.DefaultFlusher;
+import org.apache.minibase.MemStore.IteratorWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to flush a memstore of keyCount key values into a disk file, and to compact fileCount disk
+ * files of keyCount key values each, whose keys overlap with each other.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FlushCompactionBenchmark {
+
+  @Param({"100000"})
+  private int keyCount;
+
+  @Param({"100"})
+  private int valueSize;
+
+  @Param({"4"})
+  private int fileCount;
+
+  @Param({"NONE", "LZ4"})
+  private Compression compression;
+
+  private String dataDir;
+  private DiskStore diskStore;
+  private ConcurrentSkipListMap<KeyValue, KeyValue> memstore;
+
+  private ConcurrentSkipListMap<KeyValue, KeyValue> createMemstore(Random random, long seqBase) {
+    ConcurrentSkipListMap<KeyValue, KeyValue> map = new ConcurrentSkipListMap<>();
+    for (int i = 0; i < keyCount; i++) {
+      KeyValue kv = KeyValue.createPut(BenchmarkUtils.key(random.nextInt(keyCount * fileCount)),
+        BenchmarkUtils.randomBytes(random, valueSize), seqBase + i);
+      map.put(kv, kv);
+    }
+    return map;
+  }
+
+  @Setup(Level.Invocation)
+  public void setUp() throws IOException {
+    dataDir = BenchmarkUtils.createDataDir("flush");
+    // No block cache, every benchmark reads and writes the disk.
+    diskStore = new DiskStore(new Config().setDataDir(dataDir).setCompression(compression), null);
+    diskStore.open();
+    Random random = new Random(0);
+    DefaultFlusher flusher = new DefaultFlusher(diskStore);
+    for (int i = 0; i < fileCount; i++) {
+      flusher.flush(new IteratorWrapper(createMemstore(random, (long) i * keyCount)));
+    }
+    memstore = createMemstore(random, (long) fileCount * keyCount);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDown() throws IOException {
+    diskStore.close();
+    BenchmarkUtils.deleteDataDir(dataDir);
+  }
+
+  @Benchmark
+  public void flush() throws IOException {
+    new DefaultFlusher(diskStore).flush(new IteratorWrapper(memstore));
+  }
+
+  @Benchmark
+  public void compact() throws IOException {
+    new DefaultCompactor(diskStore).compact();
+  }
+}
@@ -0,0 +1,82 @@
+package org.apache.minibase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link MStore#get(byte[])} for the existing keys and the missing keys. Only the even
+ * keys are loaded, so the missing keys fall into the key range of the disk files and have to be
+ * filtered by the bloom filters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GetBenchmark {
+
+  @Param({"1000000"})
+  private int keyCount;
+
+  @Param({"100"})
+  private int valueSize;
+
+  /**
+   * The max memstore size, a small one keeps most of the key values in the disk files.
+   */
+  @Param({"262144", "268435456"})
+  private long maxMemstoreSize;
+
+  private String dataDir;
+  private MiniBase db;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    dataDir = BenchmarkUtils.createDataDir("get");
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(maxMemstoreSize)
+        .setWalSyncMode(WAL.SyncMode.NONE);
+    db = MStore.create(conf).open();
+    BenchmarkUtils.load(db, keyCount, 2, valueSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    db.close();
+    BenchmarkUtils.deleteDataDir(dataDir);
+  }
+
+  @Benchmark
+  public KeyValue getHit() throws IOException {
+    long i = ThreadLocalRandom.current().nextInt(keyCount);
+    return db.get(BenchmarkUtils.key(i * 2));
+  }
+
+  @Benchmark
+  public KeyValue getMiss() throws IOException {
+    long i = ThreadLocalRandom.current().nextInt(keyCount);
+    return db.get(BenchmarkUtils.key(i * 2 + 1));
+  }
+
+  @Benchmark
+  @Threads(8)
+  public KeyValue getHitConcurrently() throws IOException {
+    return getHit();
+  }
+}
@@ -0,0 +1,67 @@
+package org.apache.minibase;
+
+import org.apache.minibase.DiskStore.MultiIter;
+import org.apache.minibase.MemStore.IteratorWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to merge keyCount key values spread over width sorted inputs with {@link MultiIter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MultiIterBenchmark {
+
+  @Param({"100000"})
+  private int keyCount;
+
+  @Param({"2", "8", "32"})
+  private int width;
+
+  private ConcurrentSkipListMap<KeyValue, KeyValue>[] inputs;
+
+  @SuppressWarnings("unchecked")
+  @Setup(Level.Trial)
+  public void setUp() {
+    inputs = new ConcurrentSkipListMap[width];
+    for (int i = 0; i < width; i++) {
+      inputs[i] = new ConcurrentSkipListMap<>();
+    }
+    // Interleave the keys, so the merge switches between the inputs all the time.
+    for (int i = 0; i < keyCount; i++) {
+      KeyValue kv = KeyValue.createPut(BenchmarkUtils.key(i), BenchmarkUtils.key(i), i);
+      inputs[i % width].put(kv, kv);
+    }
+  }
+
+  @Benchmark
+  public void merge(Blackhole bh) throws IOException {
+    IteratorWrapper[] iters = new IteratorWrapper[width];
+    for (int i = 0; i < width; i++) {
+      iters[i] = new IteratorWrapper(inputs[i]);
+    }
+    MultiIter it = new MultiIter(iters);
+    while (it.hasNext()) {
+      bh.consume(it.next());
+    }
+  }
+}
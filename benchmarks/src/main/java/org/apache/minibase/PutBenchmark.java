@@ -0,0 +1,83 @@
+package org.apache.minibase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of {@link MStore#put(byte[], byte[])}, with sequential or random keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PutBenchmark {
+
+  public enum KeyOrder {
+    SEQUENTIAL, RANDOM
+  }
+
+  @Param({"16", "128", "1024"})
+  private int valueSize;
+
+  @Param({"SEQUENTIAL", "RANDOM"})
+  private KeyOrder keyOrder;
+
+  @Param({"NONE", "SYNC"})
+  private WAL.SyncMode walSyncMode;
+
+  private String dataDir;
+  private MiniBase db;
+  private byte[] value;
+  private final AtomicLong sequence = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dataDir = BenchmarkUtils.createDataDir("put");
+    db = MStore.create(new Config().setDataDir(dataDir).setWalSyncMode(walSyncMode)).open();
+    value = BenchmarkUtils.randomBytes(new Random(0), valueSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    db.close();
+    BenchmarkUtils.deleteDataDir(dataDir);
+  }
+
+  private byte[] nextKey() {
+    if (keyOrder == KeyOrder.SEQUENTIAL) {
+      return BenchmarkUtils.key(sequence.getAndIncrement());
+    }
+    return BenchmarkUtils.key(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+  }
+
+  @Benchmark
+  public void put() throws IOException {
+    db.put(nextKey(), value);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public void putConcurrently() throws IOException {
+    db.put(nextKey(), value);
+  }
+}
@@ -0,0 +1,71 @@
+package org.apache.minibase;
+
+import org.apache.minibase.MiniBase.Iter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link MStore#scan(byte[], byte[])} over a range of rangeLength keys from a random
+ * start key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+  @Param({"1000000"})
+  private int keyCount;
+
+  @Param({"100"})
+  private int valueSize;
+
+  @Param({"10", "1000"})
+  private int rangeLength;
+
+  private String dataDir;
+  private MiniBase db;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    dataDir = BenchmarkUtils.createDataDir("scan");
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1024 * 1024)
+        .setWalSyncMode(WAL.SyncMode.NONE);
+    db = MStore.create(conf).open();
+    BenchmarkUtils.load(db, keyCount, 1, valueSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    db.close();
+    BenchmarkUtils.deleteDataDir(dataDir);
+  }
+
+  @Benchmark
+  public void scan(Blackhole bh) throws IOException {
+    long start = ThreadLocalRandom.current().nextInt(keyCount - rangeLength);
+    Iter<KeyValue> it =
+        db.scan(BenchmarkUtils.key(start), BenchmarkUtils.key(start + rangeLength));
+    while (it.hasNext()) {
+      bh.consume(it.next());
+    }
+  }
+}
@@ -0,0 +1,296 @@
+package org.apache.minibase;
+
+import org.apache.log4j.Logger;
+import org.apache.minibase.MiniBase.Iter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The non-blocking facade of a {@link MiniBase}: the requests run on a dedicated pool of I/O
+ * threads, so the callers are never blocked by the disk reads, the WAL syncs or the write stalls.
+ * <p>
+ * The pool has a bounded queue, a request submitted when the queue is full fails with
+ * {@link RejectedExecutionException} right away, instead of piling up without limit.
+ * <p>
+ * The scans are published with demand, in the same protocol as java.util.concurrent.Flow, which
+ * is not available in Java 8. The callbacks of a subscriber run on the I/O threads, so they should
+ * not block.
+ */
+public class AsyncMiniBase implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(AsyncMiniBase.class);
+
+  // The max count of the key values a scan emits per task, then it yields the thread to the other
+  // requests and continues in a new task.
+  static final int SCAN_BATCH_SIZE = 256;
+
+  public interface Publisher<T> {
+    void subscribe(Subscriber<? super T> subscriber);
+  }
+
+  public interface Subscriber<T> {
+    void onSubscribe(Subscription subscription);
+
+    void onNext(T item);
+
+    void onError(Throwable throwable);
+
+    void onComplete();
+  }
+
+  public interface Subscription {
+    /**
+     * Add n to the count of the items the subscriber can take, n must be positive.
+     */
+    void request(long n);
+
+    /**
+     * Stop the publishing, the resources are released and no more item is emitted soon.
+     */
+    void cancel();
+  }
+
+  private final MiniBase db;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * The db is not closed with this facade, it may still be used synchronously.
+   */
+  public AsyncMiniBase(MiniBase db, Config conf) {
+    this.db = db;
+    AtomicInteger threadId = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(conf.getAsyncIoThreads(), conf.getAsyncIoThreads(), 0,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(conf.getAsyncQueueSize()), r -> {
+          Thread t = new Thread(r, "AsyncIO-" + threadId.getAndIncrement());
+          t.setDaemon(true);
+          return t;
+        });
+  }
+
+  private interface IOCallable<T> {
+    T call() throws IOException;
+  }
+
+  private <T> CompletableFuture<T> submit(IOCallable<T> task) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        try {
+          future.complete(task.call());
+        } catch (Throwable e) {
+          future.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+    return submit(() -> {
+      db.put(key, value);
+      return null;
+    });
+  }
+
+  public CompletableFuture<Void> deleteAsync(byte[] key) {
+    return submit(() -> {
+      db.delete(key);
+      return null;
+    });
+  }
+
+  public CompletableFuture<Void> writeAsync(WriteBatch batch) {
+    return submit(() -> {
+      db.write(batch);
+      return null;
+    });
+  }
+
+  /**
+   * @return the future of the key value, or null if the key is not found.
+   */
+  public CompletableFuture<KeyValue> getAsync(byte[] key) {
+    return getAsync(key, null);
+  }
+
+  public CompletableFuture<KeyValue> getAsync(byte[] key, Snapshot snapshot) {
+    return submit(() -> db.get(key, snapshot));
+  }
+
+  /**
+   * @return the future of the key values in the same order as the keys, null for the keys not
+   * found.
+   */
+  public CompletableFuture<List<KeyValue>> multiGetAsync(List<byte[]> keys) {
+    return multiGetAsync(keys, null);
+  }
+
+  public CompletableFuture<List<KeyValue>> multiGetAsync(List<byte[]> keys, Snapshot snapshot) {
+    return submit(() -> db.multiGet(keys, snapshot));
+  }
+
+  public Publisher<KeyValue> scanAsync(byte[] startKey, byte[] stopKey) {
+    return scanAsync(startKey, stopKey, null);
+  }
+
+  /**
+   * Scan the range [startKey, stopKey) like {@link MiniBase#scan(byte[], byte[], Snapshot)}. The
+   * scan is opened when the first item is requested, and each subscriber gets its own scan.
+   */
+  public Publisher<KeyValue> scanAsync(byte[] startKey, byte[] stopKey, Snapshot snapshot) {
+    return subscriber -> {
+      ScanSubscription subscription = new ScanSubscription(subscriber, startKey, stopKey,
+          snapshot);
+      subscriber.onSubscribe(subscription);
+    };
+  }
+
+  /**
+   * Stop accepting the requests, the submitted ones still run to the end.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  /**
+   * Emits the key values of a scan on the I/O threads. The scan is only touched by one task at a
+   * time: whoever changes the demand or cancels increments wip, and schedules a drain task only if
+   * wip was 0, then the running task loops until it has seen all the changes.
+   */
+  private class ScanSubscription implements Subscription {
+
+    private final Subscriber<? super KeyValue> subscriber;
+    private final byte[] startKey;
+    private final byte[] stopKey;
+    private final Snapshot snapshot;
+
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private volatile Throwable pendingError;
+    // Only accessed by the drain task.
+    private Iter<KeyValue> it;
+    private boolean done = false;
+
+    ScanSubscription(Subscriber<? super KeyValue> subscriber, byte[] startKey, byte[] stopKey,
+        Snapshot snapshot) {
+      this.subscriber = subscriber;
+      this.startKey = startKey;
+      this.stopKey = stopKey;
+      this.snapshot = snapshot;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        pendingError = new IllegalArgumentException("Non-positive request: " + n);
+        cancelled.set(true);
+      } else {
+        demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+      }
+      schedule();
+    }
+
+    @Override
+    public void cancel() {
+      if (cancelled.compareAndSet(false, true)) {
+        schedule();
+      }
+    }
+
+    private void schedule() {
+      if (wip.getAndIncrement() == 0) {
+        execute();
+      }
+    }
+
+    private void execute() {
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        // Still holding wip, so it's safe to touch the scan here.
+        terminate(e);
+      }
+    }
+
+    private void drain() {
+      int missed = 1;
+      while (!done) {
+        try {
+          if (cancelled.get()) {
+            terminate(pendingError);
+            return;
+          }
+          if (it == null) {
+            it = db.scan(startKey, stopKey, snapshot);
+          }
+          int emitted = 0;
+          while (true) {
+            if (!it.hasNext()) {
+              terminate(null);
+              return;
+            }
+            if (demand.get() == 0 || cancelled.get()) {
+              break;
+            }
+            if (emitted == SCAN_BATCH_SIZE) {
+              // Continue in a new task with wip held, so no other task can be scheduled.
+              execute();
+              return;
+            }
+            KeyValue kv = it.next();
+            if (demand.get() != Long.MAX_VALUE) {
+              demand.decrementAndGet();
+            }
+            subscriber.onNext(kv);
+            emitted++;
+          }
+        } catch (Throwable e) {
+          terminate(e);
+          return;
+        }
+        missed = wip.addAndGet(-missed);
+        if (missed == 0) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Release the scan, then complete the subscriber if the error is null, otherwise fail it. The
+     * subscriber is not signaled if cancelled without an error.
+     */
+    private void terminate(Throwable error) {
+      if (done) {
+        return;
+      }
+      done = true;
+      if (it != null) {
+        try {
+          it.close();
+        } catch (IOException e) {
+          LOG.error("Failed to close the scan: ", e);
+        }
+        it = null;
+      }
+      if (error != null) {
+        subscriber.onError(error);
+      } else if (!cancelled.get()) {
+        subscriber.onComplete();
+      }
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package org.apache.minibase;
+
+import org.apache.minibase.DiskFile.BlockReader;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size-bounded cache of the parsed data blocks shared by all the disk files, the blocks are
+ * keyed by (file name, block offset).
+ * <p>
+ * The cache is split into segments by the hash of the key, each one has its own lock and an
+ * equal share of the capacity, which is never less than the max block size if the capacity allows,
+ * so that any block can be cached. Each segment is a segmented LRU: a new block goes into the
+ * probation part, and only a block hit again will be promoted into the protected part. So a large
+ * scan which touches every block once can only evict blocks from the probation part, the hot
+ * blocks in the protected part survive.
+ */
+public class BlockCache {
+
+  private static final int MAX_SEGMENT_COUNT = 16;
+  // The percentage of the segment capacity used by the protected part.
+  private static final int PROTECTED_PERCENT = 80;
+
+  private final long capacity;
+  private final Segment[] segments;
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+
+  public BlockCache(long capacity) {
+    this(capacity, getSegmentCount(capacity));
+  }
+
+  private static int getSegmentCount(long capacity) {
+    long count = capacity / DiskFile.BLOCK_SIZE_UP_LIMIT;
+    return (int) Math.max(1, Math.min(MAX_SEGMENT_COUNT, count));
+  }
+
+  public BlockCache(long capacity, int segmentCount) {
+    assert segmentCount > 0;
+    this.capacity = capacity;
+    this.segments = new Segment[segmentCount];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(capacity / segmentCount);
+    }
+  }
+
+  private static class BlockCacheKey {
+    private final String fileName;
+    private final long offset;
+
+    BlockCacheKey(String fileName, long offset) {
+      this.fileName = fileName;
+      this.offset = offset;
+    }
+
+    @Override
+    public int hashCode() {
+      return fileName.hashCode() * 31 + Long.hashCode(offset);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof BlockCacheKey)) return false;
+      BlockCacheKey that = (BlockCacheKey) o;
+      return this.offset == that.offset && this.fileName.equals(that.fileName);
+    }
+  }
+
+  private static class CachedBlock {
+    private final BlockReader block;
+    private final long size;
+
+    CachedBlock(BlockReader block, long size) {
+      this.block = block;
+      this.size = size;
+    }
+  }
+
+  private Segment segmentFor(BlockCacheKey key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[(h & 0x7FFFFFFF) % segments.length];
+  }
+
+  /**
+   * @return the cached block, or null if the block is not in the cache.
+   */
+  public BlockReader getBlock(String fileName, long offset) {
+    BlockCacheKey key = new BlockCacheKey(fileName, offset);
+    CachedBlock cached = segmentFor(key).get(key);
+    if (cached == null) {
+      missCount.increment();
+      return null;
+    }
+    hitCount.increment();
+    return cached.block;
+  }
+
+  /**
+   * Cache the block, the size is the bytes charged against the capacity of the cache.
+   */
+  public void cacheBlock(String fileName, long offset, BlockReader block, long size) {
+    BlockCacheKey key = new BlockCacheKey(fileName, offset);
+    segmentFor(key).put(key, new CachedBlock(block, size));
+  }
+
+  /**
+   * Evict all the blocks of the given file, used when the file is going to be removed.
+   */
+  public void evictBlocksByFile(String fileName) {
+    for (Segment segment : segments) {
+      segment.evictByFile(fileName);
+    }
+  }
+
+  public long getCapacity() {
+    return this.capacity;
+  }
+
+  public long getSize() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.getSize();
+    }
+    return size;
+  }
+
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  private class Segment {
+    private final long capacity;
+    private final long protectedCapacity;
+    // Both are in access order, the eldest entry is the least recently used one.
+    private final LinkedHashMap<BlockCacheKey, CachedBlock> probation =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<BlockCacheKey, CachedBlock> protect =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private long probationSize = 0;
+    private long protectedSize = 0;
+
+    Segment(long capacity) {
+      this.capacity = capacity;
+      this.protectedCapacity = capacity * PROTECTED_PERCENT / 100;
+    }
+
+    synchronized CachedBlock get(BlockCacheKey key) {
+      CachedBlock cached = protect.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      cached = probation.remove(key);
+      if (cached == null) {
+        return null;
+      }
+      // Hit in the probation part, promote it into the protected part.
+      probationSize -= cached.size;
+      protect.put(key, cached);
+      protectedSize += cached.size;
+      // Demote the least recently used blocks of the protected part back to the probation part.
+      Iterator<Map.Entry<BlockCacheKey, CachedBlock>> it = protect.entrySet().iterator();
+      while (protectedSize > protectedCapacity && it.hasNext()) {
+        Map.Entry<BlockCacheKey, CachedBlock> eldest = it.next();
+        if (eldest.getKey() == key) {
+          break;
+        }
+        it.remove();
+        protectedSize -= eldest.getValue().size;
+        probation.put(eldest.getKey(), eldest.getValue());
+        probationSize += eldest.getValue().size;
+      }
+      evictIfNeeded();
+      return cached;
+    }
+
+    synchronized void put(BlockCacheKey key, CachedBlock cached) {
+      if (cached.size > capacity || protect.containsKey(key)) {
+        return;
+      }
+      CachedBlock prev = probation.put(key, cached);
+      if (prev != null) {
+        probationSize -= prev.size;
+      }
+      probationSize += cached.size;
+      evictIfNeeded();
+    }
+
+    private void evictIfNeeded() {
+      evictFrom(probation, true);
+      evictFrom(protect, false);
+    }
+
+    private void evictFrom(LinkedHashMap<BlockCacheKey, CachedBlock> map, boolean isProbation) {
+      Iterator<CachedBlock> it = map.values().iterator();
+      while (probationSize + protectedSize > capacity && it.hasNext()) {
+        CachedBlock eldest = it.next();
+        it.remove();
+        if (isProbation) {
+          probationSize -= eldest.size;
+        } else {
+          protectedSize -= eldest.size;
+        }
+        evictionCount.increment();
+      }
+    }
+
+    synchronized void evictByFile(String fileName) {
+      Iterator<Map.Entry<BlockCacheKey, CachedBlock>> it = probation.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<BlockCacheKey, CachedBlock> entry = it.next();
+        if (entry.getKey().fileName.equals(fileName)) {
+          it.remove();
+          probationSize -= entry.getValue().size;
+        }
+      }
+      it = protect.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<BlockCacheKey, CachedBlock> entry = it.next();
+        if (entry.getKey().fileName.equals(fileName)) {
+          it.remove();
+          protectedSize -= entry.getValue().size;
+        }
+      }
+    }
+
+    synchronized long getSize() {
+      return probationSize + protectedSize;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package org.apache.minibase;
+
+/**
+ * How the key values are encoded inside a data block.
+ */
+public enum BlockEncoding {
+
+  // Every key value is stored with its full key, see KeyValue#toBytes.
+  NONE((byte) 0),
+
+  // Each key is stored as (shared prefix length with the previous key, suffix). The key of a
+  // restart point is stored in full, so a reader can start decoding from it without the previous
+  // keys.
+  PREFIX((byte) 1);
+
+  // The number of key values between two restart points of a block.
+  public static final int RESTART_INTERVAL = 16;
+
+  private final byte code;
+
+  BlockEncoding(byte code) {
+    this.code = code;
+  }
+
+  public byte getCode() {
+    return this.code;
+  }
+
+  public static BlockEncoding code2Encoding(byte code) {
+    for (BlockEncoding encoding : values()) {
+      if (encoding.code == code) {
+        return encoding;
+      }
+    }
+    throw new IllegalArgumentException("Unknown block encoding code: " + code);
+  }
+}
@@ -11,6 +11,17 @@ public class BloomFilter {
     this.bitsPerKey = bitsPerKey;
   }
 
+  /**
+   * Construct the bloom filter from the bytes generated by {@link #generate(byte[][])}, which can
+   * only be used to check {@link #contains(byte[])}.
+   */
+  public BloomFilter(int k, byte[] result) {
+    assert result != null && result.length > 0;
+    this.k = k;
+    this.result = result;
+    this.bitLen = result.length << 3;
+  }
+
   public byte[] generate(byte[][] keys) {
     assert keys != null;
     bitLen = keys.length * bitsPerKey;
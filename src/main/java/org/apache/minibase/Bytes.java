@@ -1,12 +1,60 @@
 package org.apache.minibase;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class Bytes {
 
   public final static byte[] EMPTY_BYTES = new byte[0];
   public final static String HEX_TMP = "0123456789ABCDEF";
 
+  private static final int LONG_BYTES = 8;
+
+  /**
+   * Read the 8 bytes at the offset as a big endian long, so comparing two such longs as unsigned
+   * is the same as comparing the 8 bytes lexicographically. The JIT turns the read of the heap
+   * buffer into a single load, and the wrapper is usually not allocated at all.
+   */
+  static long readLong(byte[] b, int offset) {
+    return ByteBuffer.wrap(b).getLong(offset);
+  }
+
+  private static long readLong(ByteBuffer buf, int offset) {
+    long x = buf.getLong(offset);
+    return buf.order() == ByteOrder.BIG_ENDIAN ? x : Long.reverseBytes(x);
+  }
+
+  /**
+   * @return the first 8 bytes of the [offset, offset + len) of the array as a big endian long, the
+   * missing bytes are zero if len is less than 8.
+   */
+  public static long prefix(byte[] b, int offset, int len) {
+    if (len >= LONG_BYTES) {
+      return readLong(b, offset);
+    }
+    long x = 0;
+    for (int i = 0; i < LONG_BYTES; i++) {
+      x = (x << 8) | (i < len ? b[offset + i] & 0xFF : 0);
+    }
+    return x;
+  }
+
+  public static long prefix(ByteBuffer buf, int offset, int len) {
+    if (buf.hasArray()) {
+      return prefix(buf.array(), buf.arrayOffset() + offset, len);
+    }
+    if (len >= LONG_BYTES) {
+      return readLong(buf, offset);
+    }
+    long x = 0;
+    for (int i = 0; i < LONG_BYTES; i++) {
+      x = (x << 8) | (i < len ? buf.get(offset + i) & 0xFF : 0);
+    }
+    return x;
+  }
+
   public static byte[] toBytes(byte b) {
     return new byte[] { b };
   }
@@ -103,13 +151,156 @@ public class Bytes {
     if (a == b) return 0;
     if (a == null) return -1;
     if (b == null) return 1;
-    for (int i = 0, j = 0; i < a.length && j < b.length; i++, j++) {
-      int x = a[i] & 0xFF;
-      int y = b[i] & 0xFF;
+    return compare(a, 0, a.length, b, 0, b.length);
+  }
+
+  /**
+   * Compare the two ranges as unsigned bytes lexicographically, 8 bytes at a time.
+   */
+  public static int compare(byte[] a, int aOffset, int aLen, byte[] b, int bOffset, int bLen) {
+    int minLen = Math.min(aLen, bLen);
+    int i = 0;
+    ByteBuffer aBuf = ByteBuffer.wrap(a);
+    ByteBuffer bBuf = ByteBuffer.wrap(b);
+    for (; i + LONG_BYTES <= minLen; i += LONG_BYTES) {
+      long x = aBuf.getLong(aOffset + i);
+      long y = bBuf.getLong(bOffset + i);
+      if (x != y) {
+        return Long.compareUnsigned(x, y);
+      }
+    }
+    for (; i < minLen; i++) {
+      int x = a[aOffset + i] & 0xFF;
+      int y = b[bOffset + i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return aLen - bLen;
+  }
+
+  /**
+   * Write the non-negative int with 7 bits per byte, the highest bit of a byte tells whether
+   * there're more bytes. Small ints take only one byte.
+   */
+  public static void writeVarInt(OutputStream out, int x) throws IOException {
+    assert x >= 0;
+    while ((x & ~0x7F) != 0) {
+      out.write((x & 0x7F) | 0x80);
+      x >>>= 7;
+    }
+    out.write(x);
+  }
+
+  /**
+   * @return the count of bytes {@link #writeVarInt(OutputStream, int)} takes to write the int.
+   */
+  public static int varIntSize(int x) {
+    assert x >= 0;
+    int size = 1;
+    while ((x & ~0x7F) != 0) {
+      size++;
+      x >>>= 7;
+    }
+    return size;
+  }
+
+  /**
+   * Read the int written by {@link #writeVarInt(OutputStream, int)} at the position of the buffer.
+   */
+  public static int readVarInt(ByteBuffer buf) throws IOException {
+    int x = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (!buf.hasRemaining()) {
+        throw new IOException("Buffer overflow when reading the var int");
+      }
+      byte b = buf.get();
+      x |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return x;
+      }
+    }
+    throw new IOException("Malformed var int");
+  }
+
+  public static int hash(ByteBuffer buf, int offset, int len) {
+    int h = 1;
+    for (int i = offset; i < offset + len; i++) {
+      h = (h << 5) + h + buf.get(i);
+    }
+    return h;
+  }
+
+  /**
+   * Compare [aOffset, aOffset + aLen) of the buffer with [bOffset, bOffset + bLen) of the array,
+   * the offsets of the buffer are absolute indexes and its position is never changed.
+   */
+  public static int compare(ByteBuffer a, int aOffset, int aLen, byte[] b, int bOffset, int bLen) {
+    if (a.hasArray()) {
+      return compare(a.array(), a.arrayOffset() + aOffset, aLen, b, bOffset, bLen);
+    }
+    int minLen = Math.min(aLen, bLen);
+    int i = 0;
+    for (; i + LONG_BYTES <= minLen; i += LONG_BYTES) {
+      long x = readLong(a, aOffset + i);
+      long y = readLong(b, bOffset + i);
+      if (x != y) {
+        return Long.compareUnsigned(x, y);
+      }
+    }
+    for (; i < minLen; i++) {
+      int x = a.get(aOffset + i) & 0xFF;
+      int y = b[bOffset + i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return aLen - bLen;
+  }
+
+  public static int compare(ByteBuffer a, int aOffset, int aLen, ByteBuffer b, int bOffset,
+      int bLen) {
+    if (b.hasArray()) {
+      return compare(a, aOffset, aLen, b.array(), b.arrayOffset() + bOffset, bLen);
+    }
+    if (a.hasArray()) {
+      return -compare(b, bOffset, bLen, a.array(), a.arrayOffset() + aOffset, aLen);
+    }
+    int minLen = Math.min(aLen, bLen);
+    int i = 0;
+    for (; i + LONG_BYTES <= minLen; i += LONG_BYTES) {
+      long x = readLong(a, aOffset + i);
+      long y = readLong(b, bOffset + i);
+      if (x != y) {
+        return Long.compareUnsigned(x, y);
+      }
+    }
+    for (; i < minLen; i++) {
+      int x = a.get(aOffset + i) & 0xFF;
+      int y = b.get(bOffset + i) & 0xFF;
       if (x != y) {
         return x - y;
       }
     }
-    return a.length - b.length;
+    return aLen - bLen;
+  }
+
+  /**
+   * Copy [offset, offset + len) of the buffer into the array, without changing the position.
+   */
+  public static void copy(ByteBuffer buf, int offset, byte[] dst, int dstOffset, int len) {
+    if (buf.hasArray()) {
+      System.arraycopy(buf.array(), buf.arrayOffset() + offset, dst, dstOffset, len);
+    } else {
+      ByteBuffer dup = buf.duplicate();
+      dup.position(offset);
+      dup.get(dst, dstOffset, len);
+    }
+  }
+
+  public static byte[] copy(ByteBuffer buf, int offset, int len) {
+    byte[] result = new byte[len];
+    copy(buf, offset, result, 0, len);
+    return result;
   }
 }
@@ -0,0 +1,67 @@
+package org.apache.minibase;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the off-heap chunks used by the {@link MemStoreArena}s. The chunks of a flushed memstore
+ * are put back and reused by the next memstores, so the direct memory is allocated only once in
+ * the steady state. The chunks beyond maxPoolSize are left to the GC.
+ */
+public class ChunkPool {
+
+  private final int chunkSize;
+  private final int maxPoolSize;
+  private final Queue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooledCount = new AtomicInteger();
+  private final AtomicLong createdCount = new AtomicLong();
+
+  public ChunkPool(int chunkSize, int maxPoolSize) {
+    assert chunkSize > 0;
+    this.chunkSize = chunkSize;
+    this.maxPoolSize = maxPoolSize;
+  }
+
+  public ByteBuffer allocate() {
+    ByteBuffer chunk = chunks.poll();
+    if (chunk != null) {
+      pooledCount.decrementAndGet();
+      return chunk;
+    }
+    createdCount.incrementAndGet();
+    return ByteBuffer.allocateDirect(chunkSize);
+  }
+
+  /**
+   * Put back the chunk, which must not be referenced by anyone any more.
+   */
+  public void recycle(ByteBuffer chunk) {
+    if (pooledCount.incrementAndGet() <= maxPoolSize) {
+      chunk.clear();
+      chunks.offer(chunk);
+    } else {
+      pooledCount.decrementAndGet();
+    }
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @return number of the chunks in the pool, ready to be reused.
+   */
+  public int getPooledCount() {
+    return pooledCount.get();
+  }
+
+  /**
+   * @return number of the chunks allocated from the direct memory.
+   */
+  public long getCreatedCount() {
+    return createdCount.get();
+  }
+}
@@ -0,0 +1,66 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decide which disk files should be compacted together, and where the compacted result goes.
+ */
+public interface CompactionPolicy {
+
+  enum Style {
+    // Compact all the disk files into one once there're more than maxDiskFiles files.
+    FULL,
+    // Compact level by level, only the files with overlapping key range are compacted together.
+    LEVELED
+  }
+
+  /**
+   * Pick the next compaction.
+   *
+   * @param diskFiles all the disk files, ordered from the oldest to the newest.
+   * @return the compaction to perform, or null if no compaction is needed now.
+   */
+  Compaction pickCompaction(List<DiskFile> diskFiles) throws IOException;
+
+  static CompactionPolicy create(Config conf) {
+    switch (conf.getCompactionStyle()) {
+      case FULL:
+        return new FullCompactionPolicy(conf.getMaxDiskFiles());
+      case LEVELED:
+        return new LeveledCompactionPolicy(conf);
+      default:
+        throw new IllegalArgumentException("Unknown compaction style: " + conf.getCompactionStyle());
+    }
+  }
+
+  class Compaction {
+    private final List<DiskFile> inputs;
+    private final int outputLevel;
+    private final long maxOutputFileSize;
+
+    /**
+     * @param inputs            the disk files to compact.
+     * @param outputLevel       the level of the compacted files.
+     * @param maxOutputFileSize switch to the next output file once the current one exceeds this
+     *                          size, all the versions of one key are kept in the same file.
+     */
+    public Compaction(List<DiskFile> inputs, int outputLevel, long maxOutputFileSize) {
+      this.inputs = inputs;
+      this.outputLevel = outputLevel;
+      this.maxOutputFileSize = maxOutputFileSize;
+    }
+
+    public List<DiskFile> getInputs() {
+      return inputs;
+    }
+
+    public int getOutputLevel() {
+      return outputLevel;
+    }
+
+    public long getMaxOutputFileSize() {
+      return maxOutputFileSize;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package org.apache.minibase;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The codec used to compress the data blocks of a disk file.
+ */
+public enum Compression {
+
+  NONE((byte) 0) {
+    @Override
+    public byte[] compress(byte[] raw) {
+      return raw;
+    }
+
+    @Override
+    public void decompress(ByteBuffer compressed, byte[] raw) throws IOException {
+      if (compressed.remaining() != raw.length) {
+        throw new IOException("Expect " + raw.length + " bytes, but got " + compressed.remaining());
+      }
+      compressed.duplicate().get(raw);
+    }
+  },
+
+  // Fast compression and very fast decompression, with a moderate ratio.
+  LZ4((byte) 1) {
+    @Override
+    public byte[] compress(byte[] raw) {
+      return LZ4_FACTORY.fastCompressor().compress(raw);
+    }
+
+    @Override
+    public void decompress(ByteBuffer compressed, byte[] raw) throws IOException {
+      try {
+        LZ4_FACTORY.fastDecompressor().decompress(compressed, compressed.position(),
+          ByteBuffer.wrap(raw), 0, raw.length);
+      } catch (LZ4Exception e) {
+        throw new IOException("Failed to decompress the LZ4 block", e);
+      }
+    }
+  },
+
+  // Slower, but a much higher ratio than LZ4.
+  ZLIB((byte) 2) {
+    @Override
+    public byte[] compress(byte[] raw) {
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+      try {
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, raw.length / 2)];
+        int len = 0;
+        while (!deflater.finished()) {
+          if (len == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+          }
+          len += deflater.deflate(buffer, len, buffer.length - len);
+        }
+        return Arrays.copyOf(buffer, len);
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    public void decompress(ByteBuffer compressed, byte[] raw) throws IOException {
+      byte[] input;
+      int offset;
+      if (compressed.hasArray()) {
+        input = compressed.array();
+        offset = compressed.arrayOffset() + compressed.position();
+      } else {
+        input = new byte[compressed.remaining()];
+        compressed.duplicate().get(input);
+        offset = 0;
+      }
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(input, offset, compressed.remaining());
+        int len = 0;
+        while (len < raw.length && !inflater.finished()) {
+          int n = inflater.inflate(raw, len, raw.length - len);
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          len += n;
+        }
+        if (len != raw.length) {
+          throw new IOException("Expect " + raw.length + " bytes, but inflated " + len);
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Failed to decompress the ZLIB block", e);
+      } finally {
+        inflater.end();
+      }
+    }
+  };
+
+  private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+
+  private final byte code;
+
+  Compression(byte code) {
+    this.code = code;
+  }
+
+  public byte getCode() {
+    return this.code;
+  }
+
+  public static Compression code2Compression(byte code) {
+    for (Compression compression : values()) {
+      if (compression.code == code) {
+        return compression;
+      }
+    }
+    throw new IllegalArgumentException("Unknown compression code: " + code);
+  }
+
+  public abstract byte[] compress(byte[] raw) throws IOException;
+
+  /**
+   * Decompress the bytes in [position, limit) of the compressed buffer into the raw array, whose
+   * length must be exactly the size before compression.
+   */
+  public abstract void decompress(ByteBuffer compressed, byte[] raw) throws IOException;
+}
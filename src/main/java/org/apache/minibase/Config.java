@@ -4,9 +4,35 @@ public class Config {
 
   private long maxMemstoreSize = 16 * 1024 * 1024;
   private int flushMaxRetries = 10;
+  private int maxImmutableMemstores = 2;
+  private boolean memstoreArenaEnabled = false;
+  private int memstoreChunkSize = 2 * 1024 * 1024;
+  private int memstoreChunkPoolSize = -1;
   private String dataDir = "MiniBase";
   private int maxDiskFiles = 10;
   private int maxThreadPoolSize = 5;
+  private WAL.SyncMode walSyncMode = WAL.SyncMode.SYNC;
+  private long walSyncIntervalMs = 100;
+  private long blockCacheSize = 64 * 1024 * 1024;
+  private DiskFile.ReadMode diskFileReadMode = DiskFile.ReadMode.PREAD;
+  private Compression compression = Compression.NONE;
+  private BlockEncoding blockEncoding = BlockEncoding.NONE;
+  private CompactionPolicy.Style compactionStyle = CompactionPolicy.Style.FULL;
+  private int level0CompactionTrigger = 4;
+  private int maxSubcompactions = 1;
+  private long ioRateLimit = 0;
+  private boolean ioRateAutoTuned = false;
+  private long maxBytesForLevelBase = 64 * 1024 * 1024;
+  private int levelSizeMultiplier = 10;
+  private int maxLevels = 7;
+  private long targetFileSize = 8 * 1024 * 1024;
+  private double writeSlowdownRatio = 1.0;
+  private double writeStopRatio = 2.0;
+  private long maxWriteDelayUs = 1000;
+  private long writeStallTimeoutMs = 60 * 1000;
+  private boolean metricsJmxEnabled = false;
+  private int asyncIoThreads = 8;
+  private int asyncQueueSize = 1024;
 
   private static final Config DEFAULT = new Config();
 
@@ -28,6 +54,54 @@ public class Config {
     return this.flushMaxRetries;
   }
 
+  /**
+   * Max number of the immutable memstores which are waiting to be flushed, they're flushed in
+   * parallel.
+   */
+  public Config setMaxImmutableMemstores(int maxImmutableMemstores) {
+    this.maxImmutableMemstores = maxImmutableMemstores;
+    return this;
+  }
+
+  public int getMaxImmutableMemstores() {
+    return this.maxImmutableMemstores;
+  }
+
+  /**
+   * Copy the keys and values of the memstore into off-heap chunks, so a large memstore won't put
+   * pressure on the GC.
+   */
+  public Config setMemstoreArenaEnabled(boolean memstoreArenaEnabled) {
+    this.memstoreArenaEnabled = memstoreArenaEnabled;
+    return this;
+  }
+
+  public boolean isMemstoreArenaEnabled() {
+    return this.memstoreArenaEnabled;
+  }
+
+  public Config setMemstoreChunkSize(int memstoreChunkSize) {
+    this.memstoreChunkSize = memstoreChunkSize;
+    return this;
+  }
+
+  public int getMemstoreChunkSize() {
+    return this.memstoreChunkSize;
+  }
+
+  /**
+   * Max number of the free chunks kept for reuse, -1 means enough chunks for the active and all
+   * the immutable memstores.
+   */
+  public Config setMemstoreChunkPoolSize(int memstoreChunkPoolSize) {
+    this.memstoreChunkPoolSize = memstoreChunkPoolSize;
+    return this;
+  }
+
+  public int getMemstoreChunkPoolSize() {
+    return this.memstoreChunkPoolSize;
+  }
+
   public Config setDataDir(String dataDir) {
     this.dataDir = dataDir;
     return this;
@@ -55,6 +129,242 @@ public class Config {
     return this.maxThreadPoolSize;
   }
 
+  public Config setWalSyncMode(WAL.SyncMode walSyncMode) {
+    this.walSyncMode = walSyncMode;
+    return this;
+  }
+
+  public WAL.SyncMode getWalSyncMode() {
+    return this.walSyncMode;
+  }
+
+  public Config setWalSyncIntervalMs(long walSyncIntervalMs) {
+    this.walSyncIntervalMs = walSyncIntervalMs;
+    return this;
+  }
+
+  public long getWalSyncIntervalMs() {
+    return this.walSyncIntervalMs;
+  }
+
+  /**
+   * @param blockCacheSize the capacity of the block cache in bytes, 0 means no block cache.
+   */
+  public Config setBlockCacheSize(long blockCacheSize) {
+    this.blockCacheSize = blockCacheSize;
+    return this;
+  }
+
+  public long getBlockCacheSize() {
+    return this.blockCacheSize;
+  }
+
+  public Config setDiskFileReadMode(DiskFile.ReadMode diskFileReadMode) {
+    this.diskFileReadMode = diskFileReadMode;
+    return this;
+  }
+
+  public DiskFile.ReadMode getDiskFileReadMode() {
+    return this.diskFileReadMode;
+  }
+
+  public Config setCompression(Compression compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  public Compression getCompression() {
+    return this.compression;
+  }
+
+  public Config setBlockEncoding(BlockEncoding blockEncoding) {
+    this.blockEncoding = blockEncoding;
+    return this;
+  }
+
+  public BlockEncoding getBlockEncoding() {
+    return this.blockEncoding;
+  }
+
+  /**
+   * FULL by default, which is triggered by maxDiskFiles. LEVELED is triggered by
+   * level0CompactionTrigger and the level sizes instead.
+   */
+  public Config setCompactionStyle(CompactionPolicy.Style compactionStyle) {
+    this.compactionStyle = compactionStyle;
+    return this;
+  }
+
+  public CompactionPolicy.Style getCompactionStyle() {
+    return this.compactionStyle;
+  }
+
+  public Config setLevel0CompactionTrigger(int level0CompactionTrigger) {
+    this.level0CompactionTrigger = level0CompactionTrigger;
+    return this;
+  }
+
+  public int getLevel0CompactionTrigger() {
+    return this.level0CompactionTrigger;
+  }
+
+  /**
+   * Split a compaction into at most this number of key ranges, and compact them in parallel. 1
+   * means compacting in the compactor thread only, which is the default.
+   */
+  public Config setMaxSubcompactions(int maxSubcompactions) {
+    this.maxSubcompactions = maxSubcompactions;
+    return this;
+  }
+
+  public int getMaxSubcompactions() {
+    return this.maxSubcompactions;
+  }
+
+  /**
+   * Limit the bytes per second written by the flushes and compactions, 0 means unlimited. The
+   * flushes are never delayed, so the compactions slow down to make room for them.
+   */
+  public Config setIoRateLimit(long ioRateLimit) {
+    this.ioRateLimit = ioRateLimit;
+    return this;
+  }
+
+  public long getIoRateLimit() {
+    return this.ioRateLimit;
+  }
+
+  /**
+   * Tune the rate under ioRateLimit, lower it if the get latency goes up, raise it if the level 0
+   * files pile up.
+   */
+  public Config setIoRateAutoTuned(boolean ioRateAutoTuned) {
+    this.ioRateAutoTuned = ioRateAutoTuned;
+    return this;
+  }
+
+  public boolean isIoRateAutoTuned() {
+    return this.ioRateAutoTuned;
+  }
+
+  public Config setMaxBytesForLevelBase(long maxBytesForLevelBase) {
+    this.maxBytesForLevelBase = maxBytesForLevelBase;
+    return this;
+  }
+
+  public long getMaxBytesForLevelBase() {
+    return this.maxBytesForLevelBase;
+  }
+
+  public Config setLevelSizeMultiplier(int levelSizeMultiplier) {
+    this.levelSizeMultiplier = levelSizeMultiplier;
+    return this;
+  }
+
+  public int getLevelSizeMultiplier() {
+    return this.levelSizeMultiplier;
+  }
+
+  public Config setMaxLevels(int maxLevels) {
+    this.maxLevels = maxLevels;
+    return this;
+  }
+
+  public int getMaxLevels() {
+    return this.maxLevels;
+  }
+
+  public Config setTargetFileSize(long targetFileSize) {
+    this.targetFileSize = targetFileSize;
+    return this;
+  }
+
+  public long getTargetFileSize() {
+    return this.targetFileSize;
+  }
+
+  /**
+   * The writes are delayed once the memstore exceeds maxMemstoreSize * writeSlowdownRatio while
+   * the queue of immutable memstores is full.
+   */
+  public Config setWriteSlowdownRatio(double writeSlowdownRatio) {
+    this.writeSlowdownRatio = writeSlowdownRatio;
+    return this;
+  }
+
+  public double getWriteSlowdownRatio() {
+    return this.writeSlowdownRatio;
+  }
+
+  /**
+   * The writes are blocked once the memstore exceeds maxMemstoreSize * writeStopRatio while the
+   * queue of immutable memstores is full.
+   */
+  public Config setWriteStopRatio(double writeStopRatio) {
+    this.writeStopRatio = writeStopRatio;
+    return this;
+  }
+
+  public double getWriteStopRatio() {
+    return this.writeStopRatio;
+  }
+
+  public Config setMaxWriteDelayUs(long maxWriteDelayUs) {
+    this.maxWriteDelayUs = maxWriteDelayUs;
+    return this;
+  }
+
+  public long getMaxWriteDelayUs() {
+    return this.maxWriteDelayUs;
+  }
+
+  public Config setWriteStallTimeoutMs(long writeStallTimeoutMs) {
+    this.writeStallTimeoutMs = writeStallTimeoutMs;
+    return this;
+  }
+
+  public long getWriteStallTimeoutMs() {
+    return this.writeStallTimeoutMs;
+  }
+
+  /**
+   * Publish the metrics of the store as an MBean, disabled by default since the MBean is registered
+   * in the platform MBean server of the whole JVM. The metrics can always be pulled by
+   * {@link MStore#getMetrics()}.
+   */
+  public Config setMetricsJmxEnabled(boolean metricsJmxEnabled) {
+    this.metricsJmxEnabled = metricsJmxEnabled;
+    return this;
+  }
+
+  public boolean isMetricsJmxEnabled() {
+    return this.metricsJmxEnabled;
+  }
+
+  /**
+   * The count of the threads running the requests of {@link AsyncMiniBase}.
+   */
+  public Config setAsyncIoThreads(int asyncIoThreads) {
+    this.asyncIoThreads = asyncIoThreads;
+    return this;
+  }
+
+  public int getAsyncIoThreads() {
+    return this.asyncIoThreads;
+  }
+
+  /**
+   * The max count of the async requests waiting for a thread, more requests are rejected.
+   */
+  public Config setAsyncQueueSize(int asyncQueueSize) {
+    this.asyncQueueSize = asyncQueueSize;
+    return this;
+  }
+
+  public int getAsyncQueueSize() {
+    return this.asyncQueueSize;
+  }
+
   public static Config getDefault() {
     return DEFAULT;
   }
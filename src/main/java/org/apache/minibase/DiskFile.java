@@ -1,40 +1,108 @@
 package org.apache.minibase;
 
+import org.apache.log4j.Logger;
+import org.apache.minibase.KeyValue.Op;
 import org.apache.minibase.MStore.SeekIter;
+import org.apache.minibase.MiniBase.Iter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
-import java.util.zip.Checksum;
 
 public class DiskFile implements Closeable {
 
+  private static final Logger LOG = Logger.getLogger(DiskFile.class);
+
   public static final int BLOCK_SIZE_UP_LIMIT = 1024 * 1024 * 2;
   public static final int BLOOM_FILTER_HASH_COUNT = 3;
   public static final int BLOOM_FILTER_BITS_PER_KEY = 10;
 
-  // fileSize(8B)+ blockCount(4B) + blockIndexOffset(8B) + blockIndexOffset(8B) + DISK_FILE_MAGIC
-  // (8B)
-  public static final int TRAILER_SIZE = 8 + 4 + 8 + 8 + 8;
-  public static final long DISK_FILE_MAGIC = 0xFAC881234221FFA9L;
+  // fileSize(8B)+ blockCount(4B) + blockIndexOffset(8B) + blockIndexOffset(8B) +
+  // fileMetaOffset(8B) + fileMetaSize(8B) + level(4B) + compression(1B) + encoding(1B) +
+  // formatVersion(4B) + DISK_FILE_MAGIC(8B)
+  public static final int TRAILER_SIZE = 8 + 4 + 8 + 8 + 8 + 8 + 4 + 1 + 1 + 4 + 8;
+  public static final long DISK_FILE_MAGIC = 0xFAC881234221FFAAL;
+  // The magic of the files written before the format version was introduced, whose trailer is
+  // fileSize(8B) + blockCount(4B) + blockIndexOffset(8B) + blockIndexSize(8B) + magic(8B).
+  public static final long LEGACY_DISK_FILE_MAGIC = 0xFAC881234221FFA9L;
+  // Bumped on every incompatible change of the file layout.
+  public static final int FORMAT_VERSION = 1;
 
   private String fname;
-  private RandomAccessFile in;
-  private SortedSet<BlockMeta> blockMetaSet = new TreeSet<>();
+  private FileChannel channel;
+  private MappedByteBuffer mappedBuf;
+  private NavigableSet<BlockMeta> blockMetaSet = new TreeSet<>();
+  private BlockCache blockCache;
+  // The count of the versions containing the file, it's closed once no version contains it.
+  private final AtomicInteger refCount = new AtomicInteger(0);
+  private volatile boolean obsolete = false;
+  private ReadMode readMode;
+
+  private Metrics.Counter blocksRead;
+  private Metrics.Counter bytesRead;
+  private Metrics.Counter bloomChecks;
+  private Metrics.Counter bloomNegatives;
+  private Metrics.Counter bloomFalsePositives;
 
   private long fileSize;
   private int blockCount;
   private long blockIndexOffset;
   private long blockIndexSize;
+  private long fileMetaOffset;
+  private long fileMetaSize;
+  private int level;
+  private Compression compression;
+  private BlockEncoding encoding;
+  private FileMeta fileMeta;
+
+  public enum ReadMode {
+    // Positional reads on the file channel into a heap buffer.
+    PREAD,
+    // Map the whole file into memory, and parse the blocks from the mapped buffer directly.
+    MMAP
+  }
+
+  public DiskFile() {
+    this(null, ReadMode.PREAD);
+  }
+
+  /**
+   * @param blockCache the cache shared with other disk files, null means no cache.
+   * @param readMode   how to read the blocks from the file.
+   */
+  public DiskFile(BlockCache blockCache, ReadMode readMode) {
+    this(blockCache, readMode, new Metrics());
+  }
+
+  /**
+   * @param metrics where the block reads and bloom filter checks are counted.
+   */
+  public DiskFile(BlockCache blockCache, ReadMode readMode, Metrics metrics) {
+    this.blockCache = blockCache;
+    this.readMode = readMode;
+    this.blocksRead = metrics.counter("diskfile.blocksRead");
+    this.bytesRead = metrics.counter("diskfile.bytesRead");
+    this.bloomChecks = metrics.counter("diskfile.bloomChecks");
+    this.bloomNegatives = metrics.counter("diskfile.bloomNegatives");
+    this.bloomFalsePositives = metrics.counter("diskfile.bloomFalsePositives");
+  }
 
   public static class BlockMeta implements Comparable<BlockMeta> {
 
@@ -46,6 +114,7 @@ public class DiskFile implements Closeable {
     private long blockOffset;
     private long blockSize;
     private byte[] bloomFilter;
+    private BloomFilter bloom;
 
     /**
      * Only used for {@link SeekIter} to seek a target block meta. we only care about the lastKV, so
@@ -81,6 +150,19 @@ public class DiskFile implements Closeable {
       return this.bloomFilter;
     }
 
+    /**
+     * Check the block bloom filter, false means the block definitely has no key value of the key.
+     */
+    public boolean mayContain(byte[] key) {
+      if (bloomFilter.length == 0) {
+        return true;
+      }
+      if (bloom == null) {
+        bloom = new BloomFilter(BLOOM_FILTER_HASH_COUNT, bloomFilter);
+      }
+      return bloom.contains(key);
+    }
+
     public int getSerializeSize() {
       // TODO the meta no need the value of last kv, will save much bytes.
       return lastKV.getSerializeSize() + OFFSET_SIZE + SIZE_SIZE + BF_LEN_SIZE + bloomFilter.length;
@@ -154,6 +236,107 @@ public class DiskFile implements Closeable {
     }
   }
 
+  /**
+   * Summary of all the key values in the disk file, so that we can skip the disk file without
+   * reading any block, and recover the max sequence id without reading any key value.
+   */
+  public static class FileMeta {
+
+    private static final int KEY_LEN_SIZE = 4;
+    private static final int SEQ_ID_SIZE = 8;
+    private static final int COUNT_SIZE = 8;
+
+    private byte[] firstKey = Bytes.EMPTY_BYTES;
+    private byte[] lastKey = Bytes.EMPTY_BYTES;
+    private long minSequenceId = Long.MAX_VALUE;
+    private long maxSequenceId = 0L;
+    private long keyValueCount = 0L;
+    private long deleteCount = 0L;
+
+    public FileMeta() {
+    }
+
+    /**
+     * Update the meta with the key value being appended, all the key values should be appended in
+     * order.
+     */
+    public void append(KeyValue kv) {
+      if (keyValueCount == 0) {
+        firstKey = kv.getKey();
+      }
+      lastKey = kv.getKey();
+      minSequenceId = Math.min(minSequenceId, kv.getSequenceId());
+      maxSequenceId = Math.max(maxSequenceId, kv.getSequenceId());
+      keyValueCount += 1;
+      if (kv.getOp() == KeyValue.Op.Delete) {
+        deleteCount += 1;
+      }
+    }
+
+    public byte[] getFirstKey() {
+      return firstKey;
+    }
+
+    public byte[] getLastKey() {
+      return lastKey;
+    }
+
+    public long getMinSequenceId() {
+      return minSequenceId;
+    }
+
+    public long getMaxSequenceId() {
+      return maxSequenceId;
+    }
+
+    public long getKeyValueCount() {
+      return keyValueCount;
+    }
+
+    public long getDeleteCount() {
+      return deleteCount;
+    }
+
+    public int getSerializeSize() {
+      return KEY_LEN_SIZE + firstKey.length + KEY_LEN_SIZE + lastKey.length + SEQ_ID_SIZE
+             + SEQ_ID_SIZE + COUNT_SIZE + COUNT_SIZE;
+    }
+
+    public byte[] toBytes() throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(getSerializeSize());
+      buf.putInt(firstKey.length);
+      buf.put(firstKey);
+      buf.putInt(lastKey.length);
+      buf.put(lastKey);
+      buf.putLong(minSequenceId);
+      buf.putLong(maxSequenceId);
+      buf.putLong(keyValueCount);
+      buf.putLong(deleteCount);
+      if (buf.hasRemaining()) {
+        throw new IOException("pos(" + buf.position() + ") should be equal to length of bytes ("
+                              + buf.capacity() + ")");
+      }
+      return buf.array();
+    }
+
+    public static FileMeta parseFrom(ByteBuffer buf) throws IOException {
+      try {
+        FileMeta meta = new FileMeta();
+        meta.firstKey = new byte[buf.getInt()];
+        buf.get(meta.firstKey);
+        meta.lastKey = new byte[buf.getInt()];
+        buf.get(meta.lastKey);
+        meta.minSequenceId = buf.getLong();
+        meta.maxSequenceId = buf.getLong();
+        meta.keyValueCount = buf.getLong();
+        meta.deleteCount = buf.getLong();
+        return meta;
+      } catch (RuntimeException e) {
+        throw new IOException("File meta mis-encoded", e);
+      }
+    }
+  }
+
   public static class BlockIndexWriter {
 
     private List<BlockMeta> blockMetas = new ArrayList<>();
@@ -178,35 +361,106 @@ public class DiskFile implements Closeable {
     }
   }
 
+  /**
+   * Encodes a data block as kvCount(4B) + encoded key values + restart points + checksum(4B). Every
+   * RESTART_INTERVAL key values there's a restart point, which can be decoded without the previous
+   * key values. The restart points are encoded as offset(4B) of each restart entry relative to the
+   * block, followed by restartCount(4B), so a reader can binary search them to seek. The checksum
+   * covers everything between the kvCount and itself.
+   */
   public static class BlockWriter {
     public static final int KV_SIZE_LEN = 4;
     public static final int CHECKSUM_LEN = 4;
+    public static final int RAW_SIZE_LEN = 4;
+    public static final int RESTART_LEN = 4;
 
-    private int totalSize;
+    private BlockEncoding encoding;
+    private ByteArrayOutputStream entries;
+    private int[] restarts;
+    private int restartCount;
     private List<KeyValue> kvBuf;
     private BloomFilter bloomFilter;
-    private Checksum crc32;
     private KeyValue lastKV;
     private int keyValueCount;
 
     public BlockWriter() {
-      totalSize = 0;
+      this(BlockEncoding.NONE);
+    }
+
+    public BlockWriter(BlockEncoding encoding) {
+      this.encoding = encoding;
+      entries = new ByteArrayOutputStream();
+      restarts = new int[16];
+      restartCount = 0;
       kvBuf = new ArrayList<>();
       bloomFilter = new BloomFilter(BLOOM_FILTER_HASH_COUNT, BLOOM_FILTER_BITS_PER_KEY);
-      crc32 = new CRC32();
     }
 
     public void append(KeyValue kv) throws IOException {
+      boolean isRestart = keyValueCount % BlockEncoding.RESTART_INTERVAL == 0;
+      if (isRestart) {
+        if (restartCount == restarts.length) {
+          restarts = Arrays.copyOf(restarts, restarts.length * 2);
+        }
+        restarts[restartCount++] = KV_SIZE_LEN + entries.size();
+      }
+      if (encoding == BlockEncoding.PREFIX) {
+        appendPrefixEncoded(kv, isRestart);
+      } else {
+        entries.write(kv.toBytes());
+      }
+
       // Update key value buffer
       kvBuf.add(kv);
       lastKV = kv;
+      keyValueCount += 1;
+    }
 
-      // Update checksum
-      byte[] buf = kv.toBytes();
-      crc32.update(buf, 0, buf.length);
+    /**
+     * Encode the key value as sharedKeyLen(varint) + suffixLen(varint) + valueLen(varint) +
+     * key suffix + op(1B) + sequenceId(8B) + value.
+     */
+    private void appendPrefixEncoded(KeyValue kv, boolean isRestart) throws IOException {
+      byte[] key = kv.getKey();
+      int shared = sharedKeyLength(key, isRestart);
+      Bytes.writeVarInt(entries, shared);
+      Bytes.writeVarInt(entries, key.length - shared);
+      Bytes.writeVarInt(entries, kv.getValueLength());
+      entries.write(key, shared, key.length - shared);
+      entries.write(kv.getOp().getCode());
+      entries.write(Bytes.toBytes(kv.getSequenceId()));
+      entries.write(kv.getValue());
+    }
 
-      totalSize += kv.getSerializeSize();
-      keyValueCount += 1;
+    private int sharedKeyLength(byte[] key, boolean isRestart) {
+      int shared = 0;
+      if (!isRestart) {
+        byte[] lastKey = lastKV.getKey();
+        int maxShared = Math.min(lastKey.length, key.length);
+        while (shared < maxShared && lastKey[shared] == key[shared]) {
+          shared++;
+        }
+      }
+      return shared;
+    }
+
+    /**
+     * @return the size of the block once the key value is appended, including the restart point
+     * it may take.
+     */
+    public int sizeAfterAppend(KeyValue kv) {
+      boolean isRestart = keyValueCount % BlockEncoding.RESTART_INTERVAL == 0;
+      int entrySize;
+      if (encoding == BlockEncoding.PREFIX) {
+        byte[] key = kv.getKey();
+        int shared = sharedKeyLength(key, isRestart);
+        entrySize = Bytes.varIntSize(shared) + Bytes.varIntSize(key.length - shared)
+            + Bytes.varIntSize(kv.getValueLength()) + key.length - shared + 1 + 8
+            + kv.getValueLength();
+      } else {
+        entrySize = kv.getSerializeSize();
+      }
+      return size() + entrySize + (isRestart ? RESTART_LEN : 0);
     }
 
     public byte[] getBloomFilter() {
@@ -217,16 +471,12 @@ public class DiskFile implements Closeable {
       return bloomFilter.generate(bytes);
     }
 
-    public int getChecksum() {
-      return (int) crc32.getValue();
-    }
-
     public KeyValue getLastKV() {
       return this.lastKV;
     }
 
     public int size() {
-      return KV_SIZE_LEN + totalSize + CHECKSUM_LEN;
+      return KV_SIZE_LEN + entries.size() + RESTART_LEN * (restartCount + 1) + CHECKSUM_LEN;
     }
 
     public int getKeyValueCount() {
@@ -235,68 +485,426 @@ public class DiskFile implements Closeable {
 
     public byte[] serialize() throws IOException {
       byte[] buffer = new byte[size()];
-      int pos = 0;
+      ByteBuffer buf = ByteBuffer.wrap(buffer);
 
-      // Append kv getSerializeSize.
-      byte[] kvSize = Bytes.toBytes(kvBuf.size());
-      System.arraycopy(kvSize, 0, buffer, pos, kvSize.length);
-      pos += kvSize.length;
+      // Append kv count.
+      buf.putInt(keyValueCount);
 
-      // Append all the key value
-      for (int i = 0; i < kvBuf.size(); i++) {
-        byte[] kv = kvBuf.get(i).toBytes();
-        System.arraycopy(kv, 0, buffer, pos, kv.length);
-        pos += kv.length;
+      // Append all the encoded key values.
+      buf.put(entries.toByteArray());
+
+      // Append the restart points.
+      for (int i = 0; i < restartCount; i++) {
+        buf.putInt(restarts[i]);
       }
+      buf.putInt(restartCount);
 
       // Append checksum.
-      byte[] checksum = Bytes.toBytes(this.getChecksum());
+      CRC32 crc32 = new CRC32();
+      crc32.update(buffer, KV_SIZE_LEN, buf.position() - KV_SIZE_LEN);
+      buf.putInt((int) crc32.getValue());
+
+      assert buf.position() == size();
+      return buffer;
+    }
+
+    /**
+     * Serialize the block, and compress it if needed. The compressed block is encoded as
+     * rawSize(4B) + compressed bytes + checksum(4B), and the checksum covers the rawSize and the
+     * compressed bytes, so a corrupted block is detected before decompressing it.
+     */
+    public byte[] serialize(Compression compression) throws IOException {
+      byte[] raw = serialize();
+      if (compression == Compression.NONE) {
+        return raw;
+      }
+      byte[] compressed = compression.compress(raw);
+      byte[] buffer = new byte[RAW_SIZE_LEN + compressed.length + CHECKSUM_LEN];
+      int pos = 0;
+
+      byte[] rawSize = Bytes.toBytes(raw.length);
+      System.arraycopy(rawSize, 0, buffer, pos, rawSize.length);
+      pos += rawSize.length;
+
+      System.arraycopy(compressed, 0, buffer, pos, compressed.length);
+      pos += compressed.length;
+
+      CRC32 crc32 = new CRC32();
+      crc32.update(buffer, 0, pos);
+      byte[] checksum = Bytes.toBytes((int) crc32.getValue());
       System.arraycopy(checksum, 0, buffer, pos, checksum.length);
       pos += checksum.length;
 
-      assert pos == size();
+      assert pos == buffer.length;
       return buffer;
     }
   }
 
+  /**
+   * A data block which keeps the encoded bytes, the key values are decoded on demand by its
+   * iterators. It's immutable, so one reader can be shared by threads through the block cache.
+   */
   public static class BlockReader {
 
-    private List<KeyValue> kvBuf;
+    private final ByteBuffer buf;
+    private final BlockEncoding encoding;
+    private final int kvCount;
+    private final int restartCount;
+    // The restart points start right after the encoded key values.
+    private final int entriesEnd;
+
+    private BlockReader(ByteBuffer buf, BlockEncoding encoding, int kvCount, int restartCount,
+        int entriesEnd) {
+      this.buf = buf;
+      this.encoding = encoding;
+      this.kvCount = kvCount;
+      this.restartCount = restartCount;
+      this.entriesEnd = entriesEnd;
+    }
+
+    /**
+     * @return the size of the uncompressed block.
+     */
+    public int getSerializeSize() {
+      return buf.capacity();
+    }
 
-    public BlockReader(List<KeyValue> kvBuf) {
-      this.kvBuf = kvBuf;
+    public int getKeyValueCount() {
+      return kvCount;
     }
 
     public static BlockReader parseFrom(byte[] buffer, int offset, int size) throws IOException {
-      int pos = 0;
-      List<KeyValue> kvBuf = new ArrayList<KeyValue>();
-      Checksum crc32 = new CRC32();
+      return parseFrom(ByteBuffer.wrap(buffer, offset, size), BlockEncoding.NONE);
+    }
 
-      // Parse kv getSerializeSize
-      int kvSize = Bytes.toInt(Bytes.slice(buffer, offset + pos, BlockWriter.KV_SIZE_LEN));
-      pos += BlockWriter.KV_SIZE_LEN;
+    /**
+     * Parse the block serialized by {@link BlockWriter#serialize(Compression)}.
+     */
+    public static BlockReader parseFrom(ByteBuffer buffer, Compression compression,
+        BlockEncoding encoding) throws IOException {
+      if (compression == Compression.NONE) {
+        return parseFrom(buffer, encoding);
+      }
+      ByteBuffer buf = buffer.duplicate();
+      if (buf.remaining() < BlockWriter.RAW_SIZE_LEN + BlockWriter.CHECKSUM_LEN) {
+        throw new IOException("Invalid compressed block size: " + buf.remaining());
+      }
 
-      // Parse all key value.
-      for (int i = 0; i < kvSize; i++) {
-        KeyValue kv = KeyValue.parseFrom(buffer, offset + pos);
-        kvBuf.add(kv);
-        crc32.update(buffer, offset + pos, kv.getSerializeSize());
-        pos += kv.getSerializeSize();
+      // Verify the checksum before decompressing.
+      ByteBuffer checked = buf.duplicate();
+      checked.limit(buf.limit() - BlockWriter.CHECKSUM_LEN);
+      CRC32 crc32 = new CRC32();
+      crc32.update(checked);
+      int checksum = buf.getInt(buf.limit() - BlockWriter.CHECKSUM_LEN);
+      if (checksum != (int) crc32.getValue()) {
+        throw new IOException("Checksum mismatch of the compressed block");
       }
 
-      // Parse checksum
-      int checksum = Bytes.toInt(Bytes.slice(buffer, offset + pos, BlockWriter.CHECKSUM_LEN));
-      pos += BlockWriter.CHECKSUM_LEN;
-      assert checksum == (int) (crc32.getValue() & 0xFFFFFFFF);
+      int rawSize = buf.getInt();
+      if (rawSize < 0 || rawSize > BLOCK_SIZE_UP_LIMIT) {
+        throw new IOException("Invalid raw size of the compressed block: " + rawSize);
+      }
+      buf.limit(buf.limit() - BlockWriter.CHECKSUM_LEN);
+      byte[] raw = new byte[rawSize];
+      compression.decompress(buf, raw);
+      return parseFrom(ByteBuffer.wrap(raw), encoding);
+    }
 
-      assert pos == size : "pos: " + pos + ", getSerializeSize: " + size;
+    /**
+     * Parse the block from the buffer in [position, limit), the buffer can be a heap, direct or
+     * mapped buffer. The position of the given buffer will not be changed, and the bytes are not
+     * copied, so the buffer must not be modified after.
+     */
+    public static BlockReader parseFrom(ByteBuffer buffer, BlockEncoding encoding)
+        throws IOException {
+      ByteBuffer buf = buffer.slice();
+      int size = buf.remaining();
+      if (size < BlockWriter.KV_SIZE_LEN + BlockWriter.CHECKSUM_LEN) {
+        throw new IOException("Invalid block size: " + size);
+      }
+      int kvCount = buf.getInt(0);
+      int checksumOffset = size - BlockWriter.CHECKSUM_LEN;
+
+      ByteBuffer checked = buf.duplicate();
+      checked.position(BlockWriter.KV_SIZE_LEN);
+      checked.limit(checksumOffset);
+      CRC32 crc32 = new CRC32();
+      crc32.update(checked);
+      if (buf.getInt(checksumOffset) != (int) crc32.getValue()) {
+        throw new IOException("Checksum mismatch of the block");
+      }
 
-      return new BlockReader(kvBuf);
+      if (size < BlockWriter.KV_SIZE_LEN + BlockWriter.RESTART_LEN + BlockWriter.CHECKSUM_LEN) {
+        throw new IOException("Block mis-encoded, no room for the restart points");
+      }
+      int restartCount = buf.getInt(checksumOffset - BlockWriter.RESTART_LEN);
+      int entriesEnd = checksumOffset - BlockWriter.RESTART_LEN;
+      if (restartCount < 0 || restartCount > entriesEnd / BlockWriter.RESTART_LEN) {
+        throw new IOException("Block mis-encoded, restartCount: " + restartCount);
+      }
+      entriesEnd -= BlockWriter.RESTART_LEN * restartCount;
+      int expectedRestartCount =
+          (kvCount + BlockEncoding.RESTART_INTERVAL - 1) / BlockEncoding.RESTART_INTERVAL;
+      if (kvCount < 0 || restartCount != expectedRestartCount
+          || entriesEnd < BlockWriter.KV_SIZE_LEN) {
+        throw new IOException("Block mis-encoded, kvCount: " + kvCount + ", restartCount: "
+                              + restartCount);
+      }
+      return new BlockReader(buf, encoding, kvCount, restartCount, entriesEnd);
     }
 
-    public List<KeyValue> getKeyValues() {
+    /**
+     * Decode all the key values of the block.
+     */
+    public List<KeyValue> getKeyValues() throws IOException {
+      List<KeyValue> kvBuf = new ArrayList<>(kvCount);
+      for (Iter<KeyValue> it = iterator(); it.hasNext(); ) {
+        kvBuf.add(it.next());
+      }
       return kvBuf;
     }
+
+    public SeekIter<KeyValue> iterator() {
+      return new BlockIter();
+    }
+
+    /**
+     * @return the iterator from the last key value to the first, whose seekTo seeks to the largest
+     * key value which is less than or equal to the target.
+     */
+    public SeekIter<KeyValue> descendingIterator() {
+      return new DescendingBlockIter();
+    }
+
+    private int getRestartOffset(int index) {
+      return buf.getInt(entriesEnd + index * BlockWriter.RESTART_LEN);
+    }
+
+    /**
+     * Decodes the key values one by one, and compares them in place while seeking. Seeking binary
+     * searches the restart points first, so it only decodes log(restartCount) + RESTART_INTERVAL
+     * entries at most.
+     * <p>
+     * The key values returned by {@link #next()} are views over the block buffer. In NONE encoding
+     * nothing is copied; in PREFIX encoding the key is rebuilt in a reused buffer, so only the key
+     * of the returned key value is copied.
+     */
+    private class BlockIter implements SeekIter<KeyValue> {
+      private final ByteBuffer in = buf.duplicate();
+      private int decodedCount;
+      // The key of the current entry, rebuilt in PREFIX encoding only.
+      private byte[] key = encoding == BlockEncoding.PREFIX ? new byte[64] : null;
+      // The key offset in the block buffer, in NONE encoding only.
+      private int keyOffset;
+      private int keyLen;
+      private byte op;
+      private long sequenceId;
+      private int valueOffset;
+      private int valueLen;
+      // Whether the current entry is decoded but not returned by next() yet.
+      private boolean pending;
+
+      BlockIter() {
+        in.position(BlockWriter.KV_SIZE_LEN);
+      }
+
+      private void seekToRestart(int index) throws IOException {
+        int offset = getRestartOffset(index);
+        if (offset < BlockWriter.KV_SIZE_LEN || offset >= entriesEnd) {
+          throw new IOException("Block mis-encoded, restart offset: " + offset);
+        }
+        in.position(offset);
+        decodedCount = index * BlockEncoding.RESTART_INTERVAL;
+        keyLen = 0;
+        pending = false;
+      }
+
+      private void decodeNext() throws IOException {
+        int shared, suffixLen;
+        if (encoding == BlockEncoding.PREFIX) {
+          shared = Bytes.readVarInt(in);
+          suffixLen = Bytes.readVarInt(in);
+          valueLen = Bytes.readVarInt(in);
+        } else {
+          shared = 0;
+          suffixLen = in.getInt() - KeyValue.OP_SIZE - KeyValue.SEQ_ID_SIZE;
+          valueLen = in.getInt();
+        }
+        if (shared > keyLen || suffixLen < 0 || valueLen < 0 || entriesEnd - in.position()
+            < suffixLen + KeyValue.OP_SIZE + KeyValue.SEQ_ID_SIZE + valueLen) {
+          throw new IOException("Block mis-encoded, shared: " + shared + ", suffixLen: "
+                                + suffixLen + ", valueLen: " + valueLen);
+        }
+        if (key == null) {
+          keyOffset = in.position();
+          in.position(keyOffset + suffixLen);
+        } else {
+          if (shared + suffixLen > key.length) {
+            key = Arrays.copyOf(key, Math.max(key.length * 2, shared + suffixLen));
+          }
+          in.get(key, shared, suffixLen);
+        }
+        keyLen = shared + suffixLen;
+        op = in.get();
+        sequenceId = in.getLong();
+        valueOffset = in.position();
+        in.position(valueOffset + valueLen);
+        decodedCount++;
+      }
+
+      /**
+       * Compare the current entry with the target, in the same order as
+       * {@link KeyValue#compareTo(KeyValue)}.
+       */
+      private int compareCurrent(KeyValue target) {
+        byte[] targetKey = target.getKey();
+        int ret = key == null
+            ? Bytes.compare(buf, keyOffset, keyLen, targetKey, 0, targetKey.length)
+            : Bytes.compare(key, 0, keyLen, targetKey, 0, targetKey.length);
+        if (ret != 0) {
+          return ret;
+        }
+        if (sequenceId != target.getSequenceId()) {
+          return sequenceId > target.getSequenceId() ? -1 : 1;
+        }
+        byte targetOp = target.getOp().getCode();
+        if (op != targetOp) {
+          return op > targetOp ? -1 : 1;
+        }
+        return 0;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return pending || decodedCount < kvCount;
+      }
+
+      @Override
+      public KeyValue next() throws IOException {
+        if (!pending) {
+          if (decodedCount >= kvCount) {
+            return null;
+          }
+          decodeNext();
+        }
+        pending = false;
+        if (key == null) {
+          return KeyValue.createView(buf, keyOffset, keyLen, valueOffset, valueLen,
+            Op.code2Op(op), sequenceId);
+        }
+        return KeyValue.createView(Arrays.copyOf(key, keyLen), buf, valueOffset, valueLen,
+          Op.code2Op(op), sequenceId);
+      }
+
+      @Override
+      public void seekTo(KeyValue target) throws IOException {
+        pending = false;
+        if (restartCount == 0) {
+          return;
+        }
+        // Find the last restart point which is less than the target, the target can only be after
+        // it. If there's none, the target is before the first key value.
+        int left = 0, right = restartCount - 1;
+        while (left < right) {
+          int mid = (left + right + 1) >>> 1;
+          seekToRestart(mid);
+          decodeNext();
+          if (compareCurrent(target) < 0) {
+            left = mid;
+          } else {
+            right = mid - 1;
+          }
+        }
+        seekToRestart(left);
+        while (decodedCount < kvCount) {
+          decodeNext();
+          if (compareCurrent(target) >= 0) {
+            pending = true;
+            return;
+          }
+        }
+      }
+    }
+
+    /**
+     * The entries can only be decoded forward, so it decodes one restart interval at a time, at
+     * most RESTART_INTERVAL entries, and returns them backward, then moves to the previous
+     * interval.
+     */
+    private class DescendingBlockIter implements SeekIter<KeyValue> {
+      private final BlockIter forward = new BlockIter();
+      private final List<KeyValue> interval = new ArrayList<>(BlockEncoding.RESTART_INTERVAL);
+      // The restart index of the decoded interval.
+      private int restart;
+      // The position in the interval of the next key value to return.
+      private int pos;
+
+      DescendingBlockIter() {
+        restart = restartCount;
+        pos = -1;
+      }
+
+      /**
+       * Decode the interval of the restart point, and keep the key values not greater than the
+       * target only, null means keeping all of them.
+       */
+      private void decodeInterval(int index, KeyValue target) throws IOException {
+        restart = index;
+        interval.clear();
+        forward.seekToRestart(index);
+        int end = Math.min(kvCount, (index + 1) * BlockEncoding.RESTART_INTERVAL);
+        while (forward.decodedCount < end) {
+          KeyValue kv = forward.next();
+          if (target != null && kv.compareTo(target) > 0) {
+            break;
+          }
+          interval.add(kv);
+        }
+        pos = interval.size() - 1;
+      }
+
+      @Override
+      public boolean hasNext() throws IOException {
+        while (pos < 0) {
+          if (restart == 0) {
+            return false;
+          }
+          decodeInterval(restart - 1, null);
+        }
+        return true;
+      }
+
+      @Override
+      public KeyValue next() throws IOException {
+        if (!hasNext()) {
+          return null;
+        }
+        return interval.get(pos--);
+      }
+
+      @Override
+      public void seekTo(KeyValue target) throws IOException {
+        restart = 0;
+        pos = -1;
+        if (restartCount == 0) {
+          return;
+        }
+        // Find the last restart point which is less than or equal to the target. If there's
+        // none, all the key values are greater than the target.
+        int left = 0, right = restartCount - 1;
+        while (left < right) {
+          int mid = (left + right + 1) >>> 1;
+          forward.seekToRestart(mid);
+          forward.decodeNext();
+          if (forward.compareCurrent(target) <= 0) {
+            left = mid;
+          } else {
+            right = mid - 1;
+          }
+        }
+        decodeInterval(left, target);
+      }
+    }
   }
 
   public static class DiskFileWriter implements Closeable {
@@ -311,22 +919,58 @@ public class DiskFile implements Closeable {
     private int blockCount = 0;
     private long blockIndexOffset = 0;
     private long blockIndexSize = 0;
+    private long fileMetaOffset = 0;
+    private long fileMetaSize = 0;
+    private int level;
+    private Compression compression;
+    private BlockEncoding encoding;
+    private FileMeta fileMeta = new FileMeta();
+    private RateLimiter rateLimiter;
+    private RateLimiter.Priority priority;
 
     public DiskFileWriter(String fname) throws IOException {
+      this(fname, 0);
+    }
+
+    public DiskFileWriter(String fname, int level) throws IOException {
+      this(fname, level, Compression.NONE, BlockEncoding.NONE);
+    }
+
+    /**
+     * @param level       the level of the disk file in the LSM tree, flushed files are in level 0.
+     * @param compression the codec to compress the data blocks.
+     * @param encoding    how to encode the key values inside the data blocks.
+     */
+    public DiskFileWriter(String fname, int level, Compression compression,
+        BlockEncoding encoding) throws IOException {
       this.fname = fname;
+      this.level = level;
+      this.compression = compression;
+      this.encoding = encoding;
 
       File f = new File(this.fname);
       f.createNewFile();
       out = new FileOutputStream(f, true);
       currentOffset = 0;
       indexWriter = new BlockIndexWriter();
-      currentWriter = new BlockWriter();
+      currentWriter = new BlockWriter(encoding);
+    }
+
+    /**
+     * Limit the rate of writing the blocks, by default the writer is unlimited.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter, RateLimiter.Priority priority) {
+      this.rateLimiter = rateLimiter;
+      this.priority = priority;
     }
 
     private void switchNextBlockWriter() throws IOException {
       assert currentWriter.getLastKV() != null;
 
-      byte[] buffer = currentWriter.serialize();
+      byte[] buffer = currentWriter.serialize(compression);
+      if (rateLimiter != null) {
+        rateLimiter.request(buffer.length, priority);
+      }
       out.write(buffer);
       indexWriter.append(currentWriter.getLastKV(), currentOffset, buffer.length,
         currentWriter.getBloomFilter());
@@ -335,7 +979,7 @@ public class DiskFile implements Closeable {
       blockCount += 1;
 
       // switch to the next block.
-      currentWriter = new BlockWriter();
+      currentWriter = new BlockWriter(encoding);
     }
 
     public void append(KeyValue kv) throws IOException {
@@ -344,11 +988,12 @@ public class DiskFile implements Closeable {
       assert kv.getSerializeSize() + BlockWriter.KV_SIZE_LEN + BlockWriter.CHECKSUM_LEN < BLOCK_SIZE_UP_LIMIT;
 
       if ((currentWriter.getKeyValueCount() > 0)
-          && (kv.getSerializeSize() + currentWriter.size() >= BLOCK_SIZE_UP_LIMIT)) {
+          && (currentWriter.sizeAfterAppend(kv) > BLOCK_SIZE_UP_LIMIT)) {
         switchNextBlockWriter();
       }
 
       currentWriter.append(kv);
+      fileMeta.append(kv);
     }
 
     public void appendIndex() throws IOException {
@@ -365,7 +1010,19 @@ public class DiskFile implements Closeable {
       currentOffset += buffer.length;
     }
 
+    private void appendFileMeta() throws IOException {
+      byte[] buffer = fileMeta.toBytes();
+      fileMetaOffset = currentOffset;
+      fileMetaSize = buffer.length;
+
+      out.write(buffer);
+
+      currentOffset += buffer.length;
+    }
+
     public void appendTrailer() throws IOException {
+      appendFileMeta();
+
       fileSize = currentOffset + TRAILER_SIZE;
 
       // fileSize(8B)
@@ -384,11 +1041,44 @@ public class DiskFile implements Closeable {
       buffer = Bytes.toBytes(blockIndexSize);
       out.write(buffer);
 
+      // fileMetaOffset(8B)
+      buffer = Bytes.toBytes(fileMetaOffset);
+      out.write(buffer);
+
+      // fileMetaSize(8B)
+      buffer = Bytes.toBytes(fileMetaSize);
+      out.write(buffer);
+
+      // level(4B)
+      buffer = Bytes.toBytes(level);
+      out.write(buffer);
+
+      // compression(1B)
+      out.write(compression.getCode());
+
+      // encoding(1B)
+      out.write(encoding.getCode());
+
+      // formatVersion(4B)
+      buffer = Bytes.toBytes(FORMAT_VERSION);
+      out.write(buffer);
+
       // DISK_FILE_MAGIC(8B)
       buffer = Bytes.toBytes(DISK_FILE_MAGIC);
       out.write(buffer);
     }
 
+    /**
+     * @return the estimated size of the file if we finish writing it now.
+     */
+    public long size() {
+      return currentOffset + currentWriter.size() + TRAILER_SIZE;
+    }
+
+    public long getKeyValueCount() {
+      return fileMeta.getKeyValueCount();
+    }
+
     public void close() throws IOException {
       if (out != null) {
         try {
@@ -405,37 +1095,47 @@ public class DiskFile implements Closeable {
   public void open(String filename) throws IOException {
     this.fname = filename;
 
-    File f = new File(fname);
-    this.in = new RandomAccessFile(f, "r");
-
-    this.fileSize = f.length();
-    assert fileSize > TRAILER_SIZE;
-    in.seek(fileSize - TRAILER_SIZE);
-
-    byte[] buffer = new byte[8];
-    assert in.read(buffer) == buffer.length;
-    assert this.fileSize == Bytes.toLong(buffer);
-
-    buffer = new byte[4];
-    assert in.read(buffer) == buffer.length;
-    this.blockCount = Bytes.toInt(buffer);
+    this.channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ);
+    this.fileSize = channel.size();
+    if (readMode == ReadMode.MMAP && fileSize <= Integer.MAX_VALUE) {
+      this.mappedBuf = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+    }
 
-    buffer = new byte[8];
-    assert in.read(buffer) == buffer.length;
-    this.blockIndexOffset = Bytes.toLong(buffer);
+    // Check the magic and the version first, the rest of the trailer depends on them.
+    long magic = fileSize >= 8 ? read(fileSize - 8, 8).getLong() : 0;
+    if (magic == LEGACY_DISK_FILE_MAGIC) {
+      throw new IOException("Unsupported disk file format, the file is written by a version older "
+                            + "than format version " + FORMAT_VERSION + ", file: " + fname);
+    }
+    if (magic != DISK_FILE_MAGIC || fileSize < TRAILER_SIZE) {
+      throw new IOException("Invalid disk file magic, file: " + fname);
+    }
+    int formatVersion = read(fileSize - 12, 4).getInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported disk file format version: " + formatVersion
+                            + ", expected: " + FORMAT_VERSION + ", file: " + fname);
+    }
 
-    buffer = new byte[8];
-    assert in.read(buffer) == buffer.length;
-    this.blockIndexSize = Bytes.toLong(buffer);
+    ByteBuffer trailer = read(fileSize - TRAILER_SIZE, TRAILER_SIZE);
+    long trailerFileSize = trailer.getLong();
+    if (trailerFileSize != fileSize) {
+      throw new IOException("File size mismatch, fileSize: " + fileSize + ", fileSize in trailer: "
+                            + trailerFileSize + ", file: " + fname);
+    }
+    this.blockCount = trailer.getInt();
+    this.blockIndexOffset = trailer.getLong();
+    this.blockIndexSize = trailer.getLong();
+    this.fileMetaOffset = trailer.getLong();
+    this.fileMetaSize = trailer.getLong();
+    this.level = trailer.getInt();
+    this.compression = Compression.code2Compression(trailer.get());
+    this.encoding = BlockEncoding.code2Encoding(trailer.get());
 
-    buffer = new byte[8];
-    assert in.read(buffer) == buffer.length;
-    assert DISK_FILE_MAGIC == Bytes.toLong(buffer);
+    this.fileMeta = FileMeta.parseFrom(read(fileMetaOffset, (int) fileMetaSize));
 
     // TODO Maybe a large memory, and overflow
-    buffer = new byte[(int) blockIndexSize];
-    in.seek(blockIndexOffset);
-    assert in.read(buffer) == blockIndexSize;
+    byte[] buffer = new byte[(int) blockIndexSize];
+    read(blockIndexOffset, buffer.length).get(buffer);
 
     // TODO blockOffset may overflow.
     int offset = 0;
@@ -450,35 +1150,231 @@ public class DiskFile implements Closeable {
         + ", blockCount: " + blockCount;
   }
 
+  /**
+   * Read the bytes in [position, position + len) of the file, it's safe to call concurrently
+   * because we never move the position of the shared channel. In MMAP mode the returned buffer is
+   * a slice of the mapped file, so there's no copy at all.
+   */
+  private ByteBuffer read(long position, int len) throws IOException {
+    if (position < 0 || len < 0 || position + len > fileSize) {
+      throw new IOException("Invalid position: " + position + " or len: " + len + ", fileSize: "
+                            + fileSize + ", file: " + fname);
+    }
+    if (mappedBuf != null) {
+      ByteBuffer buf = mappedBuf.duplicate();
+      buf.position((int) position);
+      buf.limit((int) position + len);
+      return buf.slice();
+    }
+    ByteBuffer buf = ByteBuffer.allocate(len);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, position + buf.position()) < 0) {
+        throw new IOException("Unexpected EOF at " + (position + buf.position()) + ", file: "
+                              + fname);
+      }
+    }
+    buf.flip();
+    return buf;
+  }
+
   public String getFileName() {
     return fname;
   }
 
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  /**
+   * @return the level of the disk file in the LSM tree, flushed files are in level 0.
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  public FileMeta getFileMeta() {
+    return fileMeta;
+  }
+
+  /**
+   * @return the smallest key in the disk file.
+   */
+  public byte[] getFirstKey() {
+    return fileMeta.getFirstKey();
+  }
+
+  /**
+   * @return the largest key in the disk file.
+   */
+  public byte[] getLastKey() {
+    return fileMeta.getLastKey();
+  }
+
+  public long getMaxSequenceId() {
+    return fileMeta.getMaxSequenceId();
+  }
+
+  /**
+   * @return the last key of every block in order, which split the file into ranges of one block.
+   */
+  public List<byte[]> getBlockLastKeys() {
+    List<byte[]> keys = new ArrayList<>(blockMetaSet.size());
+    for (BlockMeta meta : blockMetaSet) {
+      keys.add(meta.getLastKV().getKey());
+    }
+    return keys;
+  }
+
+  public Compression getCompression() {
+    return compression;
+  }
+
+  public BlockEncoding getBlockEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Check whether the key range of the disk file intersects with [startKey, stopKey).
+   *
+   * @param startKey inclusive, byte[0] means negative infinity.
+   * @param stopKey  exclusive, byte[0] means positive infinity.
+   */
+  public boolean isOverlapping(byte[] startKey, byte[] stopKey) {
+    if (fileMeta.getKeyValueCount() == 0) {
+      return false;
+    }
+    if (startKey.length > 0 && Bytes.compare(getLastKey(), startKey) < 0) {
+      return false;
+    }
+    return stopKey.length == 0 || Bytes.compare(getFirstKey(), stopKey) < 0;
+  }
+
   private BlockReader load(BlockMeta meta) throws IOException {
-    in.seek(meta.getBlockOffset());
+    if (blockCache == null) {
+      return read(meta);
+    }
+    BlockReader reader = blockCache.getBlock(fname, meta.getBlockOffset());
+    if (reader == null) {
+      reader = read(meta);
+      // Charge the uncompressed size, which is the memory the parsed block really takes.
+      blockCache.cacheBlock(fname, meta.getBlockOffset(), reader, reader.getSerializeSize());
+    }
+    return reader;
+  }
 
+  private BlockReader read(BlockMeta meta) throws IOException {
     // TODO Maybe overflow.
-    byte[] buffer = new byte[(int) meta.getBlockSize()];
+    ByteBuffer buf = read(meta.getBlockOffset(), (int) meta.getBlockSize());
+    blocksRead.increment();
+    bytesRead.add(meta.getBlockSize());
+    return BlockReader.parseFrom(buf, compression, encoding);
+  }
+
+  /**
+   * Get the newest key value (either Put or Delete) of the given key in this file. Only the block
+   * which may have the key will be loaded, and it's skipped if its bloom filter says no.
+   *
+   * @return the newest key value, or null if no key value of the key in this file.
+   */
+  public KeyValue get(byte[] key) throws IOException {
+    return get(key, Long.MAX_VALUE);
+  }
 
-    assert in.read(buffer) == buffer.length;
-    return BlockReader.parseFrom(buffer, 0, buffer.length);
+  /**
+   * Get the newest key value of the given key in this file, whose sequence id is not greater than
+   * the read point.
+   */
+  public KeyValue get(byte[] key, long readPoint) throws IOException {
+    if (Bytes.compare(key, getFirstKey()) < 0 || Bytes.compare(key, getLastKey()) > 0) {
+      return null;
+    }
+    // The smallest key value among all the key values with the same key and a visible sequence id.
+    KeyValue target = KeyValue.createDelete(key, readPoint);
+    SortedSet<BlockMeta> tailSet = blockMetaSet.tailSet(BlockMeta.createSeekDummy(target));
+    if (tailSet.isEmpty()) {
+      return null;
+    }
+    BlockMeta meta = tailSet.first();
+    bloomChecks.increment();
+    if (!meta.mayContain(key)) {
+      bloomNegatives.increment();
+      return null;
+    }
+    SeekIter<KeyValue> it = load(meta).iterator();
+    it.seekTo(target);
+    KeyValue kv = it.hasNext() ? it.next() : null;
+    if (kv != null && kv.compareKey(key, 0, key.length) == 0) {
+      return kv;
+    }
+    bloomFalsePositives.increment();
+    return null;
+  }
+
+  /**
+   * Same as {@link #get(byte[], long)} for each of the keys not resolved yet, i.e. whose result is
+   * still null. The keys must be sorted, so the block index is walked once, and each block is
+   * loaded at most once no matter how many keys are in it.
+   *
+   * @param sortedKeys the keys in ascending order.
+   * @param results    the newest key value of each key is set at the same position.
+   * @return the count of the keys resolved by this file.
+   */
+  public int multiGet(List<byte[]> sortedKeys, long readPoint, KeyValue[] results)
+      throws IOException {
+    int resolved = 0;
+    Iterator<BlockMeta> metaIter = blockMetaSet.iterator();
+    BlockMeta meta = null;
+    SeekIter<KeyValue> blockIter = null;
+    for (int i = 0; i < sortedKeys.size(); i++) {
+      byte[] key = sortedKeys.get(i);
+      if (results[i] != null || Bytes.compare(key, getFirstKey()) < 0) {
+        continue;
+      }
+      if (Bytes.compare(key, getLastKey()) > 0) {
+        break;
+      }
+      KeyValue target = KeyValue.createDelete(key, readPoint);
+      // The block which may have the key is the first one whose last key value >= target.
+      while (meta == null || meta.getLastKV().compareTo(target) < 0) {
+        if (!metaIter.hasNext()) {
+          return resolved;
+        }
+        meta = metaIter.next();
+        blockIter = null;
+      }
+      bloomChecks.increment();
+      if (!meta.mayContain(key)) {
+        bloomNegatives.increment();
+        continue;
+      }
+      if (blockIter == null) {
+        blockIter = load(meta).iterator();
+      }
+      blockIter.seekTo(target);
+      KeyValue kv = blockIter.hasNext() ? blockIter.next() : null;
+      if (kv != null && kv.compareKey(key, 0, key.length) == 0) {
+        results[i] = kv;
+        resolved++;
+      } else {
+        bloomFalsePositives.increment();
+      }
+    }
+    return resolved;
   }
 
   private class InternalIterator implements SeekIter<KeyValue> {
 
-    private int currentKVIndex = 0;
-    private BlockReader currentReader;
+    private SeekIter<KeyValue> currentIter;
     private Iterator<BlockMeta> blockMetaIter;
 
     public InternalIterator() {
-      currentReader = null;
+      currentIter = null;
       blockMetaIter = blockMetaSet.iterator();
     }
 
     private boolean nextBlockReader() throws IOException {
       if (blockMetaIter.hasNext()) {
-        currentReader = load(blockMetaIter.next());
-        currentKVIndex = 0;
+        currentIter = load(blockMetaIter.next()).iterator();
         return true;
       } else {
         return false;
@@ -487,41 +1383,30 @@ public class DiskFile implements Closeable {
 
     @Override
     public boolean hasNext() throws IOException {
-      if (currentReader == null) {
-        return nextBlockReader();
-      } else {
-        if (currentKVIndex < currentReader.getKeyValues().size()) {
-          return true;
-        } else {
-          return nextBlockReader();
+      while (currentIter == null || !currentIter.hasNext()) {
+        if (!nextBlockReader()) {
+          return false;
         }
       }
+      return true;
     }
 
     @Override
     public KeyValue next() throws IOException {
-      return currentReader.getKeyValues().get(currentKVIndex++);
+      return currentIter.next();
     }
 
     @Override
     public void seekTo(KeyValue target) throws IOException {
       // Locate the smallest block meta which has the lastKV >= target.
       blockMetaIter = blockMetaSet.tailSet(BlockMeta.createSeekDummy(target)).iterator();
-      currentReader = null;
+      currentIter = null;
       if (blockMetaIter.hasNext()) {
-        currentReader = load(blockMetaIter.next());
-        currentKVIndex = 0;
+        currentIter = load(blockMetaIter.next()).iterator();
         // Locate the smallest KV which is greater than or equals to the given KV. We're sure that
-        // we can find the currentKVIndex, because lastKV of the block is greater than or equals
-        // to the target KV.
-        while (currentKVIndex < currentReader.getKeyValues().size()) {
-          KeyValue curKV = currentReader.getKeyValues().get(currentKVIndex);
-          if (curKV.compareTo(target) >= 0) {
-            break;
-          }
-          currentKVIndex++;
-        }
-        if (currentKVIndex >= currentReader.getKeyValues().size()) {
+        // we can find it, because lastKV of the block is greater than or equals to the target KV.
+        currentIter.seekTo(target);
+        if (!currentIter.hasNext()) {
           throw new IOException("Data block mis-encoded, lastKV of the currentReader >= kv, but " +
                                 "we found all kv < target");
         }
@@ -533,10 +1418,101 @@ public class DiskFile implements Closeable {
     return new InternalIterator();
   }
 
+  /**
+   * Iterates the blocks from the last to the first, and each block backward.
+   */
+  private class DescendingIterator implements SeekIter<KeyValue> {
+
+    private SeekIter<KeyValue> currentIter;
+    private Iterator<BlockMeta> blockMetaIter;
+
+    public DescendingIterator() {
+      currentIter = null;
+      blockMetaIter = blockMetaSet.descendingIterator();
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      while (currentIter == null || !currentIter.hasNext()) {
+        if (!blockMetaIter.hasNext()) {
+          return false;
+        }
+        currentIter = load(blockMetaIter.next()).descendingIterator();
+      }
+      return true;
+    }
+
+    @Override
+    public KeyValue next() throws IOException {
+      return hasNext() ? currentIter.next() : null;
+    }
+
+    @Override
+    public void seekTo(KeyValue target) throws IOException {
+      // The largest KV <= target is in the smallest block which has the lastKV >= target, unless
+      // all the KVs of that block are greater than the target, then it's the lastKV of the
+      // previous block. If no block has the lastKV >= target, it's the lastKV of the file.
+      BlockMeta meta = blockMetaSet.ceiling(BlockMeta.createSeekDummy(target));
+      currentIter = null;
+      if (meta == null) {
+        blockMetaIter = blockMetaSet.descendingIterator();
+        return;
+      }
+      blockMetaIter = blockMetaSet.headSet(meta, false).descendingIterator();
+      currentIter = load(meta).descendingIterator();
+      currentIter.seekTo(target);
+    }
+  }
+
+  /**
+   * @return the iterator from the last key value to the first, whose seekTo seeks to the largest
+   * key value which is less than or equal to the target.
+   */
+  public SeekIter<KeyValue> descendingIterator() {
+    return new DescendingIterator();
+  }
+
+  void retain() {
+    refCount.incrementAndGet();
+  }
+
+  /**
+   * Release a reference from a version, close the file once the last reference is gone, and
+   * archive it if it's obsolete.
+   */
+  void release() throws IOException {
+    int count = refCount.decrementAndGet();
+    assert count >= 0;
+    if (count == 0) {
+      close();
+      if (obsolete) {
+        archive();
+      }
+    }
+  }
+
+  /**
+   * Mark the file compacted away, it will be archived once no reader uses it.
+   */
+  void markObsolete() {
+    this.obsolete = true;
+  }
+
+  private void archive() {
+    File file = new File(fname);
+    File archiveFile = new File(fname + DiskStore.FILE_NAME_ARCHIVE_SUFFIX);
+    if (!file.renameTo(archiveFile)) {
+      LOG.error("Rename " + fname + " to " + archiveFile.getName() + " failed.");
+    }
+    if (blockCache != null) {
+      blockCache.evictBlocksByFile(fname);
+    }
+  }
+
   @Override
   public void close() throws IOException {
-    if (in != null) {
-      in.close();
+    if (channel != null) {
+      channel.close();
     }
   }
 }
@@ -1,7 +1,9 @@
 package org.apache.minibase;
 
 import org.apache.log4j.Logger;
+import org.apache.minibase.CompactionPolicy.Compaction;
 import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.KeyValue.Op;
 import org.apache.minibase.MStore.SeekIter;
 import org.apache.minibase.MiniBase.Compactor;
 import org.apache.minibase.MiniBase.Flusher;
@@ -10,10 +12,15 @@ import org.apache.minibase.MiniBase.Iter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -22,19 +29,67 @@ public class DiskStore implements Closeable {
 
   private static final Logger LOG = Logger.getLogger(DiskStore.class);
   private static final String FILE_NAME_TMP_SUFFIX = ".tmp";
-  private static final String FILE_NAME_ARCHIVE_SUFFIX = ".archive";
+  static final String FILE_NAME_ARCHIVE_SUFFIX = ".archive";
   private static final Pattern DATA_FILE_RE = Pattern.compile("data\\.([0-9]+)"); // data.1
 
   private String dataDir;
-  private List<DiskFile> diskFiles;
+  // The flushes and compactions install a new version under the lock, the readers pin the
+  // current version without locking.
+  private final Object versionLock = new Object();
+  private volatile Version current = new Version(new ArrayList<>(), 0);
 
   private int maxDiskFiles;
   private volatile AtomicLong maxFileId;
+  private BlockCache blockCache;
+  private DiskFile.ReadMode readMode;
+  private Compression compression;
+  private BlockEncoding blockEncoding;
+  private Metrics metrics;
+  private RateLimiter rateLimiter;
 
   public DiskStore(String dataDir, int maxDiskFiles) {
-    this.dataDir = dataDir;
-    this.diskFiles = new ArrayList<>();
-    this.maxDiskFiles = maxDiskFiles;
+    this(new Config().setDataDir(dataDir).setMaxDiskFiles(maxDiskFiles), null);
+  }
+
+  /**
+   * @param blockCache the block cache shared by all the disk files, null means no block cache.
+   */
+  public DiskStore(Config conf, BlockCache blockCache) {
+    this(conf, blockCache, new Metrics());
+  }
+
+  /**
+   * @param metrics where the flushes, compactions and block reads are recorded.
+   */
+  public DiskStore(Config conf, BlockCache blockCache, Metrics metrics) {
+    this.metrics = metrics;
+    this.dataDir = conf.getDataDir();
+    this.maxDiskFiles = conf.getMaxDiskFiles();
+    this.readMode = conf.getDiskFileReadMode();
+    this.compression = conf.getCompression();
+    this.blockEncoding = conf.getBlockEncoding();
+    this.blockCache = blockCache;
+    this.rateLimiter = new RateLimiter(conf.getIoRateLimit());
+  }
+
+  /**
+   * Create the writer of a new disk file, whose blocks are encoded and compressed as configured.
+   */
+  public DiskFileWriter createDiskFileWriter(String fileName, int level) throws IOException {
+    return createDiskFileWriter(fileName, level, RateLimiter.Priority.LOW);
+  }
+
+  /**
+   * @param priority the priority of writing the blocks in the shared rate limiter, the flushes are
+   *                 high priority, and the compactions are low priority.
+   */
+  public DiskFileWriter createDiskFileWriter(String fileName, int level,
+      RateLimiter.Priority priority) throws IOException {
+    DiskFileWriter writer = new DiskFileWriter(fileName, level, compression, blockEncoding);
+    if (rateLimiter.isLimited()) {
+      writer.setRateLimiter(rateLimiter, priority);
+    }
+    return writer;
   }
 
   private File[] listDiskFiles() {
@@ -60,15 +115,50 @@ public class DiskStore implements Closeable {
   }
 
   public void addDiskFile(DiskFile df) {
-    synchronized (diskFiles) {
-      diskFiles.add(df);
+    synchronized (versionLock) {
+      List<DiskFile> files = new ArrayList<>(current.getFiles());
+      files.add(df);
+      sortByLevel(files);
+      installVersion(files, current.getCompactedReadPoint());
+    }
+  }
+
+  /**
+   * Switch to a new version of the files, the files removed from the current version are closed
+   * once the readers of the current version release it.
+   */
+  private void installVersion(List<DiskFile> files, long compactedReadPoint) {
+    assert Thread.holdsLock(versionLock);
+    Version prev = current;
+    current = new Version(files, compactedReadPoint);
+    try {
+      prev.release();
+    } catch (IOException e) {
+      LOG.error("Failed to release the disk files of the previous version: ", e);
+    }
+  }
+
+  /**
+   * Pin the current version, which must be released after reading its files.
+   */
+  public Version pinVersion() {
+    while (true) {
+      Version version = current;
+      // Failed only if the version was replaced and released meanwhile, retry the new one.
+      if (version.retain()) {
+        return version;
+      }
     }
   }
 
   public synchronized void addDiskFile(String filename) throws IOException {
-    DiskFile df = new DiskFile();
+    addDiskFile(openDiskFile(filename));
+  }
+
+  public DiskFile openDiskFile(String filename) throws IOException {
+    DiskFile df = new DiskFile(blockCache, readMode, metrics);
     df.open(filename);
-    addDiskFile(df);
+    return df;
   }
 
   public synchronized String getNextDiskFileName() {
@@ -76,56 +166,160 @@ public class DiskStore implements Closeable {
   }
 
   public void open() throws IOException {
-    File[] files = listDiskFiles();
-    for (File f : files) {
-      DiskFile df = new DiskFile();
-      df.open(f.getAbsolutePath());
-      diskFiles.add(df);
+    List<DiskFile> diskFiles = new ArrayList<>();
+    for (File f : listDiskFiles()) {
+      diskFiles.add(openDiskFile(f.getAbsolutePath()));
+    }
+    sortByLevel(diskFiles);
+    synchronized (versionLock) {
+      installVersion(diskFiles, 0);
     }
     maxFileId = new AtomicLong(getMaxDiskId());
   }
 
+  /**
+   * @return all the disk files of the current version, ordered from the oldest to the newest. They
+   * may be closed at any time if the version is not pinned, so only their meta should be used.
+   */
   public List<DiskFile> getDiskFiles() {
-    synchronized (diskFiles) {
-      return new ArrayList<>(diskFiles);
-    }
+    return new ArrayList<>(current.getFiles());
   }
 
   public void removeDiskFiles(Collection<DiskFile> files) {
-    synchronized (diskFiles) {
-      diskFiles.removeAll(files);
+    replaceDiskFiles(files, new ArrayList<>());
+  }
+
+  /**
+   * Replace the compacted files with the compacted results in one step. The results take the place
+   * of the oldest compacted file, because they're older than the files flushed during compaction.
+   */
+  public void replaceDiskFiles(Collection<DiskFile> compactedFiles, List<DiskFile> results) {
+    replaceDiskFiles(compactedFiles, results, 0);
+  }
+
+  /**
+   * @param readPoint the read point when the compaction started, the compaction only kept the
+   *                  versions visible to it and the snapshots.
+   */
+  public void replaceDiskFiles(Collection<DiskFile> compactedFiles, List<DiskFile> results,
+      long readPoint) {
+    synchronized (versionLock) {
+      List<DiskFile> diskFiles = new ArrayList<>(current.getFiles());
+      int index = diskFiles.size();
+      for (int i = 0; i < diskFiles.size(); i++) {
+        if (compactedFiles.contains(diskFiles.get(i))) {
+          index = i;
+          break;
+        }
+      }
+      diskFiles.removeAll(compactedFiles);
+      diskFiles.addAll(Math.min(index, diskFiles.size()), results);
+      sortByLevel(diskFiles);
+      // Archived once no reader uses them.
+      compactedFiles.forEach(DiskFile::markObsolete);
+      installVersion(diskFiles, Math.max(current.getCompactedReadPoint(), readPoint));
     }
   }
 
+  /**
+   * Data in a deeper level is older, and files in level 0 are flushed in the order of their
+   * sequence ids. So sorting by level (the deepest first) then by max sequence id keeps the disk
+   * files ordered from the oldest to the newest.
+   */
+  private static void sortByLevel(List<DiskFile> files) {
+    files.sort((a, b) -> {
+      if (a.getLevel() != b.getLevel()) {
+        return Integer.compare(b.getLevel(), a.getLevel());
+      }
+      return Long.compare(a.getMaxSequenceId(), b.getMaxSequenceId());
+    });
+  }
+
+  /**
+   * @return the max sequence id of all the key values in the disk files.
+   */
+  public long getMaxSequenceId() {
+    long maxSequenceId = 0;
+    for (DiskFile df : getDiskFiles()) {
+      maxSequenceId = Math.max(maxSequenceId, df.getMaxSequenceId());
+    }
+    return maxSequenceId;
+  }
+
+  public Metrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * @see Version#getCompactedReadPoint()
+   */
+  public long getCompactedReadPoint() {
+    return current.getCompactedReadPoint();
+  }
+
+  public RateLimiter getRateLimiter() {
+    return this.rateLimiter;
+  }
+
   public long getMaxDiskFiles() {
     return this.maxDiskFiles;
   }
 
+  /**
+   * Release the current version, the files are closed once the readers release their versions.
+   */
   @Override
   public void close() throws IOException {
-    IOException closedException = null;
-    for (DiskFile df : diskFiles) {
-      try {
-        df.close();
-      } catch (IOException e) {
-        closedException = e;
-      }
-    }
-    if (closedException != null) {
-      throw closedException;
+    Version prev;
+    synchronized (versionLock) {
+      prev = current;
+      current = new Version(new ArrayList<>(), prev.getCompactedReadPoint());
     }
+    prev.release();
   }
 
   public SeekIter<KeyValue> createIterator(List<DiskFile> diskFiles) throws IOException {
+    return createIterator(diskFiles, false);
+  }
+
+  /**
+   * @param descending iterate from the largest key value to the smallest.
+   */
+  public SeekIter<KeyValue> createIterator(List<DiskFile> diskFiles, boolean descending)
+      throws IOException {
     List<SeekIter<KeyValue>> iters = new ArrayList<>();
-    diskFiles.forEach(df -> iters.add(df.iterator()));
-    return new MultiIter(iters);
+    diskFiles.forEach(df -> iters.add(descending ? df.descendingIterator() : df.iterator()));
+    return new MultiIter(iters, descending);
   }
 
   public SeekIter<KeyValue> createIterator() throws IOException {
     return createIterator(getDiskFiles());
   }
 
+  public SeekIter<KeyValue> createIterator(byte[] startKey, byte[] stopKey) throws IOException {
+    return createIterator(getDiskFiles(), startKey, stopKey);
+  }
+
+  /**
+   * Create the iterator over the disk files whose key range intersects with [startKey, stopKey),
+   * other files are skipped without reading any block.
+   */
+  public SeekIter<KeyValue> createIterator(List<DiskFile> diskFiles, byte[] startKey,
+      byte[] stopKey) throws IOException {
+    return createIterator(diskFiles, startKey, stopKey, false);
+  }
+
+  public SeekIter<KeyValue> createIterator(List<DiskFile> diskFiles, byte[] startKey,
+      byte[] stopKey, boolean descending) throws IOException {
+    List<DiskFile> files = new ArrayList<>();
+    for (DiskFile df : diskFiles) {
+      if (df.isOverlapping(startKey, stopKey)) {
+        files.add(df);
+      }
+    }
+    return createIterator(files, descending);
+  }
+
   public static class DefaultFlusher implements Flusher {
     private DiskStore diskStore;
 
@@ -135,10 +329,17 @@ public class DiskStore implements Closeable {
 
     @Override
     public void flush(Iter<KeyValue> it) throws IOException {
+      prepareFlush(it).run();
+    }
+
+    @Override
+    public Runnable prepareFlush(Iter<KeyValue> it) throws IOException {
+      long startTime = System.currentTimeMillis();
       String fileName = diskStore.getNextDiskFileName();
       String fileTempName = fileName + FILE_NAME_TMP_SUFFIX;
       try {
-        try (DiskFileWriter writer = new DiskFileWriter(fileTempName)) {
+        try (DiskFileWriter writer = diskStore.createDiskFileWriter(fileTempName, 0,
+            RateLimiter.Priority.HIGH)) {
           while (it.hasNext()) {
             writer.append(it.next());
           }
@@ -150,8 +351,12 @@ public class DiskStore implements Closeable {
           throw new IOException(
               "Rename " + fileTempName + " to " + fileName + " failed when flushing");
         }
-        // TODO any concurrent issue ?
-        diskStore.addDiskFile(fileName);
+        DiskFile df = diskStore.openDiskFile(fileName);
+        Metrics metrics = diskStore.getMetrics();
+        metrics.counter("flush.count").increment();
+        metrics.counter("flush.bytes").add(df.getFileSize());
+        metrics.histogram("flush.durationMs").update(System.currentTimeMillis() - startTime);
+        return () -> diskStore.addDiskFile(df);
       } finally {
         File f = new File(fileTempName);
         if (f.exists()) {
@@ -163,69 +368,347 @@ public class DiskStore implements Closeable {
 
   public static class DefaultCompactor extends Compactor {
     private DiskStore diskStore;
+    private CompactionPolicy policy;
+    private MVCC mvcc;
+    private int maxSubcompactions;
+    private ExecutorService subcompactionPool;
     private volatile boolean running = true;
 
     public DefaultCompactor(DiskStore diskStore) {
+      this(diskStore, new FullCompactionPolicy((int) diskStore.getMaxDiskFiles()));
+    }
+
+    public DefaultCompactor(DiskStore diskStore, CompactionPolicy policy) {
+      this(diskStore, policy, 1);
+    }
+
+    /**
+     * @param maxSubcompactions split a compaction into at most this number of key ranges, which
+     *                          are compacted in parallel.
+     */
+    public DefaultCompactor(DiskStore diskStore, CompactionPolicy policy, int maxSubcompactions) {
+      this(diskStore, policy, maxSubcompactions, null);
+    }
+
+    /**
+     * @param mvcc where to find the read point and the live snapshots, the compactions drop the
+     *             versions invisible to all of them. Null means keeping all the versions.
+     */
+    public DefaultCompactor(DiskStore diskStore, CompactionPolicy policy, int maxSubcompactions,
+        MVCC mvcc) {
       this.diskStore = diskStore;
+      this.mvcc = mvcc;
+      this.policy = policy;
+      this.maxSubcompactions = Math.max(1, maxSubcompactions);
+      if (this.maxSubcompactions > 1) {
+        this.subcompactionPool = Executors.newFixedThreadPool(this.maxSubcompactions, r -> {
+          Thread t = new Thread(r, "Subcompaction");
+          t.setDaemon(true);
+          return t;
+        });
+      }
       this.setDaemon(true);
     }
 
-    private void performCompact(List<DiskFile> filesToCompact) throws IOException {
-      String fileName = diskStore.getNextDiskFileName();
-      String fileTempName = fileName + FILE_NAME_TMP_SUFFIX;
+    private String finishOutput(DiskFileWriter writer, String fileTempName) throws IOException {
       try {
-        try (DiskFileWriter writer = new DiskFileWriter(fileTempName)) {
-          for (Iter<KeyValue> it = diskStore.createIterator(filesToCompact); it.hasNext();) {
-            writer.append(it.next());
+        writer.appendIndex();
+        writer.appendTrailer();
+      } finally {
+        writer.close();
+      }
+      String fileName = fileTempName.substring(0,
+        fileTempName.length() - FILE_NAME_TMP_SUFFIX.length());
+      File f = new File(fileTempName);
+      if (!f.renameTo(new File(fileName))) {
+        throw new IOException("Rename " + fileTempName + " to " + fileName + " failed");
+      }
+      return fileName;
+    }
+
+    /**
+     * Pick the keys to split the compaction into at most maxSubcompactions ranges. The candidates
+     * are the last keys of the blocks, so every range covers about the same number of blocks.
+     */
+    static List<byte[]> pickSplitKeys(List<DiskFile> files, int maxSubcompactions) {
+      List<byte[]> keys = new ArrayList<>();
+      for (DiskFile df : files) {
+        keys.addAll(df.getBlockLastKeys());
+      }
+      keys.sort(Bytes::compare);
+      List<byte[]> splitKeys = new ArrayList<>();
+      for (int i = 1; i < maxSubcompactions && !keys.isEmpty(); i++) {
+        byte[] key = keys.get(i * keys.size() / maxSubcompactions);
+        if (splitKeys.isEmpty() || Bytes.compare(splitKeys.get(splitKeys.size() - 1), key) < 0) {
+          splitKeys.add(key);
+        }
+      }
+      return splitKeys;
+    }
+
+    private static void deleteFiles(List<String> fileNames) {
+      for (String fileName : fileNames) {
+        File f = new File(fileName);
+        if (f.exists() && !f.delete()) {
+          LOG.error("Delete " + fileName + " failed.");
+        }
+      }
+    }
+
+    /**
+     * Compact the key values within [startKey, stopKey) of the input files, byte[0] means the
+     * range is unbounded. The finished output files are deleted if the compaction failed.
+     *
+     * @return the output files, ordered by key.
+     */
+    private List<String> compactRange(Compaction compaction, byte[] startKey, byte[] stopKey,
+        long[] retainedSequenceIds, boolean bottommost) throws IOException {
+      List<DiskFile> filesToCompact = new ArrayList<>();
+      for (DiskFile df : compaction.getInputs()) {
+        if (df.isOverlapping(startKey, stopKey)) {
+          filesToCompact.add(df);
+        }
+      }
+      List<String> outputs = new ArrayList<>();
+      DiskFileWriter writer = null;
+      String fileTempName = null;
+      boolean succeeded = false;
+      try {
+        SeekIter<KeyValue> merged = diskStore.createIterator(filesToCompact);
+        if (startKey.length > 0) {
+          merged.seekTo(KeyValue.createDelete(startKey, Long.MAX_VALUE));
+        }
+        Iter<KeyValue> it = merged;
+        CompactionIter compactionIter = null;
+        if (retainedSequenceIds != null) {
+          it = compactionIter = new CompactionIter(merged, retainedSequenceIds, bottommost);
+        }
+        KeyValue lastKV = null;
+        while (it.hasNext()) {
+          KeyValue kv = it.next();
+          if (stopKey.length > 0 && kv.compareKey(stopKey, 0, stopKey.length) >= 0) {
+            break;
           }
-          writer.appendIndex();
-          writer.appendTrailer();
+          // Switch to the next output file only at a new key, so the versions of one key are never
+          // split into two files, and the output files in the same level never overlap.
+          if (writer != null && writer.size() >= compaction.getMaxOutputFileSize()
+              && lastKV.compareKey(kv) != 0) {
+            outputs.add(finishOutput(writer, fileTempName));
+            writer = null;
+          }
+          if (writer == null) {
+            fileTempName = diskStore.getNextDiskFileName() + FILE_NAME_TMP_SUFFIX;
+            writer = diskStore.createDiskFileWriter(fileTempName, compaction.getOutputLevel());
+          }
+          writer.append(kv);
+          lastKV = kv;
         }
-        File f = new File(fileTempName);
-        if (!f.renameTo(new File(fileName))) {
-          throw new IOException("Rename " + fileTempName + " to " + fileName + " failed");
+        if (writer != null) {
+          outputs.add(finishOutput(writer, fileTempName));
+          writer = null;
+        }
+        if (compactionIter != null) {
+          diskStore.getMetrics().counter("compaction.droppedVersions")
+              .add(compactionIter.getDroppedCount());
+        }
+        succeeded = true;
+        return outputs;
+      } finally {
+        if (writer != null) {
+          writer.close();
+        }
+        if (fileTempName != null) {
+          File f = new File(fileTempName);
+          if (f.exists()) {
+            f.delete();
+          }
+        }
+        if (!succeeded) {
+          deleteFiles(outputs);
+        }
+      }
+    }
+
+    /**
+     * Compact the key ranges split by the given keys in parallel. The versions of one key always
+     * fall into the same range, so the outputs of the ranges never overlap with each other.
+     */
+    private List<String> compactRanges(Compaction compaction, List<byte[]> splitKeys,
+        long[] retainedSequenceIds, boolean bottommost) throws IOException {
+      List<Future<List<String>>> futures = new ArrayList<>();
+      for (int i = 0; i <= splitKeys.size(); i++) {
+        byte[] startKey = i == 0 ? Bytes.EMPTY_BYTES : splitKeys.get(i - 1);
+        byte[] stopKey = i == splitKeys.size() ? Bytes.EMPTY_BYTES : splitKeys.get(i);
+        futures.add(subcompactionPool.submit(
+          () -> compactRange(compaction, startKey, stopKey, retainedSequenceIds, bottommost)));
+      }
+      // Wait for all the ranges even if one of them failed or we're interrupted, so no output file
+      // is left behind by a running range.
+      List<String> outputs = new ArrayList<>();
+      IOException failure = null;
+      boolean interrupted = false;
+      for (Future<List<String>> future : futures) {
+        while (true) {
+          try {
+            outputs.addAll(future.get());
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (ExecutionException e) {
+            if (failure == null) {
+              failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                  : new IOException("Subcompaction failed", e.getCause());
+            }
+            break;
+          }
         }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+        if (failure == null) {
+          failure = new InterruptedIOException("Interrupted while compacting");
+        }
+      }
+      if (failure != null) {
+        deleteFiles(outputs);
+        throw failure;
+      }
+      return outputs;
+    }
 
-        // Rename the data files to archive files.
-        // TODO when rename the files, will we effect the scan ?
-        for (DiskFile df : filesToCompact) {
+    void performCompact(Compaction compaction) throws IOException {
+      long startTime = System.currentTimeMillis();
+      List<DiskFile> filesToCompact = compaction.getInputs();
+      long[] retainedSequenceIds = mvcc == null ? null : mvcc.getRetainedSequenceIds();
+      boolean bottommost = isBottommost(filesToCompact);
+      List<byte[]> splitKeys = maxSubcompactions > 1
+          ? pickSplitKeys(filesToCompact, maxSubcompactions) : new ArrayList<>();
+      List<String> outputs = splitKeys.isEmpty()
+          ? compactRange(compaction, Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES, retainedSequenceIds,
+            bottommost)
+          : compactRanges(compaction, splitKeys, retainedSequenceIds, bottommost);
+      List<DiskFile> compacted = new ArrayList<>();
+      try {
+        for (String fileName : outputs) {
+          compacted.add(diskStore.openDiskFile(fileName));
+        }
+      } catch (IOException e) {
+        for (DiskFile df : compacted) {
           df.close();
-          File file = new File(df.getFileName());
-          File archiveFile = new File(df.getFileName() + FILE_NAME_ARCHIVE_SUFFIX);
-          if (!file.renameTo(archiveFile)) {
-            LOG.error("Rename " + df.getFileName() + " to " + archiveFile.getName() + " failed.");
-          }
         }
-        diskStore.removeDiskFiles(filesToCompact);
+        deleteFiles(outputs);
+        throw e;
+      }
+      diskStore.replaceDiskFiles(filesToCompact, compacted,
+        retainedSequenceIds == null ? 0 : retainedSequenceIds[retainedSequenceIds.length - 1]);
+
+      Metrics metrics = diskStore.getMetrics();
+      metrics.counter("compaction.count").increment();
+      metrics.counter("compaction.subcompactions").add(splitKeys.size() + 1);
+      metrics.counter("compaction.bytesIn").add(totalSize(filesToCompact));
+      metrics.counter("compaction.bytesOut").add(totalSize(compacted));
+      metrics.histogram("compaction.durationMs").update(System.currentTimeMillis() - startTime);
+    }
 
-        // TODO any concurrent issue ?
-        diskStore.addDiskFile(fileName);
-      } finally {
-        File f = new File(fileTempName);
-        if (f.exists()) {
-          f.delete();
+    /**
+     * The compaction is the bottommost if no other disk file may have an older version of the keys
+     * in the inputs, then the delete markers are no longer needed once all the versions under them
+     * are dropped.
+     */
+    private boolean isBottommost(List<DiskFile> inputs) {
+      byte[] firstKey = null;
+      byte[] lastKey = null;
+      long maxSequenceId = 0;
+      for (DiskFile df : inputs) {
+        if (df.getFileMeta().getKeyValueCount() == 0) {
+          continue;
+        }
+        if (firstKey == null || Bytes.compare(df.getFirstKey(), firstKey) < 0) {
+          firstKey = df.getFirstKey();
+        }
+        if (lastKey == null || Bytes.compare(df.getLastKey(), lastKey) > 0) {
+          lastKey = df.getLastKey();
+        }
+        maxSequenceId = Math.max(maxSequenceId, df.getMaxSequenceId());
+      }
+      if (firstKey == null) {
+        return true;
+      }
+      for (DiskFile df : diskStore.getDiskFiles()) {
+        if (inputs.contains(df) || df.getFileMeta().getKeyValueCount() == 0) {
+          continue;
+        }
+        boolean overlapping = Bytes.compare(df.getLastKey(), firstKey) >= 0
+            && Bytes.compare(df.getFirstKey(), lastKey) <= 0;
+        // A file flushed after all the inputs only has newer versions.
+        if (overlapping && df.getFileMeta().getMinSequenceId() <= maxSequenceId) {
+          return false;
         }
       }
+      return true;
     }
 
+    private static long totalSize(List<DiskFile> files) {
+      long size = 0;
+      for (DiskFile df : files) {
+        size += df.getFileSize();
+      }
+      return size;
+    }
+
+    /**
+     * Compact all the disk files into the deepest level among them.
+     */
     @Override
     public void compact() throws IOException {
-      List<DiskFile> filesToCompact = new ArrayList<>();
-      filesToCompact.addAll(diskStore.getDiskFiles());
-      performCompact(filesToCompact);
+      Version version = diskStore.pinVersion();
+      try {
+        List<DiskFile> filesToCompact = version.getFiles();
+        if (filesToCompact.isEmpty()) {
+          return;
+        }
+        int outputLevel = 0;
+        for (DiskFile df : filesToCompact) {
+          outputLevel = Math.max(outputLevel, df.getLevel());
+        }
+        performCompact(new Compaction(new ArrayList<>(filesToCompact), outputLevel,
+            Long.MAX_VALUE));
+      } finally {
+        version.release();
+      }
     }
 
     public void run() {
+      try {
+        runCompactions();
+      } finally {
+        if (subcompactionPool != null) {
+          subcompactionPool.shutdownNow();
+        }
+      }
+    }
+
+    private void runCompactions() {
       while (running) {
         try {
           boolean isCompacted = false;
-          if (diskStore.getDiskFiles().size() > diskStore.getMaxDiskFiles()) {
-            performCompact(diskStore.getDiskFiles());
-            isCompacted = true;
+          // Pinned, so the inputs stay open even if the store is closed while compacting.
+          Version version = diskStore.pinVersion();
+          try {
+            Compaction compaction = policy.pickCompaction(version.getFiles());
+            if (compaction != null) {
+              performCompact(compaction);
+              isCompacted = true;
+            }
+          } finally {
+            version.release();
           }
           if (!isCompacted) {
             Thread.sleep(1000);
           }
+        } catch (InterruptedIOException e) {
+          LOG.error("Interrupted while compacting, stop running: ", e);
+          break;
         } catch (IOException e) {
           e.printStackTrace();
           LOG.error("Major compaction failed: ", e);
@@ -241,66 +724,237 @@ public class DiskStore implements Closeable {
     }
   }
 
+  /**
+   * Drop the versions which no reader can see from the merged key values of a compaction. The
+   * retained sequence ids (the live snapshots and the read point when the compaction started)
+   * split the sequence ids into stripes: a stripe is (previous retained id, retained id], and a
+   * reader at a retained id sees the newest version of a key in its stripe or the stripes below.
+   * So only the newest version in each stripe is kept, plus all the versions above the read point,
+   * which are not visible to anyone yet. If the compaction is the bottommost, a delete marker in
+   * the lowest stripe is dropped too, since there's nothing left under it to delete.
+   */
+  static class CompactionIter implements Iter<KeyValue> {
+
+    private final Iter<KeyValue> it;
+    private final long[] retainedSequenceIds;
+    private final boolean bottommost;
+    private KeyValue lastKey;
+    private int lastStripe;
+    private KeyValue pendingKV;
+    private long droppedCount = 0;
+
+    /**
+     * @param retainedSequenceIds in ascending order, the last one is the read point.
+     */
+    CompactionIter(Iter<KeyValue> it, long[] retainedSequenceIds, boolean bottommost) {
+      assert retainedSequenceIds.length > 0;
+      this.it = it;
+      this.retainedSequenceIds = retainedSequenceIds;
+      this.bottommost = bottommost;
+    }
+
+    private int stripeOf(long sequenceId) {
+      int index = Arrays.binarySearch(retainedSequenceIds, sequenceId);
+      return index >= 0 ? index : -index - 1;
+    }
+
+    private boolean shouldKeep(KeyValue kv) {
+      if (lastKey == null || lastKey.compareKey(kv) != 0) {
+        lastKey = kv;
+        lastStripe = -1;
+      }
+      int stripe = stripeOf(kv.getSequenceId());
+      if (stripe == retainedSequenceIds.length) {
+        return true;
+      }
+      if (stripe == lastStripe) {
+        // Shadowed by a newer version in the same stripe.
+        return false;
+      }
+      lastStripe = stripe;
+      return !(bottommost && stripe == 0 && kv.getOp() == Op.Delete);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      while (pendingKV == null && it.hasNext()) {
+        KeyValue kv = it.next();
+        if (shouldKeep(kv)) {
+          pendingKV = kv;
+        } else {
+          droppedCount++;
+        }
+      }
+      return pendingKV != null;
+    }
+
+    @Override
+    public KeyValue next() throws IOException {
+      if (!hasNext()) {
+        return null;
+      }
+      KeyValue kv = pendingKV;
+      pendingKV = null;
+      return kv;
+    }
+
+    public long getDroppedCount() {
+      return droppedCount;
+    }
+  }
+
+  /**
+   * Merge the sorted iterators into one sorted iterator. The iterators are kept in a binary min
+   * heap by their current key value, and the heap nodes are updated in place, so no object is
+   * allocated when iterating. Once only one iterator is left, it's read directly.
+   * <p>
+   * If descending, the iterators must be descending too, and they are kept in a max heap instead.
+   */
   public static class MultiIter implements SeekIter<KeyValue> {
 
-    private class IterNode {
+    private static class IterNode {
       KeyValue kv;
       SeekIter<KeyValue> iter;
-
-      public IterNode(KeyValue kv, SeekIter<KeyValue> it) {
-        this.kv = kv;
-        this.iter = it;
-      }
     }
 
     private SeekIter<KeyValue> iters[];
-    private PriorityQueue<IterNode> queue;
+    private IterNode[] heap;
+    private int size;
+    private final boolean descending;
 
     public MultiIter(SeekIter<KeyValue> iters[]) throws IOException {
+      this(iters, false);
+    }
+
+    public MultiIter(SeekIter<KeyValue> iters[], boolean descending) throws IOException {
       assert iters != null;
       this.iters = iters; // Used for seekTo
-      this.queue = new PriorityQueue<>(((o1, o2) -> o1.kv.compareTo(o2.kv)));
-      for (int i = 0; i < iters.length; i++) {
-        if (iters[i] != null && iters[i].hasNext()) {
-          queue.add(new IterNode(iters[i].next(), iters[i]));
+      this.descending = descending;
+      this.heap = new IterNode[iters.length];
+      for (int i = 0; i < heap.length; i++) {
+        heap[i] = new IterNode();
+      }
+      for (SeekIter<KeyValue> it : iters) {
+        if (it != null && it.hasNext()) {
+          add(it.next(), it);
         }
       }
     }
 
-    @SuppressWarnings("unchecked")
     public MultiIter(List<SeekIter<KeyValue>> iters) throws IOException {
-      this(iters.toArray(new SeekIter[0]));
+      this(iters, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public MultiIter(List<SeekIter<KeyValue>> iters, boolean descending) throws IOException {
+      this(iters.toArray(new SeekIter[0]), descending);
+    }
+
+    private int compare(KeyValue a, KeyValue b) {
+      return descending ? b.compareTo(a) : a.compareTo(b);
+    }
+
+    private void add(KeyValue kv, SeekIter<KeyValue> it) {
+      IterNode node = heap[size];
+      node.kv = kv;
+      node.iter = it;
+      // Sift up.
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (compare(heap[parent].kv, node.kv) <= 0) {
+          break;
+        }
+        heap[i] = heap[parent];
+        i = parent;
+      }
+      heap[i] = node;
+    }
+
+    private void siftDown(int i) {
+      IterNode node = heap[i];
+      int half = size >>> 1;
+      while (i < half) {
+        int child = 2 * i + 1;
+        int right = child + 1;
+        if (right < size && compare(heap[right].kv, heap[child].kv) < 0) {
+          child = right;
+        }
+        if (compare(node.kv, heap[child].kv) <= 0) {
+          break;
+        }
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = node;
     }
 
     @Override
     public boolean hasNext() throws IOException {
-      return queue.size() > 0;
+      return size > 0;
     }
 
     @Override
     public KeyValue next() throws IOException {
-      while (!queue.isEmpty()) {
-        IterNode first = queue.poll();
-        if (first.kv != null && first.iter != null) {
-          if (first.iter.hasNext()) {
-            queue.add(new IterNode(first.iter.next(), first.iter));
-          }
-          return first.kv;
+      if (size == 0) {
+        return null;
+      }
+      IterNode top = heap[0];
+      KeyValue kv = top.kv;
+      if (top.iter.hasNext()) {
+        top.kv = top.iter.next();
+        if (size > 1) {
+          siftDown(0);
+        }
+      } else {
+        // Move the exhausted node out of the heap, the node object is kept for reuse.
+        top.kv = null;
+        top.iter = null;
+        size--;
+        heap[0] = heap[size];
+        heap[size] = top;
+        if (size > 1) {
+          siftDown(0);
         }
       }
-      return null;
+      return kv;
     }
 
     @Override
     public void seekTo(KeyValue kv) throws IOException {
-      queue.clear();
+      for (int i = 0; i < size; i++) {
+        heap[i].kv = null;
+        heap[i].iter = null;
+      }
+      size = 0;
       for (SeekIter<KeyValue> it : iters) {
+        if (it == null) {
+          continue;
+        }
         it.seekTo(kv);
         if (it.hasNext()) {
           // Only the iterator which has some elements should be enqueued.
-          queue.add(new IterNode(it.next(), it));
+          add(it.next(), it);
         }
       }
     }
+
+    @Override
+    public void close() throws IOException {
+      IOException exception = null;
+      for (SeekIter<KeyValue> it : iters) {
+        try {
+          if (it != null) {
+            it.close();
+          }
+        } catch (IOException e) {
+          exception = e;
+        }
+      }
+      size = 0;
+      if (exception != null) {
+        throw exception;
+      }
+    }
   }
 }
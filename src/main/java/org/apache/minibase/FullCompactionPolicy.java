@@ -0,0 +1,25 @@
+package org.apache.minibase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact all the disk files into a single one once the number of disk files exceeds the limit.
+ * Every compaction rewrites the whole data set.
+ */
+public class FullCompactionPolicy implements CompactionPolicy {
+
+  private final int maxDiskFiles;
+
+  public FullCompactionPolicy(int maxDiskFiles) {
+    this.maxDiskFiles = maxDiskFiles;
+  }
+
+  @Override
+  public Compaction pickCompaction(List<DiskFile> diskFiles) {
+    if (diskFiles.size() <= maxDiskFiles) {
+      return null;
+    }
+    return new Compaction(new ArrayList<>(diskFiles), 0, Long.MAX_VALUE);
+  }
+}
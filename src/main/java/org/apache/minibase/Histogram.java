@@ -0,0 +1,100 @@
+package org.apache.minibase;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values, e.g. latencies in nanoseconds. Like the HDR
+ * histogram, every power of two range [2^e, 2^(e+1)) is split into 32 linear buckets, so the
+ * recorded values are kept with a relative error of less than 1/32, while the whole long range
+ * only takes 1888 buckets.
+ */
+public class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT =
+      SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+    return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /**
+   * @return the largest value which falls into the bucket.
+   */
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+    long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+    long lowerBound = (SUB_BUCKET_COUNT + subBucket) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+
+  public void update(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets.incrementAndGet(bucketIndex(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  public long getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : sum.sum() / n;
+  }
+
+  /**
+   * @param percentile in (0, 100], e.g. 99.9.
+   * @return the value which percentile of the recorded values are less than or equal to, 0 if
+   * nothing is recorded.
+   */
+  public long getPercentile(double percentile) {
+    long[] counts = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(bucketUpperBound(i), getMax());
+      }
+    }
+    return getMax();
+  }
+}
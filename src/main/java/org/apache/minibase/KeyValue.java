@@ -1,8 +1,15 @@
 package org.apache.minibase;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 
+/**
+ * A key value is either backed by its own key and value arrays, or a view over a region of a
+ * buffer, e.g. a data block decoded from a disk file. The view doesn't copy anything: comparison
+ * and hashing are done in place, and the key or value is copied out only when {@link #getKey()} or
+ * {@link #getValue()} is called. Note that a view keeps the whole buffer reachable.
+ */
 public class KeyValue implements Comparable<KeyValue> {
 
   public static final int RAW_KEY_LEN_SIZE = 4;
@@ -11,11 +18,21 @@ public class KeyValue implements Comparable<KeyValue> {
   public static final int SEQ_ID_SIZE = 8;
   public static final KeyValueComparator KV_CMP = new KeyValueComparator();
 
+  // Null if the key or value is still in the buffer.
   private byte[] key;
   private byte[] value;
   private Op op;
   private long sequenceId;
 
+  private ByteBuffer buf;
+  private int keyOffset;
+  private int keyLength;
+  private int valueOffset;
+  private int valueLength;
+  // The first 8 bytes of the key as a big endian long, padded with zeros. Most of the keys differ
+  // in the first 8 bytes, so their order is decided by the prefixes without touching the keys.
+  private long keyPrefix;
+
   public enum Op {
     Put((byte) 0),
     Delete((byte) 1);
@@ -54,25 +71,127 @@ public class KeyValue implements Comparable<KeyValue> {
     return KeyValue.create(key, Bytes.EMPTY_BYTES, Op.Delete, sequenceId);
   }
 
+  /**
+   * Create a view whose key is [keyOffset, keyOffset + keyLength) and value is [valueOffset,
+   * valueOffset + valueLength) of the buffer, the offsets are absolute indexes of the buffer. The
+   * buffer must not be modified while the view is in use.
+   */
+  public static KeyValue createView(ByteBuffer buf, int keyOffset, int keyLength, int valueOffset,
+      int valueLength, Op op, long sequenceId) {
+    return new KeyValue(null, null, op, sequenceId, buf, keyOffset, keyLength, valueOffset,
+        valueLength);
+  }
+
+  /**
+   * Create a view whose key is the given array, and value is [valueOffset, valueOffset +
+   * valueLength) of the buffer.
+   */
+  public static KeyValue createView(byte[] key, ByteBuffer buf, int valueOffset, int valueLength,
+      Op op, long sequenceId) {
+    return new KeyValue(key, null, op, sequenceId, buf, 0, key.length, valueOffset, valueLength);
+  }
+
   private KeyValue(byte[] key, byte[] value, Op op, long sequenceId) {
-    assert key != null;
+    this(key, value, op, sequenceId, null, 0, key.length, 0, value.length);
     assert value != null;
+  }
+
+  private KeyValue(byte[] key, byte[] value, Op op, long sequenceId, ByteBuffer buf,
+      int keyOffset, int keyLength, int valueOffset, int valueLength) {
+    assert key != null || buf != null;
+    assert value != null || buf != null;
     assert op != null;
     assert sequenceId >= 0;
     this.key = key;
     this.value = value;
     this.op = op;
     this.sequenceId = sequenceId;
+    this.buf = buf;
+    this.keyOffset = keyOffset;
+    this.keyLength = keyLength;
+    this.valueOffset = valueOffset;
+    this.valueLength = valueLength;
+    this.keyPrefix = key != null ? Bytes.prefix(key, 0, keyLength)
+        : Bytes.prefix(buf, keyOffset, keyLength);
   }
 
+  /**
+   * @return the key, which is copied out of the buffer at the first call if it's a view.
+   */
   public byte[] getKey() {
+    if (key == null) {
+      key = Bytes.copy(buf, keyOffset, keyLength);
+    }
     return key;
   }
 
+  /**
+   * @return the value, which is copied out of the buffer at the first call if it's a view.
+   */
   public byte[] getValue() {
+    if (value == null) {
+      value = Bytes.copy(buf, valueOffset, valueLength);
+    }
     return value;
   }
 
+  public int getKeyLength() {
+    return keyLength;
+  }
+
+  public int getValueLength() {
+    return valueLength;
+  }
+
+  /**
+   * Compare the key with [offset, offset + length) of the array, without copying the key.
+   */
+  public int compareKey(byte[] other, int offset, int length) {
+    if (key != null) {
+      return Bytes.compare(key, 0, keyLength, other, offset, length);
+    }
+    return Bytes.compare(buf, keyOffset, keyLength, other, offset, length);
+  }
+
+  /**
+   * Compare the keys of the two key values, without copying any of them.
+   */
+  public int compareKey(KeyValue kv) {
+    if (keyPrefix != kv.keyPrefix) {
+      return Long.compareUnsigned(keyPrefix, kv.keyPrefix);
+    }
+    // The first min(8, keyLength, kv.keyLength) bytes are equal.
+    if (keyLength <= 8 || kv.keyLength <= 8) {
+      return keyLength - kv.keyLength;
+    }
+    int from = 8;
+    int aLen = keyLength - from;
+    int bLen = kv.keyLength - from;
+    if (key != null && kv.key != null) {
+      return Bytes.compare(key, from, aLen, kv.key, from, bLen);
+    }
+    if (key != null) {
+      return -Bytes.compare(kv.buf, kv.keyOffset + from, bLen, key, from, aLen);
+    }
+    if (kv.key != null) {
+      return Bytes.compare(buf, keyOffset + from, aLen, kv.key, from, bLen);
+    }
+    return Bytes.compare(buf, keyOffset + from, aLen, kv.buf, kv.keyOffset + from, bLen);
+  }
+
+  /**
+   * @return a key value which doesn't reference any buffer, this one itself if it's not a view.
+   * The key and value of this one are copied but not cached, unlike {@link #getKey()}.
+   */
+  public KeyValue detach() {
+    if (buf == null) {
+      return this;
+    }
+    byte[] k = key != null ? key : Bytes.copy(buf, keyOffset, keyLength);
+    byte[] v = value != null ? value : Bytes.copy(buf, valueOffset, valueLength);
+    return create(k, v, op, sequenceId);
+  }
+
   public Op getOp() {
     return this.op;
   }
@@ -82,7 +201,7 @@ public class KeyValue implements Comparable<KeyValue> {
   }
 
   private int getRawKeyLen() {
-    return key.length + OP_SIZE + SEQ_ID_SIZE;
+    return keyLength + OP_SIZE + SEQ_ID_SIZE;
   }
 
   public byte[] toBytes() throws IOException {
@@ -96,13 +215,17 @@ public class KeyValue implements Comparable<KeyValue> {
     pos += RAW_KEY_LEN_SIZE;
 
     // Encode value length.
-    byte[] valLen = Bytes.toBytes(value.length);
+    byte[] valLen = Bytes.toBytes(valueLength);
     System.arraycopy(valLen, 0, bytes, pos, VAL_LEN_SIZE);
     pos += VAL_LEN_SIZE;
 
     // Encode key
-    System.arraycopy(key, 0, bytes, pos, key.length);
-    pos += key.length;
+    if (key != null) {
+      System.arraycopy(key, 0, bytes, pos, keyLength);
+    } else {
+      Bytes.copy(buf, keyOffset, bytes, pos, keyLength);
+    }
+    pos += keyLength;
 
     // Encode Op
     bytes[pos] = op.getCode();
@@ -114,7 +237,11 @@ public class KeyValue implements Comparable<KeyValue> {
     pos += seqIdBytes.length;
 
     // Encode value
-    System.arraycopy(value, 0, bytes, pos, value.length);
+    if (value != null) {
+      System.arraycopy(value, 0, bytes, pos, valueLength);
+    } else {
+      Bytes.copy(buf, valueOffset, bytes, pos, valueLength);
+    }
     return bytes;
   }
 
@@ -123,7 +250,7 @@ public class KeyValue implements Comparable<KeyValue> {
     if (kv == null) {
       throw new IllegalArgumentException("kv to compare should be null");
     }
-    int ret = Bytes.compare(this.key, kv.key);
+    int ret = compareKey(kv);
     if (ret != 0) {
       return ret;
     }
@@ -144,16 +271,23 @@ public class KeyValue implements Comparable<KeyValue> {
     return this.compareTo(that) == 0;
   }
 
+  @Override
+  public int hashCode() {
+    int h = key != null ? Bytes.hash(key) : Bytes.hash(buf, keyOffset, keyLength);
+    h = h * 31 + Long.hashCode(sequenceId);
+    return h * 31 + op.getCode();
+  }
+
   public int getSerializeSize() {
-    return RAW_KEY_LEN_SIZE + VAL_LEN_SIZE + getRawKeyLen() + value.length;
+    return RAW_KEY_LEN_SIZE + VAL_LEN_SIZE + getRawKeyLen() + valueLength;
   }
 
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    sb.append("key=").append(Bytes.toHex(this.key)).append("/op=").append(op).append
-            ("/sequenceId=").append(this.sequenceId).append("/value=").append(Bytes.toHex(this
-            .value));
+    sb.append("key=").append(Bytes.toHex(getKey())).append("/op=").append(op).append
+            ("/sequenceId=").append(this.sequenceId).append("/value=").append(Bytes.toHex(
+            getValue()));
     return sb.toString();
   }
 
@@ -161,33 +295,43 @@ public class KeyValue implements Comparable<KeyValue> {
     if (bytes == null) {
       throw new IOException("buffer is null");
     }
-    if (offset + RAW_KEY_LEN_SIZE + VAL_LEN_SIZE >= bytes.length) {
+    if (offset < 0 || offset + RAW_KEY_LEN_SIZE + VAL_LEN_SIZE >= bytes.length) {
       throw new IOException("Invalid offset or len. offset: " + offset + ", len: " + bytes.length);
     }
-    // Decode raw key length
-    int pos = offset;
-    int rawKeyLen = Bytes.toInt(Bytes.slice(bytes, pos, RAW_KEY_LEN_SIZE));
-    pos += RAW_KEY_LEN_SIZE;
+    return parseFrom(ByteBuffer.wrap(bytes, offset, bytes.length - offset));
+  }
 
-    // Decode value length
-    int valLen = Bytes.toInt(Bytes.slice(bytes, pos, VAL_LEN_SIZE));
-    pos += VAL_LEN_SIZE;
+  /**
+   * Decode the key value at the position of the buffer, and move the position to the end of the
+   * decoded key value.
+   */
+  public static KeyValue parseFrom(ByteBuffer buf) throws IOException {
+    if (buf.remaining() < RAW_KEY_LEN_SIZE + VAL_LEN_SIZE) {
+      throw new IOException("Invalid position or remaining. position: " + buf.position()
+                            + ", remaining: " + buf.remaining());
+    }
+    // Decode raw key length and value length
+    int rawKeyLen = buf.getInt();
+    int valLen = buf.getInt();
+    int keyLen = rawKeyLen - OP_SIZE - SEQ_ID_SIZE;
+    if (keyLen < 0 || valLen < 0 || buf.remaining() < rawKeyLen + valLen) {
+      throw new IOException("Buffer overflow, rawKeyLen: " + rawKeyLen + ", valLen: " + valLen
+                            + ", remaining: " + buf.remaining());
+    }
 
     // Decode key
-    int keyLen = rawKeyLen - OP_SIZE - SEQ_ID_SIZE;
-    byte[] key = Bytes.slice(bytes, pos, keyLen);
-    pos += keyLen;
+    byte[] key = new byte[keyLen];
+    buf.get(key);
 
     // Decode Op
-    Op op = Op.code2Op(bytes[pos]);
-    pos += 1;
+    Op op = Op.code2Op(buf.get());
 
     // Decode sequenceId
-    long sequenceId = Bytes.toLong(Bytes.slice(bytes, pos, SEQ_ID_SIZE));
-    pos += SEQ_ID_SIZE;
+    long sequenceId = buf.getLong();
 
     // Decode value.
-    byte[] val = Bytes.slice(bytes, pos, valLen);
+    byte[] val = new byte[valLen];
+    buf.get(val);
     return create(key, val, op, sequenceId);
   }
 
@@ -0,0 +1,129 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Leveled compaction, just like LevelDB:
+ * <ul>
+ * <li>Level 0 has the flushed files, whose key ranges may overlap with each other. Once there're
+ * level0CompactionTrigger files in level 0, all of them are compacted with the overlapping files
+ * in level 1.</li>
+ * <li>In level 1 and deeper, files have disjoint key ranges, and the total size of level i is
+ * limited to maxBytesForLevelBase * levelSizeMultiplier^(i-1). Once a level exceeds its limit, one
+ * file of it is compacted with the overlapping files in the next level. Files of a level are
+ * picked in a round-robin way over the key space.</li>
+ * </ul>
+ * So a compaction only rewrites the key range being pushed down, instead of the whole data set.
+ */
+public class LeveledCompactionPolicy implements CompactionPolicy {
+
+  private final int level0CompactionTrigger;
+  private final long maxBytesForLevelBase;
+  private final int levelSizeMultiplier;
+  private final int maxLevels;
+  private final long targetFileSize;
+
+  // The largest key of the last compacted file in each level, the next compaction of the level
+  // will start after it.
+  private final byte[][] compactPointers;
+
+  public LeveledCompactionPolicy(Config conf) {
+    this.level0CompactionTrigger = conf.getLevel0CompactionTrigger();
+    this.maxBytesForLevelBase = conf.getMaxBytesForLevelBase();
+    this.levelSizeMultiplier = conf.getLevelSizeMultiplier();
+    this.maxLevels = conf.getMaxLevels();
+    this.targetFileSize = conf.getTargetFileSize();
+    this.compactPointers = new byte[maxLevels][];
+  }
+
+  public long getMaxBytesForLevel(int level) {
+    long maxBytes = maxBytesForLevelBase;
+    for (int i = 1; i < level; i++) {
+      maxBytes *= levelSizeMultiplier;
+    }
+    return maxBytes;
+  }
+
+  @Override
+  public Compaction pickCompaction(List<DiskFile> diskFiles) throws IOException {
+    List<List<DiskFile>> levels = new ArrayList<>();
+    for (int i = 0; i < maxLevels; i++) {
+      levels.add(new ArrayList<>());
+    }
+    for (DiskFile df : diskFiles) {
+      levels.get(Math.min(df.getLevel(), maxLevels - 1)).add(df);
+    }
+
+    // Find the level which exceeds its limit most, the last level never needs to compact.
+    int bestLevel = -1;
+    double bestScore = 1.0;
+    for (int i = 0; i < maxLevels - 1; i++) {
+      double score;
+      if (i == 0) {
+        score = (double) levels.get(0).size() / level0CompactionTrigger;
+      } else {
+        long totalBytes = 0;
+        for (DiskFile df : levels.get(i)) {
+          totalBytes += df.getFileSize();
+        }
+        score = (double) totalBytes / getMaxBytesForLevel(i);
+      }
+      if (score >= bestScore) {
+        bestScore = score;
+        bestLevel = i;
+      }
+    }
+    if (bestLevel < 0) {
+      return null;
+    }
+
+    List<DiskFile> inputs = new ArrayList<>();
+    if (bestLevel == 0) {
+      // Files in level 0 overlap with each other, so compact all of them together.
+      inputs.addAll(levels.get(0));
+    } else {
+      inputs.add(pickFile(bestLevel, levels.get(bestLevel)));
+    }
+
+    byte[] smallest = null, largest = null;
+    for (DiskFile df : inputs) {
+      if (smallest == null || Bytes.compare(df.getFirstKey(), smallest) < 0) {
+        smallest = df.getFirstKey();
+      }
+      if (largest == null || Bytes.compare(df.getLastKey(), largest) > 0) {
+        largest = df.getLastKey();
+      }
+    }
+    for (DiskFile df : levels.get(bestLevel + 1)) {
+      if (isOverlapping(df, smallest, largest)) {
+        inputs.add(df);
+      }
+    }
+    compactPointers[bestLevel] = largest;
+    return new Compaction(inputs, bestLevel + 1, targetFileSize);
+  }
+
+  private DiskFile pickFile(int level, List<DiskFile> files) {
+    DiskFile first = null;
+    DiskFile next = null;
+    for (DiskFile df : files) {
+      if (first == null || Bytes.compare(df.getFirstKey(), first.getFirstKey()) < 0) {
+        first = df;
+      }
+      if (compactPointers[level] != null
+          && Bytes.compare(df.getFirstKey(), compactPointers[level]) > 0
+          && (next == null || Bytes.compare(df.getFirstKey(), next.getFirstKey()) < 0)) {
+        next = df;
+      }
+    }
+    // Wrap around to the beginning of the key space.
+    return next != null ? next : first;
+  }
+
+  private static boolean isOverlapping(DiskFile df, byte[] smallest, byte[] largest) {
+    return Bytes.compare(df.getLastKey(), smallest) >= 0
+        && Bytes.compare(df.getFirstKey(), largest) <= 0;
+  }
+}
@@ -5,20 +5,30 @@ import org.apache.minibase.DiskStore.DefaultFlusher;
 import org.apache.minibase.DiskStore.MultiIter;
 import org.apache.minibase.KeyValue.Op;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
 
 public class MStore implements MiniBase {
 
   private ExecutorService pool;
   private MemStore memStore;
   private DiskStore diskStore;
-  private Compactor compactor;
-  private AtomicLong sequenceId;
+  private DefaultCompactor compactor;
+  private WAL wal;
+  private BlockCache blockCache;
+  private MVCC mvcc;
+  private Metrics metrics = new Metrics();
+  private Histogram writeLatency = metrics.histogram("write.latencyNs");
+  private Histogram getLatency = metrics.histogram("get.latencyNs");
+  private Histogram scanLatency = metrics.histogram("scan.latencyNs");
+  private Histogram multiGetLatency = metrics.histogram("multiget.latencyNs");
 
   private Config conf;
 
@@ -28,20 +38,94 @@ public class MStore implements MiniBase {
     // initialize the thread pool;
     this.pool = Executors.newFixedThreadPool(conf.getMaxThreadPoolSize());
 
+    // initialize the block cache shared by all the disk files.
+    if (conf.getBlockCacheSize() > 0) {
+      this.blockCache = new BlockCache(conf.getBlockCacheSize());
+    }
+
     // initialize the disk store.
-    this.diskStore = new DiskStore(conf.getDataDir(), conf.getMaxDiskFiles());
+    this.diskStore = new DiskStore(conf, blockCache, metrics);
     this.diskStore.open();
-    // TODO initialize the max sequence id here.
-    this.sequenceId = new AtomicLong(0);
+    long maxSequenceId = diskStore.getMaxSequenceId();
 
-    // initialize the memstore.
-    this.memStore = new MemStore(conf, new DefaultFlusher(diskStore), pool);
+    // initialize the memstore, and recover the un-flushed key values from the WAL.
+    this.wal = new WAL(conf);
+    this.memStore = new MemStore(conf, new DefaultFlusher(diskStore), pool, wal);
+    for (Iter<KeyValue> it = wal.replay(); it.hasNext(); ) {
+      KeyValue kv = it.next();
+      memStore.replay(kv);
+      maxSequenceId = Math.max(maxSequenceId, kv.getSequenceId());
+    }
+    this.mvcc = new MVCC(maxSequenceId);
+    this.wal.open();
 
-    this.compactor = new DefaultCompactor(diskStore);
+    if (conf.isIoRateAutoTuned()) {
+      diskStore.getRateLimiter().enableAutoTune(this::getLevel0FileCount, getLatency);
+    }
+    this.compactor = new DefaultCompactor(diskStore, CompactionPolicy.create(conf),
+        conf.getMaxSubcompactions(), mvcc);
     this.compactor.start();
+
+    registerGauges();
+    if (conf.isMetricsJmxEnabled()) {
+      metrics.registerMBean(new File(conf.getDataDir()).getAbsolutePath());
+    }
     return this;
   }
 
+  private void registerGauges() {
+    metrics.gauge("memstore.dataSize", memStore::getDataSize);
+    metrics.gauge("memstore.immutableCount", memStore::getImmutableCount);
+    WriteController controller = memStore.getWriteController();
+    metrics.gauge("memstore.delayedWrites", controller::getDelayedWrites);
+    metrics.gauge("memstore.delayedTimeMs", controller::getDelayedTimeMs);
+    metrics.gauge("memstore.stalledWrites", controller::getStalledWrites);
+    metrics.gauge("memstore.stalledTimeMs", controller::getStalledTimeMs);
+    metrics.gauge("diskstore.fileCount", () -> diskStore.getDiskFiles().size());
+    metrics.gauge("diskstore.level0FileCount", this::getLevel0FileCount);
+    metrics.gauge("diskstore.totalSize", () -> {
+      long size = 0;
+      for (DiskFile df : diskStore.getDiskFiles()) {
+        size += df.getFileSize();
+      }
+      return size;
+    });
+    RateLimiter rateLimiter = diskStore.getRateLimiter();
+    metrics.gauge("ratelimiter.bytesPerSecond", rateLimiter::getBytesPerSecond);
+    metrics.gauge("ratelimiter.totalBytes", rateLimiter::getTotalBytes);
+    metrics.gauge("ratelimiter.throttledTimeMs", rateLimiter::getThrottledTimeMs);
+    if (blockCache != null) {
+      metrics.gauge("blockcache.size", blockCache::getSize);
+      metrics.gauge("blockcache.hitCount", blockCache::getHitCount);
+      metrics.gauge("blockcache.missCount", blockCache::getMissCount);
+      metrics.gauge("blockcache.evictionCount", blockCache::getEvictionCount);
+    }
+  }
+
+  private long getLevel0FileCount() {
+    long count = 0;
+    for (DiskFile df : diskStore.getDiskFiles()) {
+      if (df.getLevel() == 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the metrics of the store, which are also published as an MBean if enabled.
+   */
+  public Metrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * @return the block cache, null if the block cache is disabled.
+   */
+  public BlockCache getBlockCache() {
+    return this.blockCache;
+  }
+
   private MStore(Config conf) {
     this.conf = conf;
   }
@@ -56,74 +140,270 @@ public class MStore implements MiniBase {
 
   @Override
   public void put(byte[] key, byte[] value) throws IOException {
-    this.memStore.add(KeyValue.createPut(key, value, sequenceId.incrementAndGet()));
+    write(new WriteBatch().put(key, value));
+  }
+
+  @Override
+  public void write(WriteBatch batch) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    long startTime = System.nanoTime();
+    MVCC.WriteEntry entry = this.memStore.add(batch, mvcc);
+    mvcc.waitForRead(entry);
+    writeLatency.update(System.nanoTime() - startTime);
   }
 
   @Override
   public KeyValue get(byte[] key) throws IOException {
-    KeyValue result = null;
-    Iter<KeyValue> it = scan(key, Bytes.EMPTY_BYTES);
-    if (it.hasNext()) {
-      KeyValue kv = it.next();
-      if (Bytes.compare(kv.getKey(), key) == 0) {
-        result = kv;
+    return get(key, null);
+  }
+
+  @Override
+  public KeyValue get(byte[] key, Snapshot snapshot) throws IOException {
+    checkSnapshot(snapshot);
+    // The memstore has the newest key values, then the disk files from the newest to the oldest.
+    // Stop at the first visible key value of the key, no matter whether it's a Put or Delete.
+    long startTime = System.nanoTime();
+    KeyValue kv;
+    while (true) {
+      long readPoint = snapshot != null ? snapshot.getSequenceId() : mvcc.getReadPoint();
+      kv = memStore.get(key, readPoint);
+      if (kv != null) {
+        break;
       }
+      // Pin the version, so its files won't be closed by a compaction while reading them.
+      Version version = diskStore.pinVersion();
+      try {
+        if (snapshot == null && version.getCompactedReadPoint() > readPoint) {
+          // A compaction started after we got the read point may have dropped what we should see.
+          continue;
+        }
+        List<DiskFile> diskFiles = version.getFiles();
+        for (int i = diskFiles.size() - 1; i >= 0 && kv == null; i--) {
+          kv = diskFiles.get(i).get(key, readPoint);
+        }
+        break;
+      } finally {
+        version.release();
+      }
+    }
+    getLatency.update(System.nanoTime() - startTime);
+    return kv != null && kv.getOp() == Op.Put ? kv : null;
+  }
+
+  @Override
+  public List<KeyValue> multiGet(List<byte[]> keys) throws IOException {
+    return multiGet(keys, null);
+  }
+
+  @Override
+  public List<KeyValue> multiGet(List<byte[]> keys, Snapshot snapshot) throws IOException {
+    checkSnapshot(snapshot);
+    long startTime = System.nanoTime();
+    // Look up the keys in the key order, then map the results back to the order of the caller.
+    Integer[] order = new Integer[keys.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Bytes.compare(keys.get(a), keys.get(b)));
+    List<byte[]> sortedKeys = new ArrayList<>(order.length);
+    for (Integer i : order) {
+      sortedKeys.add(keys.get(i));
+    }
+
+    KeyValue[] results;
+    while (true) {
+      long readPoint = snapshot != null ? snapshot.getSequenceId() : mvcc.getReadPoint();
+      results = new KeyValue[order.length];
+      int unresolved = 0;
+      for (int i = 0; i < results.length; i++) {
+        results[i] = memStore.get(sortedKeys.get(i), readPoint);
+        if (results[i] == null) {
+          unresolved++;
+        }
+      }
+      if (unresolved == 0) {
+        break;
+      }
+      Version version = diskStore.pinVersion();
+      try {
+        // Same as get, retry if a compaction may have dropped what we should see.
+        if (snapshot == null && version.getCompactedReadPoint() > readPoint) {
+          continue;
+        }
+        // The newer files first, the keys resolved by them are skipped in the older ones.
+        List<DiskFile> diskFiles = version.getFiles();
+        for (int i = diskFiles.size() - 1; i >= 0 && unresolved > 0; i--) {
+          unresolved -= diskFiles.get(i).multiGet(sortedKeys, readPoint, results);
+        }
+        break;
+      } finally {
+        version.release();
+      }
+    }
+
+    KeyValue[] values = new KeyValue[order.length];
+    for (int i = 0; i < order.length; i++) {
+      KeyValue kv = results[i];
+      values[order[i]] = kv != null && kv.getOp() == Op.Put ? kv : null;
+    }
+    multiGetLatency.update(System.nanoTime() - startTime);
+    return Arrays.asList(values);
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    return mvcc.takeSnapshot();
+  }
+
+  private static void checkSnapshot(Snapshot snapshot) throws IOException {
+    if (snapshot != null && snapshot.isReleased()) {
+      throw new IOException("Snapshot at sequence id " + snapshot.getSequenceId()
+          + " is already released");
     }
-    return result;
   }
 
   @Override
   public void delete(byte[] key) throws IOException {
-    this.memStore.add(KeyValue.createDelete(key, sequenceId.incrementAndGet()));
+    write(new WriteBatch().delete(key));
   }
 
   @Override
   public Iter<KeyValue> scan(byte[] start, byte[] stop) throws IOException {
-    List<SeekIter<KeyValue>> iterList = new ArrayList<>();
-    iterList.add(memStore.createIterator());
-    iterList.add(diskStore.createIterator());
-    MultiIter it = new MultiIter(iterList);
+    return scan(start, stop, null);
+  }
+
+  @Override
+  public Iter<KeyValue> scan(byte[] start, byte[] stop, Snapshot snapshot) throws IOException {
+    return scan(start, stop, snapshot, false);
+  }
+
+  @Override
+  public Iter<KeyValue> descendingScan(byte[] start, byte[] stop) throws IOException {
+    return descendingScan(start, stop, null);
+  }
 
-    // with start being EMPTY_BYTES means minus infinity, will skip to seek.
-    if (Bytes.compare(start, Bytes.EMPTY_BYTES) != 0) {
-      it.seekTo(KeyValue.createDelete(start, sequenceId.get()));
+  @Override
+  public Iter<KeyValue> descendingScan(byte[] start, byte[] stop, Snapshot snapshot)
+      throws IOException {
+    return scan(start, stop, snapshot, true);
+  }
+
+  private Iter<KeyValue> scan(byte[] start, byte[] stop, Snapshot snapshot, boolean descending)
+      throws IOException {
+    checkSnapshot(snapshot);
+    // The scan only sees the writes completed before it starts, or before the snapshot.
+    long startTime = System.nanoTime();
+    long readPoint;
+    Version version;
+    SeekIter<KeyValue> memStoreIt;
+    while (true) {
+      readPoint = snapshot != null ? snapshot.getSequenceId() : mvcc.getReadPoint();
+      // Same order as get: the memstore before the disk files. A flush committed in between
+      // installs its file before dropping the segment, so the newer version must have it.
+      memStoreIt = memStore.createIterator(descending);
+      // The version is pinned until the scan is exhausted or closed.
+      version = diskStore.pinVersion();
+      // Same as get, retry if a compaction may have dropped what we should see.
+      if (snapshot != null || version.getCompactedReadPoint() <= readPoint) {
+        break;
+      }
+      version.release();
+      memStoreIt.close();
     }
+    MultiIter it;
+    try {
+      // Only the disk files whose key range intersects with [start, stop) will be scanned.
+      List<SeekIter<KeyValue>> iterList = new ArrayList<>();
+      iterList.add(memStoreIt);
+      iterList.add(diskStore.createIterator(version.getFiles(), start, stop, descending));
+      it = new MultiIter(iterList, descending);
 
-    KeyValue stopKV = null;
-    if (Bytes.compare(stop, Bytes.EMPTY_BYTES) != 0) {
-      // the smallest kv in all KeyValue with the same key.
-      stopKV = KeyValue.createDelete(stop, Long.MAX_VALUE);
+      if (!descending && Bytes.compare(start, Bytes.EMPTY_BYTES) != 0) {
+        // with start being EMPTY_BYTES means minus infinity, will skip to seek.
+        it.seekTo(KeyValue.createDelete(start, readPoint));
+      } else if (descending && Bytes.compare(stop, Bytes.EMPTY_BYTES) != 0) {
+        // The largest kv less than the smallest kv of the stop key, i.e. the oldest version of
+        // the last key before the stop key.
+        it.seekTo(KeyValue.createDelete(stop, Long.MAX_VALUE));
+      }
+    } catch (IOException e) {
+      // Release the memstore segments, the disk iterators hold nothing but the version.
+      memStoreIt.close();
+      version.release();
+      throw e;
     }
-    return new ScanIter(stopKV, it);
+
+    Iter<KeyValue> scanIter;
+    if (descending) {
+      KeyValue startKV = null;
+      if (Bytes.compare(start, Bytes.EMPTY_BYTES) != 0) {
+        startKV = KeyValue.createDelete(start, Long.MAX_VALUE);
+      }
+      scanIter = new DescendingScanIter(startKV, it, readPoint, version);
+    } else {
+      KeyValue stopKV = null;
+      if (Bytes.compare(stop, Bytes.EMPTY_BYTES) != 0) {
+        // the smallest kv in all KeyValue with the same key.
+        stopKV = KeyValue.createDelete(stop, Long.MAX_VALUE);
+      }
+      scanIter = new ScanIter(stopKV, it, readPoint, version);
+    }
+    // Only the time to open the scan, the iteration is driven by the caller.
+    scanLatency.update(System.nanoTime() - startTime);
+    return scanIter;
   }
 
   static class ScanIter implements Iter<KeyValue> {
 
     private KeyValue stopKV;
-    private Iter<KeyValue> storeIt;
+    Iter<KeyValue> storeIt;
+    // The key values whose sequence id is greater than it are invisible to this scan.
+    long readPoint;
     // Last KV is the last key value which has the largest sequence id in key values with the
     // same key, but diff sequence id or op.
     private KeyValue lastKV = null;
-    private KeyValue pendingKV = null;
+    KeyValue pendingKV = null;
+    // The version of the disk files to scan, released once the scan is exhausted or closed.
+    private Version version;
+    private boolean closed = false;
 
     public ScanIter(KeyValue stopKV, SeekIter<KeyValue> it) {
+      this(stopKV, it, Long.MAX_VALUE);
+    }
+
+    public ScanIter(KeyValue stopKV, SeekIter<KeyValue> it, long readPoint) {
+      this(stopKV, it, readPoint, null);
+    }
+
+    public ScanIter(KeyValue stopKV, SeekIter<KeyValue> it, long readPoint, Version version) {
       this.stopKV = stopKV;
       this.storeIt = it;
+      this.readPoint = readPoint;
+      this.version = version;
     }
 
     @Override
     public boolean hasNext() throws IOException {
-      if (pendingKV == null) {
+      if (pendingKV == null && !closed) {
         switchToNewKey();
+        if (pendingKV == null) {
+          close();
+        }
       }
       return pendingKV != null;
     }
 
     private boolean shouldStop(KeyValue kv) {
-      return stopKV != null && Bytes.compare(stopKV.getKey(), kv.getKey()) <= 0;
+      return stopKV != null && stopKV.compareKey(kv) <= 0;
     }
 
-    private void switchToNewKey() throws IOException {
+    /**
+     * Find the next key value to return, and set it as the pending one. Leave the pending one null
+     * if no more key value in the range.
+     */
+    void switchToNewKey() throws IOException {
       if (lastKV != null && shouldStop(lastKV)) {
         return;
       }
@@ -133,12 +413,15 @@ public class MStore implements MiniBase {
         if (shouldStop(curKV)) {
           return;
         }
+        if (curKV.getSequenceId() > readPoint) {
+          continue;
+        }
         if (curKV.getOp() == Op.Put) {
           if (lastKV == null) {
             lastKV = pendingKV = curKV;
             return;
           }
-          int ret = Bytes.compare(lastKV.getKey(), curKV.getKey());
+          int ret = lastKV.compareKey(curKV);
           if (ret < 0) {
             lastKV = pendingKV = curKV;
             return;
@@ -149,7 +432,7 @@ public class MStore implements MiniBase {
           }
           // Same key with lastKV, should continue to fetch the next key value.
         } else if (curKV.getOp() == Op.Delete) {
-          if (lastKV == null || Bytes.compare(lastKV.getKey(), curKV.getKey()) != 0) {
+          if (lastKV == null || lastKV.compareKey(curKV) != 0) {
             lastKV = curKV;
           }
         } else {
@@ -160,26 +443,121 @@ public class MStore implements MiniBase {
 
     @Override
     public KeyValue next() throws IOException {
-      if (pendingKV == null) {
-        switchToNewKey();
+      if (!hasNext()) {
+        return null;
       }
       lastKV = pendingKV;
       pendingKV = null;
       return lastKV;
     }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      pendingKV = null;
+      try {
+        storeIt.close();
+      } finally {
+        if (version != null) {
+          version.release();
+          version = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Resolves the versions like {@link ScanIter}, but the keys come from the largest to the
+   * smallest, and the versions of a key come from the oldest to the newest. So the newest visible
+   * version of a key is known only after reading the first key value of the next key.
+   */
+  static class DescendingScanIter extends ScanIter {
+
+    // The key values whose key is less than the start key are out of the range.
+    private final KeyValue startKV;
+    // The first key value of the next key, read ahead while resolving the current key.
+    private KeyValue nextKV = null;
+
+    public DescendingScanIter(KeyValue startKV, SeekIter<KeyValue> it, long readPoint,
+        Version version) {
+      super(null, it, readPoint, version);
+      this.startKV = startKV;
+    }
+
+    private KeyValue read() throws IOException {
+      if (nextKV != null) {
+        KeyValue kv = nextKV;
+        nextKV = null;
+        return kv;
+      }
+      return storeIt.hasNext() ? storeIt.next() : null;
+    }
+
+    @Override
+    void switchToNewKey() throws IOException {
+      KeyValue curKV;
+      while ((curKV = read()) != null) {
+        if (startKV != null && startKV.compareKey(curKV) > 0) {
+          return;
+        }
+        KeyValue newestKV = curKV.getSequenceId() <= readPoint ? curKV : null;
+        KeyValue kv;
+        while ((kv = read()) != null) {
+          int ret = curKV.compareKey(kv);
+          if (ret < 0) {
+            String msg = "KV mis-encoded, kv > curKV in descending order, kv:"
+                         + Bytes.toHex(kv.getKey()) + ", curKV:" + Bytes.toHex(curKV.getKey());
+            throw new IOException(msg);
+          } else if (ret > 0) {
+            nextKV = kv;
+            break;
+          }
+          // The later one of the same key is newer.
+          if (kv.getSequenceId() <= readPoint) {
+            newestKV = kv;
+          }
+        }
+        if (newestKV == null) {
+          continue;
+        }
+        if (newestKV.getOp() == Op.Put) {
+          pendingKV = newestKV;
+          return;
+        } else if (newestKV.getOp() != Op.Delete) {
+          throw new IOException("Unknown op code: " + newestKV.getOp());
+        }
+      }
+    }
   }
 
   @Override
   public void close() throws IOException {
+    // Stop the compactor and drain the flushes first, so none of them installs a disk file into
+    // the closed disk store.
+    compactor.stopRunning();
+    compactor.interrupt();
+    pool.shutdown();
+    try {
+      compactor.join();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting the flushes and compactions");
+    }
     memStore.close();
+    wal.close();
     diskStore.close();
-    compactor.interrupt();
+    metrics.unregisterMBean();
   }
 
   interface SeekIter<KeyValue> extends Iter<KeyValue> {
 
     /**
-     * Seek to the smallest key value which is greater than or equals to the given key value.
+     * Seek to the smallest key value which is greater than or equals to the given key value. For
+     * a descending iterator, seek to the largest key value which is less than or equals to it.
      *
      * @param kv
      */
@@ -0,0 +1,188 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Multi-version concurrency control. Each write takes a contiguous range of sequence ids, and the
+ * read point is the largest sequence id up to which all the writes have completed. Readers only
+ * see the key values whose sequence id is not greater than the read point, so a write becomes
+ * visible as a whole once it completes, and only after all the writes before it completed.
+ */
+public class MVCC {
+
+  private final LinkedList<WriteEntry> writeQueue = new LinkedList<>();
+  // Guarded by writeQueue.
+  private long writePoint;
+  private volatile long readPoint;
+  // Guarded by writeQueue, set once a write can't be completed.
+  private IOException failure;
+  // The sequence ids of the live snapshots, to the count of snapshots at each of them.
+  private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+
+  public MVCC(long startSequenceId) {
+    this.writePoint = startSequenceId;
+    this.readPoint = startSequenceId;
+  }
+
+  public static class WriteEntry {
+    private final long firstSequenceId;
+    private final long lastSequenceId;
+    private boolean completed = false;
+
+    private WriteEntry(long firstSequenceId, long lastSequenceId) {
+      this.firstSequenceId = firstSequenceId;
+      this.lastSequenceId = lastSequenceId;
+    }
+
+    public long getFirstSequenceId() {
+      return firstSequenceId;
+    }
+
+    public long getLastSequenceId() {
+      return lastSequenceId;
+    }
+  }
+
+  /**
+   * Start a write of count key values, they should take the sequence ids in [firstSequenceId,
+   * lastSequenceId] of the returned entry. The entry must be completed, even if the write failed,
+   * unless the key values may already be readable, then {@link #fail(IOException)} instead.
+   */
+  public WriteEntry begin(int count) {
+    assert count > 0;
+    synchronized (writeQueue) {
+      WriteEntry entry = new WriteEntry(writePoint + 1, writePoint + count);
+      writePoint += count;
+      writeQueue.add(entry);
+      return entry;
+    }
+  }
+
+  /**
+   * Mark the write completed, and move the read point forward over all the leading completed
+   * writes.
+   */
+  public void complete(WriteEntry entry) {
+    synchronized (writeQueue) {
+      entry.completed = true;
+      boolean advanced = false;
+      while (!writeQueue.isEmpty() && writeQueue.getFirst().completed) {
+        readPoint = writeQueue.removeFirst().lastSequenceId;
+        advanced = true;
+      }
+      if (advanced) {
+        writeQueue.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Stop the read point for good, because a write can't be completed while its key values may be
+   * lost. The read point stays before that write, so the waiters of the later writes fail.
+   */
+  public void fail(IOException cause) {
+    synchronized (writeQueue) {
+      if (failure == null) {
+        failure = cause;
+      }
+      writeQueue.notifyAll();
+    }
+  }
+
+  /**
+   * Wait until the completed write is visible to readers, so a writer can always read its own
+   * writes once the write returned.
+   *
+   * @throws IOException if the write can never be visible because of a failed one before it.
+   */
+  public void waitForRead(WriteEntry entry) throws IOException {
+    assert entry.completed;
+    synchronized (writeQueue) {
+      while (readPoint < entry.lastSequenceId) {
+        if (failure != null) {
+          throw new IOException("The write can't be visible because of a previous failure",
+              failure);
+        }
+        try {
+          writeQueue.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the read point");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the largest sequence id which is visible to readers.
+   */
+  public long getReadPoint() {
+    return readPoint;
+  }
+
+  /**
+   * Pin the current read point, until the returned snapshot is closed.
+   */
+  public Snapshot takeSnapshot() {
+    synchronized (snapshots) {
+      long sequenceId = readPoint;
+      snapshots.merge(sequenceId, 1, Integer::sum);
+      return new Snapshot(this, sequenceId);
+    }
+  }
+
+  void releaseSnapshot(Snapshot snapshot) {
+    synchronized (snapshots) {
+      snapshots.computeIfPresent(snapshot.getSequenceId(), (k, v) -> v == 1 ? null : v - 1);
+    }
+  }
+
+  /**
+   * @return the sequence ids of the live snapshots and the current read point, in ascending order
+   * without duplicates. Got together, so a snapshot which is not included must be taken later, at
+   * a sequence id not less than the returned read point.
+   */
+  public long[] getRetainedSequenceIds() {
+    synchronized (snapshots) {
+      long current = readPoint;
+      long[] ids = new long[snapshots.size() + 1];
+      int i = 0;
+      for (Map.Entry<Long, Integer> e : snapshots.entrySet()) {
+        if (e.getKey() < current) {
+          ids[i++] = e.getKey();
+        }
+      }
+      ids[i++] = current;
+      long[] result = new long[i];
+      System.arraycopy(ids, 0, result, 0, i);
+      return result;
+    }
+  }
+
+  /**
+   * @return the largest sequence id which has been assigned to a write.
+   */
+  public long getWritePoint() {
+    synchronized (writeQueue) {
+      return writePoint;
+    }
+  }
+
+  /**
+   * Move both the write point and the read point forward to the given sequence id, only used when
+   * recovering and no write is in progress.
+   */
+  public void advanceTo(long sequenceId) {
+    synchronized (writeQueue) {
+      assert writeQueue.isEmpty();
+      if (sequenceId > writePoint) {
+        writePoint = sequenceId;
+        readPoint = sequenceId;
+      }
+    }
+  }
+}
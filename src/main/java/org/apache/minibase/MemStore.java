@@ -8,13 +8,12 @@ import org.apache.minibase.MiniBase.Flusher;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NavigableMap;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -24,107 +23,470 @@ public class MemStore implements Closeable {
 
   private final AtomicLong dataSize = new AtomicLong();
 
-  private volatile ConcurrentSkipListMap<KeyValue, KeyValue> kvMap;
-  private volatile ConcurrentSkipListMap<KeyValue, KeyValue> snapshot;
+  private volatile Segment active;
+  // The immutable memstores waiting to be flushed, ordered from the oldest to the newest. The
+  // list is never modified in place, but replaced under the immutablesLock.
+  private volatile List<Segment> immutables = Collections.emptyList();
+  private final Object immutablesLock = new Object();
 
   private final ReentrantReadWriteLock updateLock = new ReentrantReadWriteLock();
-  private final AtomicBoolean isSnapshotFlushing = new AtomicBoolean(false);
   private ExecutorService pool;
 
   private Config conf;
   private Flusher flusher;
+  private WAL wal;
+  private WriteController writeController;
+  // Null if the key values are kept on heap.
+  private ChunkPool chunkPool;
+  // Set once a memstore failed to be flushed or the WAL failed to sync, then no more key value can
+  // be added. The un-flushed key values are still readable.
+  private volatile IOException writeError;
 
   public MemStore(Config conf, Flusher flusher, ExecutorService pool) {
+    this(conf, flusher, pool, null);
+  }
+
+  public MemStore(Config conf, Flusher flusher, ExecutorService pool, WAL wal) {
+    this(conf, flusher, pool, wal, createChunkPool(conf));
+  }
+
+  /**
+   * @param chunkPool the pool of the arenas, null to keep the key values on heap.
+   */
+  MemStore(Config conf, Flusher flusher, ExecutorService pool, WAL wal, ChunkPool chunkPool) {
     this.conf = conf;
     this.flusher = flusher;
     this.pool = pool;
+    this.wal = wal;
+    this.writeController = new WriteController(conf);
+    this.chunkPool = chunkPool;
 
     dataSize.set(0);
-    this.kvMap = new ConcurrentSkipListMap<>();
-    this.snapshot = null;
+    this.active = newSegment();
+  }
+
+  private static ChunkPool createChunkPool(Config conf) {
+    if (!conf.isMemstoreArenaEnabled()) {
+      return null;
+    }
+    int poolSize = conf.getMemstoreChunkPoolSize();
+    if (poolSize < 0) {
+      // Enough chunks for the active and all the immutable memstores.
+      long chunksPerMemstore = conf.getMaxMemstoreSize() / conf.getMemstoreChunkSize() + 1;
+      poolSize = (int) (chunksPerMemstore * (conf.getMaxImmutableMemstores() + 1));
+    }
+    return new ChunkPool(conf.getMemstoreChunkSize(), poolSize);
+  }
+
+  private Segment newSegment() {
+    return new Segment(chunkPool == null ? null : new MemStoreArena(chunkPool));
   }
 
   public void add(KeyValue kv) throws IOException {
-    flushIfNeeded(true);
+    add(Collections.singletonList(kv));
+  }
+
+  /**
+   * Add the key values under one lock acquisition, they're logged as one WAL record and will be in
+   * the same memstore snapshot.
+   */
+  public void add(List<KeyValue> kvs) throws IOException {
+    checkWritable();
+    flushIfNeeded();
+    writeController.throttle(this);
+    long txid;
     updateLock.readLock().lock();
     try {
-      KeyValue prevKeyValue;
-      if ((prevKeyValue = kvMap.put(kv, kv)) == null) {
-        dataSize.addAndGet(kv.getSerializeSize());
-      } else {
-        dataSize.addAndGet(kv.getSerializeSize() - prevKeyValue.getSerializeSize());
+      txid = appendWAL(kvs);
+      putAll(kvs);
+    } finally {
+      updateLock.readLock().unlock();
+    }
+    syncWAL(txid);
+    flushIfNeeded();
+  }
+
+  /**
+   * Add the batch like {@link #add(List)}, with the sequence ids taken from the mvcc. The returned
+   * entry is completed only if the whole batch is added and the WAL is synced. If it failed after
+   * some key values got into the memstore, the mvcc is failed to keep them invisible, and the
+   * memstore turns read-only.
+   */
+  public MVCC.WriteEntry add(WriteBatch batch, MVCC mvcc) throws IOException {
+    checkWritable();
+    flushIfNeeded();
+    writeController.throttle(this);
+    MVCC.WriteEntry entry;
+    long txid;
+    updateLock.readLock().lock();
+    try {
+      // Take the sequence ids after the throttling and under the read lock, so they're in the same
+      // order as the memstores the key values get into. Otherwise a stalled writer could put its
+      // older key value into a newer memstore, and shadow the newer one of a later writer.
+      entry = mvcc.begin(batch.size());
+      List<KeyValue> kvs;
+      try {
+        kvs = batch.toKeyValues(entry.getFirstSequenceId());
+        txid = appendWAL(kvs);
+      } catch (IOException | RuntimeException e) {
+        // Nothing is logged or added yet.
+        mvcc.complete(entry);
+        throw e;
+      }
+      try {
+        putAll(kvs);
+      } catch (Throwable t) {
+        // Part of the batch may be in the memstore and all of it in the WAL, so it can be neither
+        // completed nor rolled back.
+        IOException e = new IOException("Failed to add the key values into the memstore", t);
+        failWrites(e);
+        mvcc.fail(e);
+        throw t;
+      }
+    } finally {
+      updateLock.readLock().unlock();
+    }
+    try {
+      syncWAL(txid);
+    } catch (IOException e) {
+      mvcc.fail(e);
+      throw e;
+    }
+    mvcc.complete(entry);
+    flushIfNeeded();
+    return entry;
+  }
+
+  /**
+   * Must be called under the read lock.
+   *
+   * @return the txid of the WAL record, 0 if no WAL.
+   */
+  private long appendWAL(List<KeyValue> kvs) throws IOException {
+    // Append the WAL under the read lock, so the log can only be rolled when all the appended
+    // key values are in the kvMap which is going to be snapshot.
+    return wal != null ? wal.append(kvs) : 0;
+  }
+
+  /**
+   * Must be called under the read lock.
+   */
+  private void putAll(List<KeyValue> kvs) {
+    Segment segment = active;
+    long delta = 0;
+    try {
+      for (KeyValue kv : kvs) {
+        delta += putToKVMap(segment, kv);
+      }
+    } finally {
+      dataSize.addAndGet(delta);
+    }
+  }
+
+  private void syncWAL(long txid) throws IOException {
+    // Sync outside the lock, so that concurrent writers can share one fsync.
+    if (wal != null) {
+      try {
+        wal.sync(txid);
+      } catch (IOException e) {
+        // The failed WAL can't log anything any more.
+        failWrites(e);
+        throw e;
       }
+    }
+  }
+
+  /**
+   * Add the key value recovered from the WAL, it's already logged so no need to append WAL again.
+   * The memstore is flushed and throttled like the normal writes, so a large WAL never grows it
+   * far past the max memstore size.
+   */
+  public void replay(KeyValue kv) throws IOException {
+    checkWritable();
+    flushIfNeeded();
+    writeController.throttle(this);
+    updateLock.readLock().lock();
+    try {
+      addToKVMap(kv);
     } finally {
       updateLock.readLock().unlock();
     }
-    flushIfNeeded(false);
+    flushIfNeeded();
+  }
+
+  private void addToKVMap(KeyValue kv) {
+    dataSize.addAndGet(putToKVMap(active, kv));
   }
 
-  private void flushIfNeeded(boolean shouldBlocking) throws IOException {
-    if (getDataSize() > conf.getMaxMemstoreSize()) {
-      if (isSnapshotFlushing.get() && shouldBlocking) {
-        throw new IOException(
-                "Memstore is full, currentDataSize=" + dataSize.get() + "B, maxMemstoreSize="
-                + conf.getMaxMemstoreSize() + "B, please wait until the flushing is finished.");
-      } else if (isSnapshotFlushing.compareAndSet(false, true)) {
-        pool.submit(new FlusherTask());
+  /**
+   * @return the delta of the data size.
+   */
+  private static long putToKVMap(Segment segment, KeyValue kv) {
+    if (segment.arena != null) {
+      kv = segment.arena.copy(kv);
+    }
+    KeyValue prevKeyValue;
+    if ((prevKeyValue = segment.kvMap.put(kv, kv)) == null) {
+      return kv.getSerializeSize();
+    } else {
+      return kv.getSerializeSize() - prevKeyValue.getSerializeSize();
+    }
+  }
+
+  /**
+   * @throws IOException if the memstore can't accept writes because of a previous failure.
+   */
+  void checkWritable() throws IOException {
+    IOException e = writeError;
+    if (e != null) {
+      throw new IOException("The memstore is read-only because of a previous failure", e);
+    }
+  }
+
+  /**
+   * Reject all the writes from now on, and wake up the stalled writers to fail them.
+   */
+  private void failWrites(IOException e) {
+    if (writeError == null) {
+      writeError = e;
+    }
+    writeController.flushFinished();
+  }
+
+  private void flushIfNeeded() {
+    if (getDataSize() > conf.getMaxMemstoreSize() && !isImmutableQueueFull()) {
+      Segment immutable = switchMemStore();
+      if (immutable != null) {
+        pool.submit(new FlusherTask(immutable));
       }
     }
   }
 
+  /**
+   * Turn the active kvMap into an immutable memstore, and roll the WAL at the same time.
+   *
+   * @return the new immutable memstore, or null if another writer has switched it.
+   */
+  private Segment switchMemStore() {
+    updateLock.writeLock().lock();
+    try {
+      if (getDataSize() <= conf.getMaxMemstoreSize() || isImmutableQueueFull()) {
+        return null;
+      }
+      long rolledLogId = -1L;
+      if (wal != null) {
+        try {
+          rolledLogId = wal.roll();
+        } catch (IOException e) {
+          // Keep the old logs, they will be removed after the next successful flush.
+          LOG.error("Failed to roll the WAL when switching the memstore", e);
+        }
+      }
+      Segment immutable = active;
+      immutable.rolledLogId = rolledLogId;
+      synchronized (immutablesLock) {
+        List<Segment> newImmutables = new ArrayList<>(immutables);
+        newImmutables.add(immutable);
+        immutables = Collections.unmodifiableList(newImmutables);
+      }
+      active = newSegment();
+      dataSize.set(0);
+      return immutable;
+    } finally {
+      updateLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Install the flushed disk files in the order of the immutable memstores, from the oldest one,
+   * and stop at the first one which is still flushing. Then the newer data never gets into the
+   * disk store ahead of the older data, even if the flushes finish out of order.
+   */
+  private void commitFlushed() {
+    synchronized (immutablesLock) {
+      while (!immutables.isEmpty() && immutables.get(0).committer != null) {
+        Segment oldest = immutables.get(0);
+        // Make the disk file visible before removing the memstore, so readers always find the
+        // key values in either of them.
+        oldest.committer.run();
+        immutables = Collections.unmodifiableList(
+            new ArrayList<>(immutables.subList(1, immutables.size())));
+        if (wal != null) {
+          wal.removeLogsUpTo(oldest.rolledLogId);
+        }
+        oldest.release();
+      }
+    }
+    writeController.flushFinished();
+  }
+
+  /**
+   * Get the newest key value (either Put or Delete) of the given key in the memstore.
+   *
+   * @return the newest key value, or null if no key value of the key in the memstore.
+   */
+  public KeyValue get(byte[] key) {
+    return get(key, Long.MAX_VALUE);
+  }
+
+  /**
+   * Get the newest key value (either Put or Delete) of the given key, whose sequence id is not
+   * greater than the read point.
+   */
+  public KeyValue get(byte[] key, long readPoint) {
+    // The smallest key value among all the key values with the same key and a visible sequence id.
+    KeyValue target = KeyValue.createDelete(key, readPoint);
+    // Read the active one before the immutables, because it will be switched to be immutable.
+    KeyValue kv = getNewest(active, target);
+    List<Segment> immutables = this.immutables;
+    for (int i = immutables.size() - 1; i >= 0 && kv == null; i--) {
+      kv = getNewest(immutables.get(i), target);
+    }
+    return kv;
+  }
+
+  private static KeyValue getNewest(Segment segment, KeyValue target) {
+    // The segment has been flushed and released if failed to retain, then its key values can be
+    // found in the disk files.
+    if (!segment.retain()) {
+      return null;
+    }
+    try {
+      KeyValue kv = segment.kvMap.ceilingKey(target);
+      // Detach the key value from the arena, which will be reused once the segment is released.
+      return kv != null && kv.compareKey(target) == 0 ? kv.detach() : null;
+    } finally {
+      segment.release();
+    }
+  }
+
   public long getDataSize() {
     return dataSize.get();
   }
 
   public boolean isFlushing() {
-    return this.isSnapshotFlushing.get();
+    return !this.immutables.isEmpty();
+  }
+
+  /**
+   * @return number of the immutable memstores waiting to be flushed.
+   */
+  public int getImmutableCount() {
+    return this.immutables.size();
+  }
+
+  /**
+   * @return true if no more immutable memstore can be queued, the writes should be throttled until
+   * the oldest one is flushed.
+   */
+  public boolean isImmutableQueueFull() {
+    return this.immutables.size() >= conf.getMaxImmutableMemstores();
+  }
+
+  public WriteController getWriteController() {
+    return this.writeController;
+  }
+
+  /**
+   * @return the pool of the off-heap chunks, null if the memstore arena is disabled.
+   */
+  public ChunkPool getChunkPool() {
+    return this.chunkPool;
   }
 
   @Override
   public void close() throws IOException {
   }
 
+  /**
+   * The key values of the active memstore or one of the immutable memstores.
+   */
+  private static class Segment {
+    private final ConcurrentSkipListMap<KeyValue, KeyValue> kvMap = new ConcurrentSkipListMap<>();
+    // The off-heap storage of the key values in kvMap, null if they're on heap.
+    private final MemStoreArena arena;
+    // All the logs up to it can be removed once this memstore is flushed.
+    private volatile long rolledLogId = -1L;
+    // Set when the disk file is written, and run to make the disk file visible.
+    private volatile Runnable committer;
+
+    private Segment(MemStoreArena arena) {
+      this.arena = arena;
+    }
+
+    /**
+     * @return false if the segment has been released, its key values must not be read any more.
+     */
+    private boolean retain() {
+      return arena == null || arena.retain();
+    }
+
+    private void release() {
+      if (arena != null) {
+        arena.release();
+      }
+    }
+  }
+
   private class FlusherTask implements Runnable {
+
+    private final Segment immutable;
+
+    private FlusherTask(Segment immutable) {
+      this.immutable = immutable;
+    }
+
     @Override
     public void run() {
-      // Step.1 memstore snpashot
-      updateLock.writeLock().lock();
-      try {
-        snapshot = kvMap;
-        // TODO MemStoreIter may find the kvMap changed ? should synchronize ?
-        kvMap = new ConcurrentSkipListMap<>();
-        dataSize.set(0);
-      } finally {
-        updateLock.writeLock().unlock();
-      }
-
-      // Step.2 Flush the memstore to disk file.
-      boolean success = false;
+      // Step.1 Write the immutable memstore into a disk file, in parallel with the other flushes.
+      IOException error = null;
       for (int i = 0; i < conf.getFlushMaxRetries(); i++) {
         try {
-          flusher.flush(new IteratorWrapper(snapshot));
-          success = true;
+          immutable.committer = flusher.prepareFlush(new IteratorWrapper(immutable.kvMap));
+          break;
         } catch (IOException e) {
           LOG.error("Failed to flush memstore, retries=" + i + ", maxFlushRetries="
                     + conf.getFlushMaxRetries(),
                   e);
-          if (i >= conf.getFlushMaxRetries()) {
-            break;
-          }
+          error = e;
         }
       }
 
-      // Step.3 clear the snapshot.
-      if (success) {
-        // TODO MemStoreIter may get a NPE because we set null here ? should synchronize ?
-        snapshot = null;
-        isSnapshotFlushing.compareAndSet(true, false);
+      // Step.2 Install the disk files and remove the immutable memstores in order.
+      if (immutable.committer != null) {
+        commitFlushed();
+      } else {
+        // The newer memstores can never be installed ahead of this one, so stop the writes instead
+        // of letting them stall behind it.
+        failWrites(error != null ? error : new IOException("Failed to flush memstore"));
       }
     }
   }
 
+  /**
+   * Create the iterator over the active and all the immutable memstores. The arenas of them are
+   * retained until the iterator is exhausted.
+   */
   public SeekIter<KeyValue> createIterator() throws IOException {
-    return new MemStoreIter(kvMap, snapshot);
+    return createIterator(false);
+  }
+
+  /**
+   * @param descending iterate from the largest key value to the smallest.
+   */
+  public SeekIter<KeyValue> createIterator(boolean descending) throws IOException {
+    List<Segment> segments = new ArrayList<>();
+    // Read the active one before the immutables, because it will be switched to be immutable.
+    Segment active = this.active;
+    if (active.retain()) {
+      segments.add(active);
+    }
+    for (Segment immutable : immutables) {
+      if (immutable.retain()) {
+        segments.add(immutable);
+      }
+    }
+    return new MemStoreIter(segments, descending);
   }
 
   public static class IteratorWrapper implements SeekIter<KeyValue> {
@@ -153,35 +515,55 @@ public class MemStore implements Closeable {
     }
   }
 
-  private class MemStoreIter implements SeekIter<KeyValue> {
+  private static class MemStoreIter implements SeekIter<KeyValue> {
 
     private MultiIter it;
+    private List<Segment> segments;
 
-    public MemStoreIter(NavigableMap<KeyValue, KeyValue> kvSet,
-                        NavigableMap<KeyValue, KeyValue> snapshot) throws IOException {
+    public MemStoreIter(List<Segment> segments, boolean descending) throws IOException {
       List<IteratorWrapper> inputs = new ArrayList<>();
-      if (kvSet != null && kvSet.size() > 0) {
-        inputs.add(new IteratorWrapper(kvMap));
-      }
-      if (snapshot != null && snapshot.size() > 0) {
-        inputs.add(new IteratorWrapper(snapshot));
+      for (Segment segment : segments) {
+        if (segment.kvMap.size() > 0) {
+          // The tailMap of the descending map is what a descending seekTo needs.
+          inputs.add(new IteratorWrapper(descending ? segment.kvMap.descendingMap()
+              : segment.kvMap));
+        }
       }
-      it = new MultiIter(inputs.toArray(new IteratorWrapper[0]));
+      this.segments = segments;
+      this.it = new MultiIter(inputs.toArray(new IteratorWrapper[0]), descending);
     }
 
     @Override
     public boolean hasNext() throws IOException {
-      return it.hasNext();
+      if (it.hasNext()) {
+        return true;
+      }
+      // Exhausted, so the arenas can be reused.
+      close();
+      return false;
     }
 
     @Override
     public KeyValue next() throws IOException {
-      return it.next();
+      // Detach the key value from the arena, which will be reused once the iterator is exhausted.
+      return it.next().detach();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (segments != null) {
+        segments.forEach(Segment::release);
+        segments = null;
+      }
     }
 
     @Override
     public void seekTo(KeyValue kv) throws IOException {
-      it.seekTo(kv);
+      // The arenas may have been reused once exhausted. It's fine to stay exhausted, since the
+      // scans only seek in the direction of the iteration.
+      if (segments != null) {
+        it.seekTo(kv);
+      }
     }
   }
 }
@@ -0,0 +1,101 @@
+package org.apache.minibase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Off-heap storage of the key values in one memstore. The key and value of every added key value
+ * are copied into a chunk from the {@link ChunkPool}, and the memstore indexes the returned views,
+ * so the heap only holds the small view objects instead of the key and value arrays.
+ * <p>
+ * The arena is reference counted: the memstore holds one reference until it's flushed, and every
+ * reader holds one while reading the views. The chunks are put back to the pool when the count
+ * drops to zero. A reader which never releases its reference only keeps the chunks out of the
+ * pool, they're still freed by the GC.
+ */
+public class MemStoreArena {
+
+  private final ChunkPool pool;
+  // Key values larger than it are kept on heap, so they won't waste most of a chunk.
+  private final int maxAllocSize;
+  private final AtomicInteger refCount = new AtomicInteger(1);
+
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  private ByteBuffer currentChunk;
+  private int currentOffset;
+
+  public MemStoreArena(ChunkPool pool) {
+    this.pool = pool;
+    this.maxAllocSize = pool.getChunkSize() / 4;
+  }
+
+  /**
+   * Copy the key and value into the arena.
+   *
+   * @return the view over the arena, or the key value itself if it's too large for the arena.
+   */
+  public KeyValue copy(KeyValue kv) {
+    int keyLength = kv.getKeyLength();
+    int size = keyLength + kv.getValueLength();
+    if (size > maxAllocSize) {
+      return kv;
+    }
+    ByteBuffer chunk;
+    int offset;
+    synchronized (this) {
+      if (currentChunk == null || currentOffset + size > currentChunk.capacity()) {
+        currentChunk = pool.allocate();
+        currentOffset = 0;
+        chunks.add(currentChunk);
+      }
+      chunk = currentChunk;
+      offset = currentOffset;
+      currentOffset += size;
+    }
+    // The regions never overlap, so the writers can copy concurrently.
+    ByteBuffer dup = chunk.duplicate();
+    dup.position(offset);
+    dup.put(kv.getKey());
+    dup.put(kv.getValue());
+    return KeyValue.createView(chunk, offset, keyLength, offset + keyLength, kv.getValueLength(),
+      kv.getOp(), kv.getSequenceId());
+  }
+
+  /**
+   * Take a reference before reading the views of the arena.
+   *
+   * @return false if the arena has been released, and its views must not be read any more.
+   */
+  public boolean retain() {
+    for (;;) {
+      int count = refCount.get();
+      if (count <= 0) {
+        return false;
+      }
+      if (refCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  public void release() {
+    if (refCount.decrementAndGet() == 0) {
+      synchronized (this) {
+        for (ByteBuffer chunk : chunks) {
+          pool.recycle(chunk);
+        }
+        chunks.clear();
+        currentChunk = null;
+      }
+    }
+  }
+
+  /**
+   * @return number of the chunks allocated by this arena.
+   */
+  public synchronized int getChunkCount() {
+    return chunks.size();
+  }
+}
@@ -0,0 +1,186 @@
+package org.apache.minibase;
+
+import org.apache.log4j.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the counters, gauges and histograms of one store. The metrics can be pulled by
+ * {@link #snapshot()}, or read as the attributes of an MBean once {@link #registerMBean(String)}.
+ */
+public class Metrics {
+
+  private static final Logger LOG = Logger.getLogger(Metrics.class);
+  private static final double[] PERCENTILES = {50, 75, 95, 99, 99.9};
+
+  private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+  private ObjectName objectName;
+
+  public static class Counter {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+      value.increment();
+    }
+
+    public void add(long delta) {
+      value.add(delta);
+    }
+
+    public long get() {
+      return value.sum();
+    }
+  }
+
+  public Counter counter(String name) {
+    return get(name, Counter.class, Counter::new);
+  }
+
+  public Histogram histogram(String name) {
+    return get(name, Histogram.class, Histogram::new);
+  }
+
+  /**
+   * Register a gauge, whose value is read from the supplier whenever the metrics are pulled.
+   */
+  public void gauge(String name, LongSupplier supplier) {
+    metrics.put(name, supplier);
+  }
+
+  private <T> T get(String name, Class<T> clazz, Supplier<T> factory) {
+    Object metric = metrics.computeIfAbsent(name, n -> factory.get());
+    if (!clazz.isInstance(metric)) {
+      throw new IllegalArgumentException(
+          name + " is a " + metric.getClass().getSimpleName() + ", not a " + clazz.getSimpleName());
+    }
+    return clazz.cast(metric);
+  }
+
+  /**
+   * @return all the metrics ordered by name. A histogram is expanded into name.count, name.mean,
+   * name.max and the percentiles like name.p99 and name.p99_9.
+   */
+  public Map<String, Long> snapshot() {
+    Map<String, Long> snapshot = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> e : metrics.entrySet()) {
+      String name = e.getKey();
+      Object metric = e.getValue();
+      if (metric instanceof Counter) {
+        snapshot.put(name, ((Counter) metric).get());
+      } else if (metric instanceof LongSupplier) {
+        snapshot.put(name, ((LongSupplier) metric).getAsLong());
+      } else if (metric instanceof Histogram) {
+        Histogram h = (Histogram) metric;
+        snapshot.put(name + ".count", h.getCount());
+        snapshot.put(name + ".mean", h.getMean());
+        for (double p : PERCENTILES) {
+          String suffix = p == (long) p ? String.valueOf((long) p) : String.valueOf(p);
+          snapshot.put(name + ".p" + suffix.replace('.', '_'), h.getPercentile(p));
+        }
+        snapshot.put(name + ".max", h.getMax());
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Publish the metrics as an MBean named org.apache.minibase:type=MiniBase,name=[name]. A
+   * failure is only logged, since the metrics can still be pulled.
+   */
+  public void registerMBean(String name) {
+    try {
+      ObjectName on = new ObjectName("org.apache.minibase:type=MiniBase,name="
+                                     + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), on);
+      this.objectName = on;
+    } catch (JMException e) {
+      LOG.warn("Failed to register the metrics MBean of " + name, e);
+    }
+  }
+
+  public void unregisterMBean() {
+    if (objectName == null) {
+      return;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.unregisterMBean(objectName);
+    } catch (JMException e) {
+      LOG.warn("Failed to unregister the metrics MBean " + objectName, e);
+    }
+    objectName = null;
+  }
+
+  /**
+   * @return the name of the registered MBean, null if not registered.
+   */
+  public ObjectName getObjectName() {
+    return objectName;
+  }
+
+  private class MetricsMBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Long value = snapshot().get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Long> snapshot = snapshot();
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        Long value = snapshot.get(attribute);
+        if (value != null) {
+          list.add(new Attribute(attribute, value));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("The metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      Map<String, Long> snapshot = snapshot();
+      MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[snapshot.size()];
+      int i = 0;
+      for (String name : snapshot.keySet()) {
+        attrs[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+      }
+      return new MBeanInfo(Metrics.class.getName(), "MiniBase metrics", attrs, null, null, null);
+    }
+  }
+}
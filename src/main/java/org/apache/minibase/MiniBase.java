@@ -2,6 +2,7 @@ package org.apache.minibase;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 public interface MiniBase extends Closeable {
 
@@ -9,8 +10,36 @@ public interface MiniBase extends Closeable {
 
   KeyValue get(byte[] key) throws IOException;
 
+  /**
+   * Get the value of the key as of the snapshot.
+   *
+   * @param snapshot null means reading the latest data.
+   */
+  KeyValue get(byte[] key, Snapshot snapshot) throws IOException;
+
+  /**
+   * Get the values of many keys at once, which is cheaper than getting them one by one: the keys
+   * are looked up in the key order, so each disk file and each of its blocks is read once.
+   *
+   * @return the key values in the same order as the keys, null for the keys not found.
+   */
+  List<KeyValue> multiGet(List<byte[]> keys) throws IOException;
+
+  /**
+   * Get the values of many keys as of the snapshot.
+   *
+   * @param snapshot null means reading the latest data.
+   */
+  List<KeyValue> multiGet(List<byte[]> keys, Snapshot snapshot) throws IOException;
+
   void delete(byte[] key) throws IOException;
 
+  /**
+   * Apply all the mutations in the batch atomically, with one lock acquisition and one contiguous
+   * range of sequence ids. Readers see either all or none of them.
+   */
+  void write(WriteBatch batch) throws IOException;
+
   /**
    * Fetch all the key values whose key located in the range [startKey, stopKey)
    *
@@ -22,6 +51,34 @@ public interface MiniBase extends Closeable {
    */
   Iter<KeyValue> scan(byte[] startKey, byte[] stopKey) throws IOException;
 
+  /**
+   * Scan the range [startKey, stopKey) as of the snapshot, the scan never sees the writes after
+   * the snapshot, no matter how long it takes.
+   *
+   * @param snapshot null means reading the data when the scan starts.
+   */
+  Iter<KeyValue> scan(byte[] startKey, byte[] stopKey, Snapshot snapshot) throws IOException;
+
+  /**
+   * Fetch all the key values in the range [startKey, stopKey) like
+   * {@link #scan(byte[], byte[])}, but from the largest key to the smallest.
+   */
+  Iter<KeyValue> descendingScan(byte[] startKey, byte[] stopKey) throws IOException;
+
+  /**
+   * Scan the range [startKey, stopKey) as of the snapshot, from the largest key to the smallest.
+   *
+   * @param snapshot null means reading the data when the scan starts.
+   */
+  Iter<KeyValue> descendingScan(byte[] startKey, byte[] stopKey, Snapshot snapshot)
+      throws IOException;
+
+  /**
+   * Take a snapshot of the current data, which must be closed after use, otherwise the versions
+   * visible to it will never be dropped by the compactions.
+   */
+  Snapshot getSnapshot();
+
   /**
    * Full scan the Key Value store.
    *
@@ -32,14 +89,32 @@ public interface MiniBase extends Closeable {
     return scan(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES);
   }
 
-  interface Iter<KeyValue> {
+  interface Iter<KeyValue> extends Closeable {
     boolean hasNext() throws IOException;
 
     KeyValue next() throws IOException;
+
+    /**
+     * Release the resources held by the iterator, e.g. the disk files pinned by a scan. An
+     * exhausted scan is closed by itself, but a scan not iterated to the end must be closed.
+     */
+    @Override
+    default void close() throws IOException {
+    }
   }
 
   interface Flusher {
     void flush(Iter<KeyValue> it) throws IOException;
+
+    /**
+     * Write the key values without making them visible to the readers, until the returned action
+     * is run. So the memstores can be flushed in parallel, but installed in their order.
+     */
+    default Runnable prepareFlush(Iter<KeyValue> it) throws IOException {
+      flush(it);
+      return () -> {
+      };
+    }
   }
 
   abstract class Compactor extends Thread {
@@ -0,0 +1,172 @@
+package org.apache.minibase;
+
+import org.apache.log4j.Logger;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket limiting the bytes written by the flushes and compactions, so they can't take
+ * all the disk bandwidth from the foreground reads. The bucket is refilled at bytesPerSecond and
+ * holds at most 100ms worth of tokens.
+ * <p>
+ * A request takes its tokens right away and may drive the bucket negative, the low priority
+ * requester then sleeps until the debt is paid back. The high priority requests (flushes) are
+ * charged but never delayed, because a delayed flush stalls the writers, so they slow down the
+ * compactions instead.
+ * <p>
+ * If auto-tuned, the rate is checked every second within [maxBytesPerSecond / 10,
+ * maxBytesPerSecond]: it's raised by 25% if the compaction debt is growing, otherwise lowered by
+ * 20% if the mean foreground latency of the last second is twice its usual level.
+ */
+public class RateLimiter {
+
+  private static final Logger LOG = Logger.getLogger(RateLimiter.class);
+
+  private static final long REFILL_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long TUNE_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+  // Ignore the latency of a tune interval with too few requests, it's mostly noise.
+  private static final long MIN_LATENCY_SAMPLES = 100;
+
+  public enum Priority {
+    HIGH, LOW
+  }
+
+  private final long maxBytesPerSecond;
+  private volatile long bytesPerSecond;
+  private long availableBytes;
+  private long lastRefillNs;
+
+  private LongSupplier compactionDebt;
+  private Histogram foregroundLatency;
+  private long lastTuneNs;
+  private long lastDebt;
+  private long lastLatencyCount;
+  private long lastLatencySum;
+  private long baselineLatency;
+
+  private final AtomicLong totalBytes = new AtomicLong();
+  private final AtomicLong throttledTimeNs = new AtomicLong();
+
+  /**
+   * @param bytesPerSecond the max rate, 0 or negative means unlimited.
+   */
+  public RateLimiter(long bytesPerSecond) {
+    this.maxBytesPerSecond = bytesPerSecond;
+    this.bytesPerSecond = bytesPerSecond;
+    this.lastRefillNs = System.nanoTime();
+    this.lastTuneNs = lastRefillNs;
+  }
+
+  /**
+   * Tune the rate by the compaction debt and the foreground latency.
+   *
+   * @param compactionDebt    grows when the compactions can't keep up, e.g. the count of level 0
+   *                          files.
+   * @param foregroundLatency the latency of the foreground requests to protect.
+   */
+  public synchronized void enableAutoTune(LongSupplier compactionDebt,
+      Histogram foregroundLatency) {
+    this.compactionDebt = compactionDebt;
+    this.foregroundLatency = foregroundLatency;
+    this.lastDebt = compactionDebt.getAsLong();
+    this.lastLatencyCount = foregroundLatency.getCount();
+    this.lastLatencySum = foregroundLatency.getSum();
+  }
+
+  public boolean isLimited() {
+    return maxBytesPerSecond > 0;
+  }
+
+  /**
+   * Take the tokens of the bytes to write, and wait until the bucket is refilled if it's a low
+   * priority request.
+   */
+  public void request(long bytes, Priority priority) throws InterruptedIOException {
+    totalBytes.addAndGet(bytes);
+    if (!isLimited()) {
+      return;
+    }
+    long waitNs;
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (compactionDebt != null && now - lastTuneNs >= TUNE_INTERVAL_NS) {
+        tune();
+        lastTuneNs = now;
+      }
+      refill(now);
+      availableBytes -= bytes;
+      if (priority == Priority.HIGH || availableBytes >= 0) {
+        return;
+      }
+      waitNs = -availableBytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+    }
+    long start = System.nanoTime();
+    try {
+      TimeUnit.NANOSECONDS.sleep(waitNs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the rate limiter");
+    } finally {
+      throttledTimeNs.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  private void refill(long now) {
+    long elapsedNs = now - lastRefillNs;
+    long maxAvailable = bytesPerSecond * REFILL_PERIOD_NS / TimeUnit.SECONDS.toNanos(1);
+    long refilled = (long) ((double) bytesPerSecond * elapsedNs / TimeUnit.SECONDS.toNanos(1));
+    availableBytes = Math.min(maxAvailable, availableBytes + refilled);
+    lastRefillNs = now;
+  }
+
+  synchronized void tune() {
+    long debt = compactionDebt.getAsLong();
+    long count = foregroundLatency.getCount();
+    long sum = foregroundLatency.getSum();
+    long latency = count - lastLatencyCount >= MIN_LATENCY_SAMPLES
+        ? (sum - lastLatencySum) / (count - lastLatencyCount) : -1;
+    boolean degraded = latency > 0 && baselineLatency > 0 && latency > 2 * baselineLatency;
+
+    long minBytesPerSecond = Math.max(1, maxBytesPerSecond / 10);
+    long rate = bytesPerSecond;
+    if (debt > lastDebt) {
+      rate = Math.min(maxBytesPerSecond, rate + rate / 4);
+    } else if (degraded) {
+      rate = Math.max(minBytesPerSecond, rate - rate / 5);
+    }
+    if (rate != bytesPerSecond) {
+      LOG.debug("Tune the rate from " + bytesPerSecond + " to " + rate + " bytes/s, debt="
+          + debt + ", latency=" + latency + ", baselineLatency=" + baselineLatency);
+      bytesPerSecond = rate;
+    }
+    // Only the healthy latency contributes to the baseline, else the baseline will follow the
+    // degraded latency up.
+    if (latency > 0 && !degraded) {
+      baselineLatency = baselineLatency == 0 ? latency : (baselineLatency * 7 + latency) / 8;
+    }
+    lastDebt = debt;
+    lastLatencyCount = count;
+    lastLatencySum = sum;
+  }
+
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * @return the bytes requested since created.
+   */
+  public long getTotalBytes() {
+    return totalBytes.get();
+  }
+
+  /**
+   * @return the time the low priority requesters spent waiting for the tokens.
+   */
+  public long getThrottledTimeMs() {
+    return TimeUnit.NANOSECONDS.toMillis(throttledTimeNs.get());
+  }
+}
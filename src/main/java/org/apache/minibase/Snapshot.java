@@ -0,0 +1,43 @@
+package org.apache.minibase;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A consistent view of the store at a sequence id: the reads with the snapshot only see the writes
+ * completed before it was taken. The compactions keep the versions visible to the live snapshots,
+ * so a snapshot must be closed once it's no longer used, otherwise the overwritten and deleted
+ * versions can never be dropped.
+ */
+public class Snapshot implements Closeable {
+
+  private final MVCC mvcc;
+  private final long sequenceId;
+  private final AtomicBoolean released = new AtomicBoolean(false);
+
+  Snapshot(MVCC mvcc, long sequenceId) {
+    this.mvcc = mvcc;
+    this.sequenceId = sequenceId;
+  }
+
+  /**
+   * @return the largest sequence id visible to the snapshot.
+   */
+  public long getSequenceId() {
+    return sequenceId;
+  }
+
+  public boolean isReleased() {
+    return released.get();
+  }
+
+  /**
+   * Release the snapshot, it's a no-op if already released.
+   */
+  @Override
+  public void close() {
+    if (released.compareAndSet(false, true)) {
+      mvcc.releaseSnapshot(this);
+    }
+  }
+}
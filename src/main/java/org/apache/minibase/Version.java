@@ -0,0 +1,85 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable set of the live disk files. The disk store holds a reference to its current
+ * version, and a reader pins the version it reads, so the flushes and compactions can install a
+ * new version at any time without breaking the readers.
+ * <p>
+ * A version holds a reference to each of its disk files, so a disk file is closed only after all
+ * the versions containing it are released. If the file was compacted away, it's archived then.
+ */
+public class Version {
+
+  private final List<DiskFile> files;
+  // The max read point of the compactions installed up to this version.
+  private final long compactedReadPoint;
+  private final AtomicInteger refCount = new AtomicInteger(1);
+
+  /**
+   * @param files ordered from the oldest to the newest.
+   */
+  Version(List<DiskFile> files, long compactedReadPoint) {
+    this.files = Collections.unmodifiableList(new ArrayList<>(files));
+    this.compactedReadPoint = compactedReadPoint;
+    for (DiskFile df : files) {
+      df.retain();
+    }
+  }
+
+  /**
+   * @return all the disk files, ordered from the oldest to the newest.
+   */
+  public List<DiskFile> getFiles() {
+    return files;
+  }
+
+  /**
+   * The compactions may have dropped the versions only visible to a read point older than it,
+   * except those pinned by the snapshots.
+   */
+  public long getCompactedReadPoint() {
+    return compactedReadPoint;
+  }
+
+  /**
+   * @return false if the version has been released, then its files must not be read.
+   */
+  boolean retain() {
+    while (true) {
+      int count = refCount.get();
+      if (count <= 0) {
+        return false;
+      }
+      if (refCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Release a reference, the files are released once the last reference is gone.
+   */
+  public void release() throws IOException {
+    int count = refCount.decrementAndGet();
+    assert count >= 0;
+    if (count == 0) {
+      IOException exception = null;
+      for (DiskFile df : files) {
+        try {
+          df.release();
+        } catch (IOException e) {
+          exception = e;
+        }
+      }
+      if (exception != null) {
+        throw exception;
+      }
+    }
+  }
+}
@@ -0,0 +1,439 @@
+package org.apache.minibase;
+
+import org.apache.log4j.Logger;
+import org.apache.minibase.MiniBase.Iter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log for the memstore. Each record is encoded as recordLen(4B) + checksum(4B) +
+ * serialized key values. All the key values of a write batch are in one record, so they're either
+ * all replayed or none.
+ * <p>
+ * Writers append their record into an in-memory buffer under a short lock and get a txid back.
+ * Syncing is done with group commit: the first writer which finds its txid un-synced becomes the
+ * leader, swaps the buffer out, and does one write + fsync for every record appended so far, all
+ * the followers waiting behind it will find their txid synced once the leader finished.
+ * <p>
+ * A new log file is rolled whenever the memstore takes a snapshot, and all the logs up to the
+ * rolled one can be removed once that snapshot has been flushed into a disk file.
+ */
+public class WAL implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(WAL.class);
+  private static final Pattern WAL_FILE_RE = Pattern.compile("wal\\.([0-9]+)"); // wal.1
+  private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+  public enum SyncMode {
+    // Every put/delete waits until its record is fsync-ed.
+    SYNC,
+    // Records are fsync-ed by a background thread every walSyncIntervalMs.
+    ASYNC,
+    // Nothing is logged, the un-flushed memstore will be lost on crash.
+    NONE
+  }
+
+  private final String dataDir;
+  private final SyncMode syncMode;
+
+  // Lock ordering: syncLock -> appendLock.
+  private final Object syncLock = new Object();
+  private final Object appendLock = new Object();
+
+  // Guarded by appendLock.
+  private ByteArrayOutputStream pendingBuf = new ByteArrayOutputStream();
+  private long appendedTxid = 0;
+
+  // Guarded by syncLock.
+  private ByteArrayOutputStream syncingBuf = new ByteArrayOutputStream();
+  private FileOutputStream out;
+  private volatile long currentLogId = -1L;
+  private volatile long syncedTxid = 0;
+  // Set once the log failed to be written or synced. The log may end with a partial record then,
+  // so nothing can be appended or synced any more, otherwise the records could be lost or out of
+  // order when replaying.
+  private volatile IOException failure;
+
+  private long maxLogId;
+  private Thread asyncSyncer;
+  private volatile boolean closed = false;
+
+  public WAL(Config conf) {
+    this.dataDir = conf.getDataDir();
+    this.syncMode = conf.getWalSyncMode();
+    this.maxLogId = getMaxLogId();
+    if (syncMode == SyncMode.ASYNC) {
+      asyncSyncer = new AsyncSyncer(conf.getWalSyncIntervalMs());
+      asyncSyncer.start();
+    }
+  }
+
+  private static String getLogFileName(String dataDir, long logId) {
+    return new File(dataDir, String.format("wal.%020d", logId)).toString();
+  }
+
+  private static long parseLogId(File f) {
+    Matcher matcher = WAL_FILE_RE.matcher(f.getName());
+    return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1L;
+  }
+
+  private File[] listLogFiles() {
+    File[] files = new File(dataDir).listFiles(f -> WAL_FILE_RE.matcher(f.getName()).matches());
+    if (files == null) {
+      return new File[0];
+    }
+    Arrays.sort(files, (a, b) -> Long.compare(parseLogId(a), parseLogId(b)));
+    return files;
+  }
+
+  private long getMaxLogId() {
+    long maxId = -1L;
+    for (File f : listLogFiles()) {
+      maxId = Math.max(maxId, parseLogId(f));
+    }
+    return maxId;
+  }
+
+  /**
+   * Start to accept the appends. All the logs which exist before calling this method should be
+   * replayed by {@link #replay()} first.
+   */
+  public void open() throws IOException {
+    synchronized (syncLock) {
+      synchronized (appendLock) {
+        openNextLog();
+      }
+    }
+  }
+
+  private void openNextLog() throws IOException {
+    currentLogId = ++maxLogId;
+    File f = new File(getLogFileName(dataDir, currentLogId));
+    f.createNewFile();
+    out = createLogStream(f);
+  }
+
+  /**
+   * Overridden by the tests to inject the write failures.
+   */
+  FileOutputStream createLogStream(File f) throws IOException {
+    return new FileOutputStream(f, true);
+  }
+
+  private IOException newFailedException() {
+    return new IOException("WAL failed to sync, no more record can be logged", failure);
+  }
+
+  /**
+   * Append the key value into the log buffer, it's not durable until {@link #sync(long)} returned.
+   *
+   * @return the txid of this append, which can be used to {@link #sync(long)}.
+   */
+  public long append(KeyValue kv) throws IOException {
+    return append(Collections.singletonList(kv));
+  }
+
+  /**
+   * Append the key values as one record, so they're atomic when replaying.
+   *
+   * @return the txid of this append, which can be used to {@link #sync(long)}.
+   */
+  public long append(List<KeyValue> kvs) throws IOException {
+    if (syncMode == SyncMode.NONE) {
+      return 0;
+    }
+    byte[] kvBytes;
+    if (kvs.size() == 1) {
+      kvBytes = kvs.get(0).toBytes();
+    } else {
+      long recordSize = 0;
+      for (KeyValue kv : kvs) {
+        recordSize += kv.getSerializeSize();
+      }
+      if (recordSize > MAX_RECORD_SIZE) {
+        throw new IOException("The WAL record is too large: " + recordSize + "B, max: "
+                              + MAX_RECORD_SIZE + "B");
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) recordSize);
+      for (KeyValue kv : kvs) {
+        out.write(kv.toBytes());
+      }
+      kvBytes = out.toByteArray();
+    }
+    CRC32 crc32 = new CRC32();
+    crc32.update(kvBytes, 0, kvBytes.length);
+    byte[] recordLen = Bytes.toBytes(kvBytes.length);
+    byte[] checksum = Bytes.toBytes((int) crc32.getValue());
+    synchronized (appendLock) {
+      if (closed) {
+        throw new IOException("WAL is already closed");
+      }
+      if (failure != null) {
+        throw newFailedException();
+      }
+      pendingBuf.write(recordLen);
+      pendingBuf.write(checksum);
+      pendingBuf.write(kvBytes);
+      return ++appendedTxid;
+    }
+  }
+
+  /**
+   * Wait until the record with the given txid is persisted, only do the sync in SYNC mode. In ASYNC
+   * mode, the background syncer will persist the appended records.
+   *
+   * @throws IOException if the log failed to sync, then all the later appends and syncs fail too.
+   */
+  public void sync(long txid) throws IOException {
+    if (syncMode == SyncMode.SYNC) {
+      syncUpTo(txid);
+    }
+  }
+
+  private void syncUpTo(long txid) throws IOException {
+    if (syncedTxid >= txid) {
+      return;
+    }
+    synchronized (syncLock) {
+      // Another leader may have already synced our record while we're waiting the syncLock.
+      if (syncedTxid >= txid) {
+        return;
+      }
+      if (failure != null) {
+        throw newFailedException();
+      }
+      long batchTxid;
+      synchronized (appendLock) {
+        ByteArrayOutputStream tmp = syncingBuf;
+        syncingBuf = pendingBuf;
+        pendingBuf = tmp;
+        batchTxid = appendedTxid;
+      }
+      if (syncingBuf.size() > 0) {
+        try {
+          if (out == null) {
+            throw new IOException("WAL is not opened yet");
+          }
+          syncingBuf.writeTo(out);
+          out.getChannel().force(false);
+        } catch (IOException e) {
+          // Fail the appends first, then drop the failed records, so they're never written again
+          // after the newer records.
+          synchronized (appendLock) {
+            failure = e;
+          }
+          throw e;
+        } finally {
+          syncingBuf.reset();
+        }
+      }
+      syncedTxid = batchTxid;
+    }
+  }
+
+  private long getAppendedTxid() {
+    synchronized (appendLock) {
+      return appendedTxid;
+    }
+  }
+
+  /**
+   * Persist all the appended records and switch to a new log file. Should be called when nobody is
+   * appending, so that all the records in the rolled logs belong to the memstore snapshot.
+   *
+   * @return the id of the log which has been rolled, -1 if no log is opened.
+   */
+  public long roll() throws IOException {
+    synchronized (syncLock) {
+      syncUpTo(getAppendedTxid());
+      if (out == null) {
+        return -1L;
+      }
+      long rolledLogId = currentLogId;
+      try {
+        out.close();
+      } finally {
+        out = null;
+        synchronized (appendLock) {
+          openNextLog();
+        }
+      }
+      return rolledLogId;
+    }
+  }
+
+  /**
+   * Remove all the logs whose id is less than or equals to the given log id, because all their
+   * records have been flushed into disk files.
+   */
+  public void removeLogsUpTo(long logId) {
+    for (File f : listLogFiles()) {
+      long id = parseLogId(f);
+      if (id <= logId && id != currentLogId && !f.delete()) {
+        LOG.error("Failed to remove the flushed log " + f.getName());
+      }
+    }
+  }
+
+  /**
+   * Iterate all the records in the logs which exist before the WAL opened, in the log order.
+   */
+  public Iter<KeyValue> replay() {
+    List<File> logs = new ArrayList<>();
+    for (File f : listLogFiles()) {
+      if (parseLogId(f) != currentLogId) {
+        logs.add(f);
+      }
+    }
+    return new ReplayIter(logs);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (asyncSyncer != null) {
+      asyncSyncer.interrupt();
+    }
+    synchronized (syncLock) {
+      try {
+        // The failure has been thrown to the writers, no need to throw it again.
+        if (failure == null) {
+          syncUpTo(getAppendedTxid());
+        }
+      } finally {
+        synchronized (appendLock) {
+          closed = true;
+        }
+        if (out != null) {
+          out.close();
+          out = null;
+        }
+      }
+    }
+  }
+
+  private class AsyncSyncer extends Thread {
+    private final long syncIntervalMs;
+
+    AsyncSyncer(long syncIntervalMs) {
+      this.syncIntervalMs = syncIntervalMs;
+      this.setDaemon(true);
+      this.setName("WAL-AsyncSyncer");
+    }
+
+    @Override
+    public void run() {
+      while (!closed) {
+        try {
+          Thread.sleep(syncIntervalMs);
+          syncUpTo(getAppendedTxid());
+        } catch (IOException e) {
+          LOG.error("Failed to sync the WAL: ", e);
+          if (failure != null) {
+            break;
+          }
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+    }
+  }
+
+  private static class ReplayIter implements Iter<KeyValue> {
+
+    private final List<File> logs;
+    private int logIndex = 0;
+    private DataInputStream in;
+    private KeyValue nextKV;
+    // The remaining key values of the last read record.
+    private Queue<KeyValue> pendingKVs = new ArrayDeque<>();
+
+    ReplayIter(List<File> logs) {
+      this.logs = logs;
+    }
+
+    private void closeCurrentLog() throws IOException {
+      if (in != null) {
+        in.close();
+        in = null;
+      }
+    }
+
+    private KeyValue readNext() throws IOException {
+      if (!pendingKVs.isEmpty()) {
+        return pendingKVs.poll();
+      }
+      while (true) {
+        if (in == null) {
+          if (logIndex >= logs.size()) {
+            return null;
+          }
+          in = new DataInputStream(new BufferedInputStream(
+              new FileInputStream(logs.get(logIndex++))));
+        }
+        try {
+          int recordLen = in.readInt();
+          int checksum = in.readInt();
+          if (recordLen <= 0 || recordLen > MAX_RECORD_SIZE) {
+            LOG.warn("Invalid record length " + recordLen + " in " + logs.get(logIndex - 1)
+                     + ", skip the remaining.");
+            closeCurrentLog();
+            continue;
+          }
+          byte[] kvBytes = new byte[recordLen];
+          in.readFully(kvBytes);
+          CRC32 crc32 = new CRC32();
+          crc32.update(kvBytes, 0, kvBytes.length);
+          if (checksum != (int) crc32.getValue()) {
+            LOG.warn("Checksum mismatch in " + logs.get(logIndex - 1) + ", skip the remaining.");
+            closeCurrentLog();
+            continue;
+          }
+          ByteBuffer record = ByteBuffer.wrap(kvBytes);
+          while (record.hasRemaining()) {
+            pendingKVs.add(KeyValue.parseFrom(record));
+          }
+          return pendingKVs.poll();
+        } catch (EOFException e) {
+          // Reach the end of the log, or the tail record was torn by a crash.
+          closeCurrentLog();
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      if (nextKV == null) {
+        nextKV = readNext();
+      }
+      return nextKV != null;
+    }
+
+    @Override
+    public KeyValue next() throws IOException {
+      if (!hasNext()) {
+        return null;
+      }
+      KeyValue kv = nextKV;
+      nextKV = null;
+      return kv;
+    }
+  }
+}
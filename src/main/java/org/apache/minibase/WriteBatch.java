@@ -0,0 +1,63 @@
+package org.apache.minibase;
+
+import org.apache.minibase.KeyValue.Op;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of puts and deletes which is applied by {@link MiniBase#write(WriteBatch)} atomically:
+ * readers see either all or none of the mutations. If a key is mutated more than once in a batch,
+ * the later mutation wins.
+ */
+public class WriteBatch {
+
+  private final List<Mutation> mutations = new ArrayList<>();
+
+  private static class Mutation {
+    private final byte[] key;
+    private final byte[] value;
+    private final Op op;
+
+    Mutation(byte[] key, byte[] value, Op op) {
+      this.key = key;
+      this.value = value;
+      this.op = op;
+    }
+  }
+
+  public WriteBatch put(byte[] key, byte[] value) {
+    mutations.add(new Mutation(key, value, Op.Put));
+    return this;
+  }
+
+  public WriteBatch delete(byte[] key) {
+    mutations.add(new Mutation(key, Bytes.EMPTY_BYTES, Op.Delete));
+    return this;
+  }
+
+  public int size() {
+    return mutations.size();
+  }
+
+  public boolean isEmpty() {
+    return mutations.isEmpty();
+  }
+
+  public void clear() {
+    mutations.clear();
+  }
+
+  /**
+   * Create the key values of the mutations with the sequence ids starting from firstSequenceId, in
+   * the order they were added.
+   */
+  List<KeyValue> toKeyValues(long firstSequenceId) {
+    List<KeyValue> kvs = new ArrayList<>(mutations.size());
+    long sequenceId = firstSequenceId;
+    for (Mutation m : mutations) {
+      kvs.add(KeyValue.create(m.key, m.value, m.op, sequenceId++));
+    }
+    return kvs;
+  }
+}
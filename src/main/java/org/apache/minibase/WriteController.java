@@ -0,0 +1,132 @@
+package org.apache.minibase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Flow control of the writes into the memstore. Once the memstore exceeds maxMemstoreSize, it's
+ * switched to be immutable and flushed, and the writers keep filling a new memstore. If the
+ * flushes can't keep up and the queue of immutable memstores is full:
+ *
+ * <ul>
+ * <li>above the soft limit, every write is delayed, and the delay grows linearly from zero at the
+ * soft limit to maxWriteDelayUs at the hard limit;</li>
+ * <li>above the hard limit, the writes are blocked until the oldest flush finishes, and fail with
+ * an IOException if it doesn't finish in writeStallTimeoutMs.</li>
+ * </ul>
+ */
+public class WriteController {
+
+  private final long softLimit;
+  private final long hardLimit;
+  private final long maxDelayNs;
+  private final long stallTimeoutNs;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition flushFinished = lock.newCondition();
+
+  private final AtomicLong delayedWrites = new AtomicLong();
+  private final AtomicLong delayedTimeNs = new AtomicLong();
+  private final AtomicLong stalledWrites = new AtomicLong();
+  private final AtomicLong stalledTimeNs = new AtomicLong();
+
+  public WriteController(Config conf) {
+    this.softLimit = (long) (conf.getMaxMemstoreSize() * conf.getWriteSlowdownRatio());
+    this.hardLimit = (long) (conf.getMaxMemstoreSize() * conf.getWriteStopRatio());
+    this.maxDelayNs = TimeUnit.MICROSECONDS.toNanos(conf.getMaxWriteDelayUs());
+    this.stallTimeoutNs = TimeUnit.MILLISECONDS.toNanos(conf.getWriteStallTimeoutMs());
+    assert softLimit <= hardLimit;
+  }
+
+  /**
+   * Called before every write, to delay or block the writer if the store is over the limits.
+   */
+  public void throttle(MemStore store) throws IOException {
+    long dataSize = store.getDataSize();
+    if (dataSize <= softLimit || !store.isImmutableQueueFull()) {
+      return;
+    }
+    if (dataSize <= hardLimit) {
+      delay(dataSize);
+    } else {
+      stall(store);
+    }
+  }
+
+  private void delay(long dataSize) {
+    long delayNs = hardLimit == softLimit ? maxDelayNs
+        : (long) ((double) maxDelayNs * (dataSize - softLimit) / (hardLimit - softLimit));
+    if (delayNs <= 0) {
+      return;
+    }
+    long start = System.nanoTime();
+    LockSupport.parkNanos(delayNs);
+    delayedWrites.incrementAndGet();
+    delayedTimeNs.addAndGet(System.nanoTime() - start);
+  }
+
+  private void stall(MemStore store) throws IOException {
+    long start = System.nanoTime();
+    long remainingNs = stallTimeoutNs;
+    stalledWrites.incrementAndGet();
+    lock.lock();
+    try {
+      while (store.getDataSize() > hardLimit && store.isImmutableQueueFull()) {
+        store.checkWritable();
+        if (remainingNs <= 0) {
+          throw new IOException(
+              "Write stalled for " + TimeUnit.NANOSECONDS.toMillis(stallTimeoutNs)
+              + "ms, currentDataSize=" + store.getDataSize() + "B, hardLimit=" + hardLimit
+              + "B, the memstore flush can't keep up.");
+        }
+        remainingNs = flushFinished.awaitNanos(remainingNs);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while the write is stalled");
+    } finally {
+      lock.unlock();
+      stalledTimeNs.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Wake up all the stalled writers, called when a flush finished and the queue has room,
+   * or failed and the writes should be rejected.
+   */
+  public void flushFinished() {
+    lock.lock();
+    try {
+      flushFinished.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of the writes delayed by the soft limit.
+   */
+  public long getDelayedWrites() {
+    return delayedWrites.get();
+  }
+
+  public long getDelayedTimeMs() {
+    return TimeUnit.NANOSECONDS.toMillis(delayedTimeNs.get());
+  }
+
+  /**
+   * @return number of the writes blocked by the hard limit.
+   */
+  public long getStalledWrites() {
+    return stalledWrites.get();
+  }
+
+  public long getStalledTimeMs() {
+    return TimeUnit.NANOSECONDS.toMillis(stalledTimeNs.get());
+  }
+}
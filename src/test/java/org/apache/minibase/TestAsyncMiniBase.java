@@ -0,0 +1,187 @@
+package org.apache.minibase;
+
+import org.apache.minibase.AsyncMiniBase.Subscriber;
+import org.apache.minibase.AsyncMiniBase.Subscription;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TestAsyncMiniBase {
+
+  private Config conf;
+  private MiniBase db;
+
+  @Before
+  public void setUp() throws Exception {
+    String dataDir = "target/minibase-async-" + System.nanoTime();
+    Assert.assertTrue(new File(dataDir).mkdirs());
+    conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(16 * 1024);
+    db = MStore.create(conf).open();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    db.close();
+  }
+
+  private static class ListSubscriber implements Subscriber<KeyValue> {
+    private final List<KeyValue> items = new ArrayList<>();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile Subscription subscription;
+    private volatile Throwable error;
+    private volatile boolean completed = false;
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public synchronized void onNext(KeyValue item) {
+      items.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      this.error = throwable;
+      terminated.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+      this.completed = true;
+      terminated.countDown();
+    }
+
+    synchronized int size() {
+      return items.size();
+    }
+
+    void awaitSize(int size) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (size() < size && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1);
+      }
+      Assert.assertEquals(size, size());
+    }
+  }
+
+  @Test
+  public void testPutGetDelete() throws Exception {
+    try (AsyncMiniBase async = new AsyncMiniBase(db, conf)) {
+      List<CompletableFuture<Void>> puts = new ArrayList<>();
+      for (int i = 0; i < 1000; i++) {
+        puts.add(async.putAsync(Bytes.toBytes(i), Bytes.toBytes(i)));
+      }
+      CompletableFuture.allOf(puts.toArray(new CompletableFuture[0])).get();
+      async.deleteAsync(Bytes.toBytes(10)).get();
+      async.writeAsync(new WriteBatch().delete(Bytes.toBytes(20))).get();
+
+      for (int i = 0; i < 1000; i++) {
+        KeyValue kv = async.getAsync(Bytes.toBytes(i)).get();
+        if (i == 10 || i == 20) {
+          Assert.assertNull(kv);
+        } else {
+          Assert.assertArrayEquals(Bytes.toBytes(i), kv.getValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testScanWithDemand() throws Exception {
+    int count = AsyncMiniBase.SCAN_BATCH_SIZE * 3 + 10;
+    for (int i = 0; i < count; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    try (AsyncMiniBase async = new AsyncMiniBase(db, conf)) {
+      ListSubscriber subscriber = new ListSubscriber();
+      async.scanAsync(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES).subscribe(subscriber);
+      Assert.assertNotNull(subscriber.subscription);
+      // Nothing is emitted without demand.
+      Thread.sleep(50);
+      Assert.assertEquals(0, subscriber.size());
+
+      subscriber.subscription.request(10);
+      subscriber.awaitSize(10);
+      Thread.sleep(50);
+      Assert.assertEquals(10, subscriber.size());
+      Assert.assertFalse(subscriber.completed);
+
+      // Spans several batches.
+      subscriber.subscription.request(Long.MAX_VALUE);
+      Assert.assertTrue(subscriber.terminated.await(10, TimeUnit.SECONDS));
+      Assert.assertTrue(subscriber.completed);
+      Assert.assertNull(subscriber.error);
+      Assert.assertEquals(count, subscriber.size());
+      for (int i = 0; i < count; i++) {
+        Assert.assertArrayEquals(Bytes.toBytes(i), subscriber.items.get(i).getKey());
+      }
+
+      // Cancelled without any signal.
+      subscriber = new ListSubscriber();
+      async.scanAsync(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES).subscribe(subscriber);
+      subscriber.subscription.request(5);
+      subscriber.awaitSize(5);
+      subscriber.subscription.cancel();
+      subscriber.subscription.request(5);
+      Thread.sleep(50);
+      Assert.assertEquals(5, subscriber.size());
+      Assert.assertEquals(1, subscriber.terminated.getCount());
+
+      // A non-positive request fails the subscriber.
+      subscriber = new ListSubscriber();
+      async.scanAsync(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES).subscribe(subscriber);
+      subscriber.subscription.request(0);
+      Assert.assertTrue(subscriber.terminated.await(10, TimeUnit.SECONDS));
+      Assert.assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+  }
+
+  @Test
+  public void testRejectWhenQueueIsFull() throws Exception {
+    db.put(Bytes.toBytes(0), Bytes.toBytes(0));
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch unblock = new CountDownLatch(1);
+    try (AsyncMiniBase async = new AsyncMiniBase(db,
+        conf.setAsyncIoThreads(1).setAsyncQueueSize(1))) {
+      // Hold the only thread in a subscriber.
+      ListSubscriber subscriber = new ListSubscriber() {
+        @Override
+        public synchronized void onNext(KeyValue item) {
+          super.onNext(item);
+          blocked.countDown();
+          try {
+            unblock.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+      async.scanAsync(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES).subscribe(subscriber);
+      subscriber.subscription.request(1);
+      Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+      CompletableFuture<KeyValue> queued = async.getAsync(Bytes.toBytes(0));
+      CompletableFuture<KeyValue> rejected = async.getAsync(Bytes.toBytes(0));
+      try {
+        rejected.get();
+        Assert.fail("Should be rejected because the queue is full");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+      unblock.countDown();
+      Assert.assertArrayEquals(Bytes.toBytes(0), queued.get().getValue());
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.apache.minibase;
+
+import org.apache.minibase.DiskFile.BlockReader;
+import org.apache.minibase.DiskFile.BlockWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TestBlockCache {
+
+  private static BlockReader newBlock() {
+    try {
+      byte[] buffer = new BlockWriter().serialize();
+      return BlockReader.parseFrom(buffer, 0, buffer.length);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testHitAndMiss() {
+    BlockCache cache = new BlockCache(1024, 1);
+    BlockReader block = newBlock();
+    Assert.assertNull(cache.getBlock("a", 0));
+    cache.cacheBlock("a", 0, block, 100);
+    Assert.assertSame(block, cache.getBlock("a", 0));
+    Assert.assertNull(cache.getBlock("a", 100));
+    Assert.assertNull(cache.getBlock("b", 0));
+    Assert.assertEquals(1, cache.getHitCount());
+    Assert.assertEquals(3, cache.getMissCount());
+  }
+
+  @Test
+  public void testEviction() {
+    BlockCache cache = new BlockCache(1000, 1);
+    for (int i = 0; i < 20; i++) {
+      cache.cacheBlock("a", i * 100, newBlock(), 100);
+    }
+    Assert.assertEquals(1000, cache.getSize());
+    Assert.assertEquals(10, cache.getEvictionCount());
+    // The least recently used blocks are evicted.
+    Assert.assertNull(cache.getBlock("a", 0));
+    Assert.assertNotNull(cache.getBlock("a", 1900));
+
+    // The block larger than the capacity won't be cached.
+    cache.cacheBlock("a", 5000, newBlock(), 2000);
+    Assert.assertNull(cache.getBlock("a", 5000));
+  }
+
+  @Test
+  public void testCacheFullSizeBlock() {
+    // Too small to give each of the max count of segments a full-size block.
+    BlockCache cache = new BlockCache(2L * DiskFile.BLOCK_SIZE_UP_LIMIT);
+    BlockReader block = newBlock();
+    cache.cacheBlock("a", 0, block, DiskFile.BLOCK_SIZE_UP_LIMIT);
+    Assert.assertSame(block, cache.getBlock("a", 0));
+    Assert.assertEquals(DiskFile.BLOCK_SIZE_UP_LIMIT, cache.getSize());
+  }
+
+  @Test
+  public void testScanResistance() {
+    BlockCache cache = new BlockCache(1000, 1);
+    // Hot blocks are accessed twice, so they're promoted into the protected part.
+    for (int i = 0; i < 5; i++) {
+      cache.cacheBlock("hot", i, newBlock(), 100);
+      Assert.assertNotNull(cache.getBlock("hot", i));
+    }
+    // A large scan touches every block only once.
+    for (int i = 0; i < 100; i++) {
+      cache.cacheBlock("scan", i, newBlock(), 100);
+    }
+    for (int i = 0; i < 5; i++) {
+      Assert.assertNotNull(cache.getBlock("hot", i));
+    }
+    Assert.assertTrue(cache.getSize() <= cache.getCapacity());
+  }
+
+  @Test
+  public void testEvictByFile() {
+    BlockCache cache = new BlockCache(1024 * 1024);
+    for (int i = 0; i < 10; i++) {
+      cache.cacheBlock("a", i, newBlock(), 10);
+      cache.cacheBlock("b", i, newBlock(), 10);
+      cache.getBlock("a", i);
+    }
+    cache.evictBlocksByFile("a");
+    Assert.assertEquals(100, cache.getSize());
+    for (int i = 0; i < 10; i++) {
+      Assert.assertNull(cache.getBlock("a", i));
+      Assert.assertNotNull(cache.getBlock("b", i));
+    }
+  }
+
+  @Test
+  public void testCachedDiskFileRead() throws Exception {
+    String dataDir = "target/minibase-blockcache-" + System.nanoTime();
+    Assert.assertTrue(new File(dataDir).mkdirs());
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1).setFlushMaxRetries(1);
+    MStore db = MStore.create(conf);
+    db.open();
+    db.put(Bytes.toBytes(1), Bytes.toBytes(1));
+    // Wait until the memstore is flushed into a disk file.
+    while (db.get(Bytes.toBytes(1)) == null || db.getBlockCache().getMissCount() == 0) {
+      Thread.sleep(10);
+    }
+    long misses = db.getBlockCache().getMissCount();
+    for (int i = 0; i < 10; i++) {
+      Assert.assertArrayEquals(Bytes.toBytes(1), db.get(Bytes.toBytes(1)).getValue());
+    }
+    Assert.assertEquals(misses, db.getBlockCache().getMissCount());
+    Assert.assertTrue(db.getBlockCache().getHitCount() >= 10);
+    db.close();
+  }
+}
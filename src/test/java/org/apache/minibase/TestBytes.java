@@ -3,6 +3,9 @@ package org.apache.minibase;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 public class TestBytes {
 
   @Test
@@ -43,4 +46,74 @@ public class TestBytes {
     Assert.assertEquals(Bytes.compare(new byte[]{0x00}, null), 1);
     Assert.assertEquals(Bytes.compare(new byte[]{0x00}, new byte[]{0x01}), -1);
   }
+
+  private static int naiveCompare(byte[] a, byte[] b) {
+    for (int i = 0; i < a.length && i < b.length; i++) {
+      int x = a[i] & 0xFF;
+      int y = b[i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  private static byte[] randomBytes(Random random) {
+    // Few distinct bytes with the sign bit set or not, so the arrays often share long prefixes.
+    byte[] b = new byte[random.nextInt(40)];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) (random.nextBoolean() ? 0x7F : random.nextInt(3) - 1);
+    }
+    return b;
+  }
+
+  private static ByteBuffer toBuffer(byte[] b, int padding, boolean direct) {
+    ByteBuffer buf = direct ? ByteBuffer.allocateDirect(b.length + padding * 2)
+        : ByteBuffer.allocate(b.length + padding * 2);
+    buf.position(padding);
+    buf.put(b);
+    return buf;
+  }
+
+  @Test
+  public void testCompareWordAtATime() {
+    Random random = new Random(7);
+    for (int n = 0; n < 10000; n++) {
+      byte[] a = randomBytes(random);
+      byte[] b = randomBytes(random);
+      int expected = Integer.signum(naiveCompare(a, b));
+      Assert.assertEquals(expected, Integer.signum(Bytes.compare(a, b)));
+
+      // Compare in the middle of the arrays and buffers.
+      int padding = random.nextInt(9);
+      byte[] paddedA = new byte[a.length + padding * 2];
+      System.arraycopy(a, 0, paddedA, padding, a.length);
+      Assert.assertEquals(expected,
+        Integer.signum(Bytes.compare(paddedA, padding, a.length, b, 0, b.length)));
+      for (boolean direct : new boolean[] { false, true }) {
+        ByteBuffer bufA = toBuffer(a, padding, direct);
+        ByteBuffer bufB = toBuffer(b, padding + 1, !direct);
+        Assert.assertEquals(expected,
+          Integer.signum(Bytes.compare(bufA, padding, a.length, b, 0, b.length)));
+        Assert.assertEquals(expected, Integer.signum(
+          Bytes.compare(bufA, padding, a.length, bufB, padding + 1, b.length)));
+        Assert.assertEquals(expected, Integer.signum(Bytes.compare(bufA, padding, a.length,
+          toBuffer(b, 0, direct), 0, b.length)));
+      }
+    }
+  }
+
+  @Test
+  public void testPrefix() {
+    Assert.assertEquals(0L, Bytes.prefix(new byte[0], 0, 0));
+    Assert.assertEquals(0x0100000000000000L, Bytes.prefix(new byte[] { 1 }, 0, 1));
+    Assert.assertEquals(0xFF01020304050607L,
+      Bytes.prefix(new byte[] { -1, 1, 2, 3, 4, 5, 6, 7, 8 }, 0, 9));
+    byte[] b = new byte[] { 9, 9, -1, 1, 2, 3, 4, 5, 6, 7, 8 };
+    Assert.assertEquals(0xFF01020304050607L, Bytes.prefix(b, 2, 9));
+    Assert.assertEquals(0xFF01020304050607L, Bytes.prefix(ByteBuffer.wrap(b), 2, 9));
+    ByteBuffer direct = toBuffer(b, 0, true);
+    Assert.assertEquals(0xFF01020304050607L, Bytes.prefix(direct, 2, 9));
+    Assert.assertEquals(0xFF01000000000000L, Bytes.prefix(direct, 2, 2));
+  }
 }
@@ -0,0 +1,196 @@
+package org.apache.minibase;
+
+import org.apache.minibase.CompactionPolicy.Compaction;
+import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.DiskStore.DefaultCompactor;
+import org.apache.minibase.MiniBase.Iter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestCompactionPolicy {
+
+  private String dataDir;
+  private List<DiskFile> opened = new ArrayList<>();
+  private int fileId = 0;
+
+  @Before
+  public void setUp() {
+    dataDir = "target/minibase-compaction-" + System.nanoTime();
+    Assert.assertTrue(new File(dataDir).mkdirs());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (DiskFile df : opened) {
+      df.close();
+    }
+  }
+
+  private String writeDiskFile(int level, int startKey, int endKey) throws IOException {
+    String fileName = new File(dataDir, String.format("data.%020d", fileId++)).toString();
+    try (DiskFileWriter writer = new DiskFileWriter(fileName, level)) {
+      for (int i = startKey; i < endKey; i++) {
+        writer.append(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), 1L));
+      }
+      writer.appendIndex();
+      writer.appendTrailer();
+    }
+    return fileName;
+  }
+
+  private DiskFile createDiskFile(int level, int startKey, int endKey) throws IOException {
+    String fileName = writeDiskFile(level, startKey, endKey);
+    DiskFile df = new DiskFile();
+    df.open(fileName);
+    opened.add(df);
+    return df;
+  }
+
+  @Test
+  public void testFullCompaction() throws IOException {
+    List<DiskFile> files = new ArrayList<>();
+    CompactionPolicy policy = new FullCompactionPolicy(2);
+    files.add(createDiskFile(0, 0, 10));
+    files.add(createDiskFile(0, 0, 10));
+    Assert.assertNull(policy.pickCompaction(files));
+    files.add(createDiskFile(0, 0, 10));
+    Compaction compaction = policy.pickCompaction(files);
+    Assert.assertEquals(files, compaction.getInputs());
+  }
+
+  @Test
+  public void testLevel0Compaction() throws IOException {
+    Config conf = new Config().setLevel0CompactionTrigger(2);
+    CompactionPolicy policy = new LeveledCompactionPolicy(conf);
+    List<DiskFile> files = new ArrayList<>();
+    DiskFile l1a = createDiskFile(1, 0, 100);
+    DiskFile l1b = createDiskFile(1, 100, 200);
+    DiskFile l1c = createDiskFile(1, 200, 300);
+    files.add(l1a);
+    files.add(l1b);
+    files.add(l1c);
+    DiskFile l0a = createDiskFile(0, 120, 150);
+    files.add(l0a);
+    Assert.assertNull(policy.pickCompaction(files));
+
+    DiskFile l0b = createDiskFile(0, 140, 210);
+    files.add(l0b);
+    Compaction compaction = policy.pickCompaction(files);
+    Assert.assertEquals(1, compaction.getOutputLevel());
+    // All the level 0 files, and only the overlapping level 1 files.
+    Assert.assertEquals(4, compaction.getInputs().size());
+    Assert.assertTrue(compaction.getInputs().contains(l0a));
+    Assert.assertTrue(compaction.getInputs().contains(l0b));
+    Assert.assertTrue(compaction.getInputs().contains(l1b));
+    Assert.assertTrue(compaction.getInputs().contains(l1c));
+    Assert.assertFalse(compaction.getInputs().contains(l1a));
+  }
+
+  @Test
+  public void testLevelSizeCompaction() throws IOException {
+    List<DiskFile> files = new ArrayList<>();
+    DiskFile l1a = createDiskFile(1, 0, 100);
+    DiskFile l1b = createDiskFile(1, 100, 200);
+    DiskFile l2a = createDiskFile(2, 0, 50);
+    DiskFile l2b = createDiskFile(2, 50, 150);
+    DiskFile l2c = createDiskFile(2, 150, 250);
+    files.add(l2a);
+    files.add(l2b);
+    files.add(l2c);
+    files.add(l1a);
+    files.add(l1b);
+
+    long levelBase = l1a.getFileSize() + l1b.getFileSize() - 1;
+    Config conf = new Config().setMaxBytesForLevelBase(levelBase).setLevelSizeMultiplier(100);
+    CompactionPolicy policy = new LeveledCompactionPolicy(conf);
+
+    // Files in level 1 are picked in a round-robin way.
+    Compaction compaction = policy.pickCompaction(files);
+    Assert.assertEquals(2, compaction.getOutputLevel());
+    Assert.assertEquals(3, compaction.getInputs().size());
+    Assert.assertTrue(compaction.getInputs().contains(l1a));
+    Assert.assertTrue(compaction.getInputs().contains(l2a));
+    Assert.assertTrue(compaction.getInputs().contains(l2b));
+
+    compaction = policy.pickCompaction(files);
+    Assert.assertEquals(3, compaction.getInputs().size());
+    Assert.assertTrue(compaction.getInputs().contains(l1b));
+    Assert.assertTrue(compaction.getInputs().contains(l2b));
+    Assert.assertTrue(compaction.getInputs().contains(l2c));
+  }
+
+  @Test
+  public void testBoundedOutputFiles() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      writeDiskFile(0, i * 1000, i * 1000 + 2000);
+    }
+    DiskStore diskStore = new DiskStore(new Config().setDataDir(dataDir), null);
+    diskStore.open();
+    CompactionPolicy policy = files -> new Compaction(files, 1, 16 * 1024);
+    DefaultCompactor compactor = new DefaultCompactor(diskStore, policy);
+    compactor.performCompact(policy.pickCompaction(diskStore.getDiskFiles()));
+
+    List<DiskFile> outputs = diskStore.getDiskFiles();
+    Assert.assertTrue(outputs.size() > 1);
+    byte[] lastKey = null;
+    int count = 0;
+    for (DiskFile df : outputs) {
+      Assert.assertEquals(1, df.getLevel());
+      Assert.assertTrue(lastKey == null || Bytes.compare(lastKey, df.getFirstKey()) < 0);
+      lastKey = df.getLastKey();
+      for (Iter<KeyValue> it = df.iterator(); it.hasNext(); it.next()) {
+        count++;
+      }
+    }
+    Assert.assertEquals(8000, count);
+    diskStore.close();
+  }
+
+  @Test
+  public void testSubcompactions() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      writeDiskFile(0, i * 1000, i * 1000 + 2000);
+    }
+    DiskStore diskStore = new DiskStore(new Config().setDataDir(dataDir), null);
+    diskStore.open();
+
+    // Every input file is a single block, split at the last keys of the blocks.
+    List<byte[]> splitKeys = DefaultCompactor.pickSplitKeys(diskStore.getDiskFiles(), 4);
+    Assert.assertEquals(3, splitKeys.size());
+    Assert.assertArrayEquals(Bytes.toBytes(2999), splitKeys.get(0));
+    Assert.assertArrayEquals(Bytes.toBytes(3999), splitKeys.get(1));
+    Assert.assertArrayEquals(Bytes.toBytes(4999), splitKeys.get(2));
+    Assert.assertEquals(1, DefaultCompactor.pickSplitKeys(diskStore.getDiskFiles(), 2).size());
+
+    CompactionPolicy policy = files -> new Compaction(files, 1, Long.MAX_VALUE);
+    DefaultCompactor compactor = new DefaultCompactor(diskStore, policy, 4);
+    compactor.performCompact(policy.pickCompaction(diskStore.getDiskFiles()));
+
+    // One output file for each key range.
+    List<DiskFile> outputs = diskStore.getDiskFiles();
+    Assert.assertEquals(4, outputs.size());
+    byte[] lastKey = null;
+    int count = 0;
+    for (DiskFile df : outputs) {
+      Assert.assertEquals(1, df.getLevel());
+      Assert.assertTrue(lastKey == null || Bytes.compare(lastKey, df.getFirstKey()) < 0);
+      lastKey = df.getLastKey();
+      for (Iter<KeyValue> it = df.iterator(); it.hasNext(); it.next()) {
+        count++;
+      }
+    }
+    Assert.assertEquals(8000, count);
+    Assert.assertArrayEquals(Bytes.toBytes(0), outputs.get(0).getFirstKey());
+    Assert.assertArrayEquals(Bytes.toBytes(2999), outputs.get(1).getFirstKey());
+    Assert.assertArrayEquals(Bytes.toBytes(4999), outputs.get(3).getFirstKey());
+    Assert.assertArrayEquals(Bytes.toBytes(4999), outputs.get(3).getLastKey());
+    diskStore.close();
+  }
+}
@@ -0,0 +1,78 @@
+package org.apache.minibase;
+
+import org.apache.minibase.DiskFile.BlockReader;
+import org.apache.minibase.DiskFile.BlockWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class TestCompression {
+
+  private BlockWriter createBlock() throws IOException {
+    BlockWriter bw = new BlockWriter();
+    for (int i = 0; i < 1000; i++) {
+      bw.append(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes("value-" + i % 10), i));
+    }
+    return bw;
+  }
+
+  @Test
+  public void testCompressAndDecompress() throws IOException {
+    byte[] raw = createBlock().serialize();
+    for (Compression compression : Compression.values()) {
+      byte[] compressed = compression.compress(raw);
+      if (compression != Compression.NONE) {
+        Assert.assertTrue(compression + " should shrink the block", compressed.length < raw.length);
+      }
+
+      // Heap buffer with a non-zero position.
+      ByteBuffer heap = ByteBuffer.allocate(compressed.length + 7);
+      heap.position(7);
+      heap.put(compressed);
+      heap.position(7);
+      byte[] decompressed = new byte[raw.length];
+      compression.decompress(heap, decompressed);
+      Assert.assertArrayEquals(raw, decompressed);
+      Assert.assertEquals(7, heap.position());
+
+      ByteBuffer direct = ByteBuffer.allocateDirect(compressed.length);
+      direct.put(compressed);
+      direct.flip();
+      decompressed = new byte[raw.length];
+      compression.decompress(direct, decompressed);
+      Assert.assertArrayEquals(raw, decompressed);
+    }
+  }
+
+  @Test
+  public void testCompressedBlock() throws IOException {
+    BlockWriter bw = createBlock();
+    for (Compression compression : Compression.values()) {
+      byte[] buffer = bw.serialize(compression);
+      BlockReader br =
+          BlockReader.parseFrom(ByteBuffer.wrap(buffer), compression, BlockEncoding.NONE);
+      List<KeyValue> kvs = br.getKeyValues();
+      Assert.assertEquals(1000, kvs.size());
+      Assert.assertEquals(bw.size(), br.getSerializeSize());
+      for (int i = 0; i < 1000; i++) {
+        Assert.assertEquals(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes("value-" + i % 10), i),
+          kvs.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptedBlock() throws IOException {
+    byte[] buffer = createBlock().serialize(Compression.LZ4);
+    buffer[buffer.length / 2] ^= 0xFF;
+    try {
+      BlockReader.parseFrom(ByteBuffer.wrap(buffer), Compression.LZ4, BlockEncoding.NONE);
+      Assert.fail("The corrupted block should be detected");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+}
@@ -4,13 +4,19 @@ import org.apache.minibase.DiskFile.BlockMeta;
 import org.apache.minibase.DiskFile.BlockReader;
 import org.apache.minibase.DiskFile.BlockWriter;
 import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.MStore.SeekIter;
 import org.apache.minibase.MiniBase.Iter;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TestDiskFile {
 
@@ -30,15 +36,126 @@ public class TestDiskFile {
     BlockReader br = BlockReader.parseFrom(bw.serialize(), 0, buffer.length);
 
     // Assert the bloom filter.
-    byte[][] bytes = new byte[br.getKeyValues().size()][];
-    for (int i = 0; i < br.getKeyValues().size(); i++) {
-      bytes[i] = br.getKeyValues().get(i).getKey();
+    List<KeyValue> kvs = br.getKeyValues();
+    byte[][] bytes = new byte[kvs.size()][];
+    for (int i = 0; i < kvs.size(); i++) {
+      bytes[i] = kvs.get(i).getKey();
     }
     BloomFilter bloom =
             new BloomFilter(DiskFile.BLOOM_FILTER_HASH_COUNT, DiskFile.BLOOM_FILTER_BITS_PER_KEY);
     Assert.assertArrayEquals(bloom.generate(bytes), bw.getBloomFilter());
   }
 
+  private static byte[] rowKey(int row) throws IOException {
+    return Bytes.toBytes(String.format("tenant/table/row-%04d", row));
+  }
+
+  @Test
+  public void testPrefixBlockEncoding() throws IOException {
+    BlockWriter none = new BlockWriter(BlockEncoding.NONE);
+    BlockWriter prefix = new BlockWriter(BlockEncoding.PREFIX);
+    for (int i = 0; i < 100; i++) {
+      KeyValue kv = KeyValue.createPut(rowKey(i * 2), Bytes.toBytes(i), i);
+      none.append(kv);
+      prefix.append(kv);
+    }
+    // Delete with empty value and empty key suffix.
+    prefix.append(KeyValue.createDelete(rowKey(198), 0L));
+    Assert.assertTrue(prefix.size() < none.size());
+
+    byte[] buffer = prefix.serialize();
+    Assert.assertEquals(prefix.size(), buffer.length);
+    BlockReader br = BlockReader.parseFrom(ByteBuffer.wrap(buffer), BlockEncoding.PREFIX);
+    List<KeyValue> kvs = br.getKeyValues();
+    Assert.assertEquals(101, kvs.size());
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(KeyValue.createPut(rowKey(i * 2), Bytes.toBytes(i), i), kvs.get(i));
+      Assert.assertArrayEquals(Bytes.toBytes(i), kvs.get(i).getValue());
+    }
+    Assert.assertEquals(KeyValue.createDelete(rowKey(198), 0L), kvs.get(100));
+
+    // Seek to an existing key, and to a key between two key values.
+    SeekIter<KeyValue> it = br.iterator();
+    it.seekTo(KeyValue.createDelete(rowKey(40), Long.MAX_VALUE));
+    Assert.assertArrayEquals(rowKey(40), it.next().getKey());
+    Assert.assertArrayEquals(rowKey(42), it.next().getKey());
+    it.seekTo(KeyValue.createDelete(rowKey(41), Long.MAX_VALUE));
+    Assert.assertArrayEquals(rowKey(42), it.next().getKey());
+    it.seekTo(KeyValue.createDelete(rowKey(199), Long.MAX_VALUE));
+    Assert.assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void testBlockSeek() throws IOException {
+    for (BlockEncoding encoding : BlockEncoding.values()) {
+      BlockWriter bw = new BlockWriter(encoding);
+      for (int i = 0; i < 1000; i += 2) {
+        bw.append(KeyValue.createPut(rowKey(i), Bytes.toBytes(i), 2L));
+        bw.append(KeyValue.createDelete(rowKey(i), 1L));
+      }
+      byte[] buffer = bw.serialize();
+      BlockReader br = BlockReader.parseFrom(ByteBuffer.wrap(buffer), encoding);
+      SeekIter<KeyValue> it = br.iterator();
+      for (int i = 0; i < 1000; i++) {
+        int expected = i % 2 == 0 ? i : i + 1;
+        it.seekTo(KeyValue.createDelete(rowKey(i), Long.MAX_VALUE));
+        if (expected >= 1000) {
+          Assert.assertFalse(it.hasNext());
+          continue;
+        }
+        Assert.assertEquals(KeyValue.createPut(rowKey(expected), Bytes.toBytes(expected), 2L),
+          it.next());
+        Assert.assertEquals(KeyValue.createDelete(rowKey(expected), 1L), it.next());
+
+        // Seek to the older version of the key.
+        it.seekTo(KeyValue.createDelete(rowKey(expected), 1L));
+        Assert.assertEquals(KeyValue.createDelete(rowKey(expected), 1L), it.next());
+      }
+      it.seekTo(KeyValue.createDelete(Bytes.EMPTY_BYTES, Long.MAX_VALUE));
+      Assert.assertEquals(KeyValue.createPut(rowKey(0), Bytes.toBytes(0), 2L), it.next());
+    }
+  }
+
+  @Test
+  public void testBlockDescendingSeek() throws IOException {
+    for (BlockEncoding encoding : BlockEncoding.values()) {
+      BlockWriter bw = new BlockWriter(encoding);
+      for (int i = 0; i < 1000; i += 2) {
+        bw.append(KeyValue.createPut(rowKey(i), Bytes.toBytes(i), 2L));
+        bw.append(KeyValue.createDelete(rowKey(i), 1L));
+      }
+      BlockReader br = BlockReader.parseFrom(ByteBuffer.wrap(bw.serialize()), encoding);
+      List<KeyValue> kvs = br.getKeyValues();
+      SeekIter<KeyValue> it = br.descendingIterator();
+      for (int i = kvs.size() - 1; i >= 0; i--) {
+        Assert.assertTrue(it.hasNext());
+        Assert.assertEquals(kvs.get(i), it.next());
+      }
+      Assert.assertFalse(it.hasNext());
+
+      for (int i = 0; i < 1000; i++) {
+        // The oldest version of the last key before the target key.
+        int expected = i % 2 == 0 ? i - 2 : i - 1;
+        it.seekTo(KeyValue.createDelete(rowKey(i), Long.MAX_VALUE));
+        if (expected < 0) {
+          Assert.assertFalse(it.hasNext());
+        } else {
+          Assert.assertEquals(KeyValue.createDelete(rowKey(expected), 1L), it.next());
+          Assert.assertEquals(KeyValue.createPut(rowKey(expected), Bytes.toBytes(expected), 2L),
+            it.next());
+        }
+
+        // Seek to the newer version of the key.
+        if (i % 2 == 0) {
+          it.seekTo(KeyValue.createPut(rowKey(i), Bytes.toBytes(i), 2L));
+          Assert.assertEquals(KeyValue.createPut(rowKey(i), Bytes.toBytes(i), 2L), it.next());
+        }
+      }
+      it.seekTo(KeyValue.createDelete(rowKey(1000), Long.MAX_VALUE));
+      Assert.assertEquals(KeyValue.createDelete(rowKey(998), 1L), it.next());
+    }
+  }
+
   @Test
   public void testBlockMeta() throws IOException {
     KeyValue lastKV = KeyValue.createPut(Bytes.toBytes("abc"), Bytes.toBytes("abc"), 1L);
@@ -124,4 +241,348 @@ public class TestDiskFile {
       }
     }
   }
+
+  @Test
+  public void testDiskFileGet() throws IOException {
+    String dbFile = "testDiskFileGet.db";
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        for (int i = 0; i < 1000; i += 2) {
+          byte[] bs = Bytes.toBytes(i);
+          diskWriter.append(KeyValue.createPut(bs, bs, 2L));
+          diskWriter.append(KeyValue.createDelete(bs, 1L));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        for (int i = 0; i < 1000; i++) {
+          byte[] bs = Bytes.toBytes(i);
+          if (i % 2 == 0) {
+            Assert.assertEquals(KeyValue.createPut(bs, bs, 2L), df.get(bs));
+          } else {
+            Assert.assertNull(df.get(bs));
+          }
+        }
+        Assert.assertNull(df.get(Bytes.toBytes(1000)));
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testDiskFileDescendingIterator() throws IOException {
+    String dbFile = "testDiskFileDescendingIterator.db";
+    try {
+      // 64KB values, so the key values spread across several blocks.
+      byte[] value = new byte[64 * 1024];
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        for (int i = 0; i < 200; i += 2) {
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), value, 2L));
+          diskWriter.append(KeyValue.createDelete(Bytes.toBytes(i), 1L));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        Assert.assertTrue(df.getBlockLastKeys().size() > 2);
+        List<KeyValue> kvs = new ArrayList<>();
+        for (Iter<KeyValue> it = df.iterator(); it.hasNext(); ) {
+          kvs.add(it.next());
+        }
+        SeekIter<KeyValue> it = df.descendingIterator();
+        for (int i = kvs.size() - 1; i >= 0; i--) {
+          Assert.assertTrue(it.hasNext());
+          Assert.assertEquals(kvs.get(i), it.next());
+        }
+        Assert.assertFalse(it.hasNext());
+
+        // Seek to every version of every key, and between the keys.
+        for (int i = -1; i <= 200; i++) {
+          for (KeyValue target : new KeyValue[] {
+              KeyValue.createDelete(Bytes.toBytes(i), Long.MAX_VALUE),
+              KeyValue.createPut(Bytes.toBytes(i), value, 2L),
+              KeyValue.createDelete(Bytes.toBytes(i), 1L) }) {
+            int expected = kvs.size() - 1;
+            while (expected >= 0 && kvs.get(expected).compareTo(target) > 0) {
+              expected--;
+            }
+            it.seekTo(target);
+            for (int j = expected; j >= 0; j--) {
+              Assert.assertTrue(it.hasNext());
+              Assert.assertEquals(kvs.get(j), it.next());
+              if (j < expected - 2) {
+                break;
+              }
+            }
+            if (expected < 0) {
+              Assert.assertFalse(it.hasNext());
+            }
+          }
+        }
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testDiskFileMultiGet() throws IOException {
+    String dbFile = "testDiskFileMultiGet.db";
+    try {
+      // 64KB values, so the key values spread across several blocks.
+      byte[] value = new byte[64 * 1024];
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        for (int i = 0; i < 200; i += 2) {
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), value, 2L));
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), 1L));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      Metrics metrics = new Metrics();
+      try (DiskFile df = new DiskFile(null, DiskFile.ReadMode.PREAD, metrics)) {
+        df.open(dbFile);
+        int blockCount = df.getBlockLastKeys().size();
+        Assert.assertTrue(blockCount > 2);
+
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i <= 200; i++) {
+          keys.add(Bytes.toBytes(i));
+        }
+        KeyValue[] results = new KeyValue[keys.size()];
+        // The resolved keys are skipped.
+        results[0] = KeyValue.createDelete(Bytes.toBytes(0), 3L);
+        Assert.assertEquals(99, df.multiGet(keys, 1L, results));
+        Assert.assertEquals(blockCount, metrics.counter("diskfile.blocksRead").get());
+        for (int i = 0; i <= 200; i++) {
+          KeyValue kv = results[i];
+          if (i == 0) {
+            Assert.assertEquals(KeyValue.createDelete(Bytes.toBytes(0), 3L), kv);
+          } else if (i < 200 && i % 2 == 0) {
+            Assert.assertEquals(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), 1L), kv);
+          } else {
+            Assert.assertNull(kv);
+          }
+        }
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testEncodedDiskFile() throws IOException {
+    String dbFile = "testEncodedDiskFile.db";
+    int rowsCount = 50000;
+    try {
+      for (Compression compression : Compression.values()) {
+        for (BlockEncoding encoding : BlockEncoding.values()) {
+          try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile, 0, compression, encoding)) {
+            for (int i = 0; i < rowsCount; i++) {
+              byte[] bs = Bytes.toBytes(i);
+              diskWriter.append(KeyValue.createPut(bs, Bytes.toBytes("value-" + i), 1L));
+            }
+            diskWriter.appendIndex();
+            diskWriter.appendTrailer();
+          }
+          try (DiskFile df = new DiskFile(new BlockCache(1024 * 1024), DiskFile.ReadMode.PREAD)) {
+            df.open(dbFile);
+            Assert.assertEquals(compression, df.getCompression());
+            Assert.assertEquals(encoding, df.getBlockEncoding());
+            Iter<KeyValue> it = df.iterator();
+            int index = 0;
+            while (it.hasNext()) {
+              byte[] bs = Bytes.toBytes(index);
+              Assert.assertEquals(KeyValue.createPut(bs, Bytes.toBytes("value-" + index), 1L),
+                it.next());
+              index++;
+            }
+            Assert.assertEquals(rowsCount, index);
+            for (int i = 0; i < rowsCount; i += 1000) {
+              Assert.assertArrayEquals(Bytes.toBytes("value-" + i), df.get(Bytes.toBytes(i))
+                  .getValue());
+            }
+          }
+          new File(dbFile).delete();
+        }
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testFullCompressedBlock() throws IOException {
+    String dbFile = "testFullCompressedBlock.db";
+    // With these sizes, the 17th key value of a PREFIX encoded block is a restart, and fills the
+    // block up to 1 byte over the limit if its restart point is not counted.
+    int keyLength = 135;
+    int valueLength = 123329;
+    int rowsCount = 40;
+    List<KeyValue> kvs = new ArrayList<>();
+    for (int i = 0; i < rowsCount; i++) {
+      byte[] key = new byte[keyLength];
+      System.arraycopy(Bytes.toBytes(i), 0, key, keyLength - 4, 4);
+      byte[] value = new byte[valueLength];
+      RANDOM.nextBytes(value);
+      kvs.add(KeyValue.createPut(key, value, 1L));
+    }
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile, 0, Compression.LZ4,
+          BlockEncoding.PREFIX)) {
+        for (KeyValue kv : kvs) {
+          diskWriter.append(kv);
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        Iter<KeyValue> it = df.iterator();
+        for (KeyValue kv : kvs) {
+          Assert.assertTrue(it.hasNext());
+          Assert.assertEquals(kv, it.next());
+        }
+        Assert.assertFalse(it.hasNext());
+      }
+    } finally {
+      new File(dbFile).delete();
+    }
+
+    // The predicted size is exact, whether the key value takes a restart point or not.
+    BlockWriter writer = new BlockWriter(BlockEncoding.PREFIX);
+    for (KeyValue kv : kvs.subList(0, 20)) {
+      int expected = writer.sizeAfterAppend(kv);
+      writer.append(kv);
+      Assert.assertEquals(expected, writer.size());
+    }
+  }
+
+  @Test
+  public void testRejectLegacyFormat() throws IOException {
+    String dbFile = "testRejectLegacyFormat.db";
+    try {
+      // Only the trailer of the legacy format: fileSize + blockCount + blockIndexOffset +
+      // blockIndexSize + magic.
+      try (FileOutputStream out = new FileOutputStream(dbFile)) {
+        out.write(Bytes.toBytes(36L));
+        out.write(Bytes.toBytes(0));
+        out.write(Bytes.toBytes(0L));
+        out.write(Bytes.toBytes(0L));
+        out.write(Bytes.toBytes(DiskFile.LEGACY_DISK_FILE_MAGIC));
+      }
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        Assert.fail("Should reject the file of the legacy format");
+      } catch (IOException e) {
+        Assert.assertTrue(e.getMessage().startsWith("Unsupported disk file format"));
+      }
+    } finally {
+      new File(dbFile).delete();
+    }
+  }
+
+  @Test
+  public void testConcurrentRead() throws Exception {
+    String dbFile = "testConcurrentRead.db";
+    int rowsCount = 200000;
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        for (int i = 0; i < rowsCount; i++) {
+          diskWriter.append(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), 1L));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      for (DiskFile.ReadMode readMode : DiskFile.ReadMode.values()) {
+        try (DiskFile df = new DiskFile(null, readMode)) {
+          df.open(dbFile);
+          Thread[] readers = new Thread[4];
+          AtomicReference<Throwable> error = new AtomicReference<>();
+          for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+              try {
+                Iter<KeyValue> it = df.iterator();
+                int index = 0;
+                while (it.hasNext()) {
+                  byte[] bs = Bytes.toBytes(index++);
+                  Assert.assertEquals(KeyValue.createPut(bs, bs, 1L), it.next());
+                  if (index % 1000 == 0) {
+                    Assert.assertEquals(KeyValue.createPut(bs, bs, 1L), df.get(bs));
+                  }
+                }
+                Assert.assertEquals(rowsCount, index);
+              } catch (Throwable e) {
+                error.set(e);
+              }
+            });
+            readers[t].start();
+          }
+          for (Thread reader : readers) {
+            reader.join();
+          }
+          Assert.assertNull(readMode + " failed: " + error.get(), error.get());
+        }
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testFileMeta() throws IOException {
+    String dbFile = "testFileMeta.db";
+    try {
+      try (DiskFileWriter diskWriter = new DiskFileWriter(dbFile)) {
+        for (int i = 10; i < 100; i++) {
+          byte[] bs = Bytes.toBytes(i);
+          diskWriter.append(KeyValue.createPut(bs, bs, i * 2));
+          diskWriter.append(KeyValue.createDelete(bs, i));
+        }
+        diskWriter.appendIndex();
+        diskWriter.appendTrailer();
+      }
+      try (DiskFile df = new DiskFile()) {
+        df.open(dbFile);
+        DiskFile.FileMeta meta = df.getFileMeta();
+        Assert.assertArrayEquals(Bytes.toBytes(10), meta.getFirstKey());
+        Assert.assertArrayEquals(Bytes.toBytes(99), meta.getLastKey());
+        Assert.assertEquals(10L, meta.getMinSequenceId());
+        Assert.assertEquals(198L, meta.getMaxSequenceId());
+        Assert.assertEquals(180L, meta.getKeyValueCount());
+        Assert.assertEquals(90L, meta.getDeleteCount());
+
+        Assert.assertTrue(df.isOverlapping(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES));
+        Assert.assertTrue(df.isOverlapping(Bytes.toBytes(99), Bytes.EMPTY_BYTES));
+        Assert.assertTrue(df.isOverlapping(Bytes.toBytes(0), Bytes.toBytes(11)));
+        Assert.assertFalse(df.isOverlapping(Bytes.toBytes(100), Bytes.EMPTY_BYTES));
+        Assert.assertFalse(df.isOverlapping(Bytes.EMPTY_BYTES, Bytes.toBytes(10)));
+        Assert.assertNull(df.get(Bytes.toBytes(9)));
+      }
+    } finally {
+      File f = new File(dbFile);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
 }
@@ -3,6 +3,9 @@ package org.apache.minibase;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public class TestKeyValue {
 
   @Test
@@ -15,4 +18,55 @@ public class TestKeyValue {
     Assert.assertFalse(kv.equals(KeyValue.createPut(Bytes.toBytes(100L), Bytes.toBytes(1000), 0L)));
     Assert.assertTrue(kv.equals(KeyValue.createPut(Bytes.toBytes(100), Bytes.toBytes(1000L), 0L)));
   }
+
+  @Test
+  public void testView() throws IOException {
+    KeyValue kv = KeyValue.createPut(Bytes.toBytes("key"), Bytes.toBytes("value"), 10L);
+    byte[] bytes = kv.toBytes();
+    int keyOffset = KeyValue.RAW_KEY_LEN_SIZE + KeyValue.VAL_LEN_SIZE;
+    int valueOffset = keyOffset + 3 + KeyValue.OP_SIZE + KeyValue.SEQ_ID_SIZE;
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes);
+    for (ByteBuffer buf : new ByteBuffer[] { ByteBuffer.wrap(bytes), direct }) {
+      KeyValue view =
+          KeyValue.createView(buf, keyOffset, 3, valueOffset, 5, KeyValue.Op.Put, 10L);
+      Assert.assertEquals(kv, view);
+      Assert.assertEquals(view, kv);
+      Assert.assertEquals(kv.hashCode(), view.hashCode());
+      Assert.assertEquals(0, view.compareKey(Bytes.toBytes("key"), 0, 3));
+      Assert.assertTrue(view.compareKey(Bytes.toBytes("kez"), 0, 3) < 0);
+      Assert.assertEquals(kv.getSerializeSize(), view.getSerializeSize());
+      Assert.assertArrayEquals(bytes, view.toBytes());
+      Assert.assertArrayEquals(Bytes.toBytes("key"), view.getKey());
+      Assert.assertArrayEquals(Bytes.toBytes("value"), view.getValue());
+
+      KeyValue keyCopied = KeyValue.createView(Bytes.toBytes("key"), buf, valueOffset, 5,
+        KeyValue.Op.Put, 10L);
+      Assert.assertEquals(view, keyCopied);
+      Assert.assertArrayEquals(bytes, keyCopied.toBytes());
+    }
+  }
+
+  @Test
+  public void testComparePrefix() throws IOException {
+    String[] keys = { "", "a", "a\0", "a\0\0\0\0\0\0\0", "a\0\0\0\0\0\0\0\0", "abcdefgh",
+        "abcdefgh\0", "abcdefghi", "abcdefghij", "abcdefgi", "b", "\u00ff", "\u00ff\u00ff" };
+    for (int i = 0; i < keys.length; i++) {
+      for (int j = 0; j < keys.length; j++) {
+        byte[] a = keys[i].getBytes("ISO-8859-1");
+        byte[] b = keys[j].getBytes("ISO-8859-1");
+        KeyValue kvA = KeyValue.createPut(a, Bytes.EMPTY_BYTES, 1L);
+        ByteBuffer direct = ByteBuffer.allocateDirect(b.length + 1);
+        direct.position(1);
+        direct.put(b);
+        KeyValue viewB = KeyValue.createView(direct, 1, b.length, 1, 0, KeyValue.Op.Put, 1L);
+        int expected = Integer.signum(Integer.compare(i, j));
+        Assert.assertEquals(keys[i] + " vs " + keys[j], expected,
+          Integer.signum(kvA.compareKey(viewB)));
+        Assert.assertEquals(-expected, Integer.signum(viewB.compareKey(kvA)));
+        Assert.assertEquals(expected, Integer.signum(kvA.compareTo(viewB)));
+      }
+    }
+  }
 }
@@ -0,0 +1,153 @@
+package org.apache.minibase;
+
+import org.apache.minibase.MiniBase.Flusher;
+import org.apache.minibase.MiniBase.Iter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestMemStoreArena {
+
+  @Test
+  public void testCopy() throws Exception {
+    ChunkPool pool = new ChunkPool(1024, 4);
+    MemStoreArena arena = new MemStoreArena(pool);
+    for (int i = 0; i < 100; i++) {
+      KeyValue kv = KeyValue.createPut(Bytes.toBytes("key-" + i), Bytes.toBytes(i), i);
+      KeyValue copied = arena.copy(kv);
+      Assert.assertNotSame(kv, copied);
+      Assert.assertEquals(kv, copied);
+      Assert.assertArrayEquals(kv.getValue(), copied.getValue());
+      Assert.assertEquals(kv.hashCode(), copied.hashCode());
+    }
+    // 100 key values of 9 or 10 bytes, spread in the 1KB chunks.
+    Assert.assertEquals(1, arena.getChunkCount());
+    Assert.assertEquals(1, pool.getCreatedCount());
+
+    // A key value larger than a quarter of the chunk is kept on heap.
+    KeyValue large = KeyValue.createPut(Bytes.toBytes("large"), new byte[512], 100);
+    Assert.assertSame(large, arena.copy(large));
+  }
+
+  @Test
+  public void testRecycle() throws Exception {
+    ChunkPool pool = new ChunkPool(64, 2);
+    MemStoreArena arena = new MemStoreArena(pool);
+    for (int i = 0; i < 20; i++) {
+      arena.copy(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), i));
+    }
+    Assert.assertEquals(3, arena.getChunkCount());
+
+    // The chunks are not recycled while a reader holds the arena.
+    Assert.assertTrue(arena.retain());
+    arena.release();
+    Assert.assertEquals(0, pool.getPooledCount());
+    arena.release();
+    Assert.assertFalse(arena.retain());
+    // Only 2 of the 3 chunks are kept for reuse.
+    Assert.assertEquals(2, pool.getPooledCount());
+
+    MemStoreArena next = new MemStoreArena(pool);
+    for (int i = 0; i < 20; i++) {
+      next.copy(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), i));
+    }
+    Assert.assertEquals(4, pool.getCreatedCount());
+  }
+
+  private static class ListFlusher implements Flusher {
+    private final List<KeyValue> flushed = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void flush(Iter<KeyValue> it) throws IOException {
+      prepareFlush(it).run();
+    }
+
+    @Override
+    public Runnable prepareFlush(Iter<KeyValue> it) throws IOException {
+      List<KeyValue> kvs = new ArrayList<>();
+      while (it.hasNext()) {
+        kvs.add(it.next().detach());
+      }
+      return () -> flushed.addAll(kvs);
+    }
+  }
+
+  @Test
+  public void testArenaMemStore() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      Config conf = new Config().setMaxMemstoreSize(4 * 1024).setMemstoreArenaEnabled(true)
+          .setMemstoreChunkSize(1024);
+      ListFlusher flusher = new ListFlusher();
+      MemStore memstore = new MemStore(conf, flusher, pool);
+      int count = 1000;
+      for (int i = 0; i < count; i++) {
+        memstore.add(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), i));
+      }
+      while (memstore.isFlushing()) {
+        Thread.sleep(5L);
+      }
+
+      // Every key value is either flushed or in the active memstore.
+      int inMemstore = 0;
+      for (Iter<KeyValue> it = memstore.createIterator(); it.hasNext(); inMemstore++) {
+        KeyValue kv = it.next();
+        Assert.assertArrayEquals(kv.getKey(), kv.getValue());
+        Assert.assertEquals(kv, memstore.get(kv.getKey()));
+      }
+      Assert.assertEquals(count, flusher.flushed.size() + inMemstore);
+      for (int i = 0; i < flusher.flushed.size(); i++) {
+        KeyValue kv = flusher.flushed.get(i);
+        Assert.assertEquals(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), i), kv);
+        Assert.assertArrayEquals(Bytes.toBytes(i), kv.getValue());
+      }
+
+      // The chunks of the flushed memstores are reused.
+      ChunkPool chunkPool = memstore.getChunkPool();
+      Assert.assertTrue(chunkPool.getPooledCount() > 0);
+      Assert.assertTrue(chunkPool.getCreatedCount() < count * 25 / 1024);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testArenaMiniBase() throws Exception {
+    String dataDir = "target/minibase-arena-" + System.nanoTime();
+    Assert.assertTrue(new File(dataDir).mkdirs());
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(16 * 1024)
+        .setMemstoreArenaEnabled(true).setMemstoreChunkSize(4 * 1024);
+    MiniBase db = MStore.create(conf).open();
+    int count = 5000;
+    for (int i = 0; i < count; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    for (int i = 0; i < count; i += 2) {
+      db.delete(Bytes.toBytes(i));
+    }
+    for (int i = 0; i < count; i++) {
+      KeyValue kv = db.get(Bytes.toBytes(i));
+      if (i % 2 == 0) {
+        Assert.assertNull(kv);
+      } else {
+        Assert.assertArrayEquals(Bytes.toBytes(i), kv.getValue());
+      }
+    }
+    Iter<KeyValue> it = db.scan();
+    for (int i = 1; i < count; i += 2) {
+      Assert.assertTrue(it.hasNext());
+      KeyValue kv = it.next();
+      Assert.assertArrayEquals(Bytes.toBytes(i), kv.getKey());
+      Assert.assertArrayEquals(Bytes.toBytes(i), kv.getValue());
+    }
+    Assert.assertFalse(it.hasNext());
+    db.close();
+  }
+}
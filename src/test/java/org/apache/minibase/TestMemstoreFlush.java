@@ -1,12 +1,19 @@
 package org.apache.minibase;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.minibase.MiniBase.Flusher;
 import org.apache.minibase.MiniBase.Iter;
@@ -39,31 +46,44 @@ public class TestMemstoreFlush {
   public void testBlockingPut() throws Exception {
     ExecutorService pool = Executors.newFixedThreadPool(1);
     try {
-      Config conf = new Config().setMaxMemstoreSize(1);
+      Config conf = new Config().setMaxMemstoreSize(1).setMaxImmutableMemstores(1);
 
       SleepAndFlusher flusher = new SleepAndFlusher();
       MemStore memstore = new MemStore(conf, flusher, pool);
       memstore.add(KeyValue.createPut(Bytes.toBytes(1), Bytes.toBytes(1), 1L));
-      assertEquals(memstore.getDataSize(), 25);
+      // Switched to be immutable right after the put.
+      assertEquals(memstore.getDataSize(), 0);
+      assertEquals(memstore.getImmutableCount(), 1);
 
-      // Wait 5ms for the memstore snapshot.
-      Thread.sleep(5L);
       memstore.add(KeyValue.createPut(Bytes.toBytes(2), Bytes.toBytes(2), 1L));
+      assertEquals(memstore.getDataSize(), 25);
 
-      // Stuck in memstore flushing, will throw blocking exception.
-      // because both of the memstore and snapshot are full now.
-      try {
-        memstore.add(KeyValue.createPut(Bytes.toBytes(3), Bytes.toBytes(3), 1L));
-        fail("Should throw IOException here, because our memstore is full now");
-      } catch (IOException e) {
-        assertTrue(e.getMessage().contains("Memstore is full"));
-      }
+      // Stuck in memstore flushing, the put will be blocked because the memstore is over the hard
+      // limit, until the flushing is finished.
+      AtomicBoolean added = new AtomicBoolean(false);
+      Thread writer = new Thread(() -> {
+        try {
+          memstore.add(KeyValue.createPut(Bytes.toBytes(3), Bytes.toBytes(3), 1L));
+          added.set(true);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+      writer.start();
+      Thread.sleep(200L);
+      assertFalse(added.get());
       assertEquals(memstore.isFlushing(), true);
+      assertEquals(memstore.getWriteController().getStalledWrites(), 1);
 
       flusher.stopSleepNow();
+      writer.join();
+      assertTrue(added.get());
+      assertTrue(memstore.getWriteController().getStalledTimeMs() > 0);
+
+      // The blocked put triggered the flush of the key values 2 and 3.
       Thread.sleep(200L);
       assertEquals(memstore.isFlushing(), false);
-      assertEquals(memstore.getDataSize(), 25);
+      assertEquals(memstore.getDataSize(), 0);
 
       memstore.add(KeyValue.createPut(Bytes.toBytes(4), Bytes.toBytes(4), 1L));
       Thread.sleep(5L);
@@ -73,6 +93,134 @@ public class TestMemstoreFlush {
     }
   }
 
+  @Test
+  public void testWriteStallTimeout() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(1);
+    try {
+      Config conf = new Config().setMaxMemstoreSize(1).setMaxImmutableMemstores(1)
+          .setWriteStallTimeoutMs(100);
+      SleepAndFlusher flusher = new SleepAndFlusher();
+      MemStore memstore = new MemStore(conf, flusher, pool);
+      memstore.add(KeyValue.createPut(Bytes.toBytes(1), Bytes.toBytes(1), 1L));
+      Thread.sleep(5L);
+      memstore.add(KeyValue.createPut(Bytes.toBytes(2), Bytes.toBytes(2), 1L));
+      try {
+        memstore.add(KeyValue.createPut(Bytes.toBytes(3), Bytes.toBytes(3), 1L));
+        fail("Should throw IOException here, because the flushing never finishes");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("Write stalled"));
+      }
+      flusher.stopSleepNow();
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSlowdownPut() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(1);
+    try {
+      // 25B per key value, so the 4th key value makes the memstore over the soft limit 50B.
+      Config conf = new Config().setMaxMemstoreSize(25).setMaxImmutableMemstores(1)
+          .setWriteSlowdownRatio(2).setWriteStopRatio(100);
+      SleepAndFlusher flusher = new SleepAndFlusher();
+      MemStore memstore = new MemStore(conf, flusher, pool);
+      for (int i = 0; i < 2; i++) {
+        memstore.add(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), 1L));
+      }
+      Thread.sleep(5L);
+      assertTrue(memstore.isFlushing());
+      for (int i = 2; i < 10; i++) {
+        memstore.add(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), 1L));
+      }
+      assertEquals(memstore.getWriteController().getDelayedWrites(), 5);
+      assertEquals(memstore.getWriteController().getStalledWrites(), 0);
+      flusher.stopSleepNow();
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Flush each memstore into a list, the flush of the oldest memstore is blocked until being
+   * released.
+   */
+  private static class OrderedFlusher implements Flusher {
+
+    private final CountDownLatch firstFlushLatch = new CountDownLatch(1);
+    private final AtomicInteger prepared = new AtomicInteger();
+    private final List<List<KeyValue>> committed = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void flush(Iter<KeyValue> it) throws IOException {
+      prepareFlush(it).run();
+    }
+
+    @Override
+    public Runnable prepareFlush(Iter<KeyValue> it) throws IOException {
+      List<KeyValue> kvs = new ArrayList<>();
+      while (it.hasNext()) {
+        kvs.add(it.next());
+      }
+      // The flush tasks may run in any order, so find the oldest one by its sequence id.
+      boolean isOldest = !kvs.isEmpty() && kvs.get(0).getSequenceId() == 0;
+      prepared.incrementAndGet();
+      if (isOldest) {
+        try {
+          firstFlushLatch.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      return () -> committed.add(kvs);
+    }
+  }
+
+  @Test
+  public void testParallelFlush() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      Config conf = new Config().setMaxMemstoreSize(1).setMaxImmutableMemstores(3);
+      OrderedFlusher flusher = new OrderedFlusher();
+      MemStore memstore = new MemStore(conf, flusher, pool);
+      for (int i = 0; i < 3; i++) {
+        memstore.add(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), i));
+      }
+      // The later flushes are finished, but can't be installed before the first one.
+      while (flusher.prepared.get() < 3) {
+        Thread.sleep(5L);
+      }
+      Thread.sleep(50L);
+      assertEquals(3, memstore.getImmutableCount());
+      assertTrue(flusher.committed.isEmpty());
+      assertTrue(memstore.isImmutableQueueFull());
+
+      // Reads merge all the immutable memstores.
+      for (int i = 0; i < 3; i++) {
+        assertEquals(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), i),
+          memstore.get(Bytes.toBytes(i)));
+      }
+      Iter<KeyValue> it = memstore.createIterator();
+      for (int i = 0; i < 3; i++) {
+        assertTrue(it.hasNext());
+        assertEquals(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), i), it.next());
+      }
+      assertFalse(it.hasNext());
+
+      flusher.firstFlushLatch.countDown();
+      while (memstore.isFlushing()) {
+        Thread.sleep(5L);
+      }
+      assertEquals(3, flusher.committed.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals(1, flusher.committed.get(i).size());
+        assertEquals(i, flusher.committed.get(i).get(0).getSequenceId());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
   @Test
   public void testAddPutAndDelete() throws Exception {
     ExecutorService pool = Executors.newFixedThreadPool(1);
@@ -139,4 +287,144 @@ public class TestMemstoreFlush {
       pool.shutdownNow();
     }
   }
+
+  /**
+   * Flush each memstore into a list once released.
+   */
+  private static class LatchFlusher implements Flusher {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final List<List<KeyValue>> flushed = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void flush(Iter<KeyValue> it) throws IOException {
+      List<KeyValue> kvs = new ArrayList<>();
+      while (it.hasNext()) {
+        kvs.add(it.next());
+      }
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      flushed.add(kvs);
+    }
+  }
+
+  @Test
+  public void testStalledWriterRacesNewerWriter() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      Config conf = new Config().setMaxMemstoreSize(1).setMaxImmutableMemstores(1);
+      LatchFlusher flusher = new LatchFlusher();
+      MemStore memstore = new MemStore(conf, flusher, pool);
+      MVCC mvcc = new MVCC(0);
+      memstore.add(new WriteBatch().put(Bytes.toBytes(0), Bytes.toBytes(0)), mvcc);
+      memstore.add(new WriteBatch().put(Bytes.toBytes(1), Bytes.toBytes(1)), mvcc);
+      // The queue is full and the active memstore is over the hard limit, so the writes stall.
+      assertTrue(memstore.isImmutableQueueFull());
+
+      byte[] key = Bytes.toBytes(2);
+      List<MVCC.WriteEntry> entries = new CopyOnWriteArrayList<>();
+      List<Thread> writers = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        byte[] value = Bytes.toBytes(i);
+        Thread writer = new Thread(() -> {
+          try {
+            entries.add(memstore.add(new WriteBatch().put(key, value), mvcc));
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        });
+        writer.start();
+        writers.add(writer);
+        while (memstore.getWriteController().getStalledWrites() < i + 1) {
+          Thread.sleep(5L);
+        }
+      }
+      // No sequence id is taken by the stalled writers.
+      assertEquals(2, mvcc.getWritePoint());
+
+      flusher.latch.countDown();
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      while (memstore.isFlushing()) {
+        Thread.sleep(5L);
+      }
+      assertEquals(2, entries.size());
+      long newest = Math.max(entries.get(0).getFirstSequenceId(),
+        entries.get(1).getFirstSequenceId());
+
+      // The newest source of the key must have the newest write, whichever writer woke up first.
+      KeyValue kv = memstore.get(key, mvcc.getReadPoint());
+      for (int i = flusher.flushed.size() - 1; i >= 0 && kv == null; i--) {
+        for (KeyValue flushed : flusher.flushed.get(i)) {
+          if (Bytes.compare(flushed.getKey(), key) == 0) {
+            kv = flushed;
+            break;
+          }
+        }
+      }
+      Assert.assertNotNull(kv);
+      assertEquals(newest, kv.getSequenceId());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedFlushRejectsWrites() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(1);
+    try {
+      Config conf = new Config().setMaxMemstoreSize(1).setMaxImmutableMemstores(1)
+          .setFlushMaxRetries(2);
+      CountDownLatch latch = new CountDownLatch(1);
+      AtomicInteger attempts = new AtomicInteger();
+      Flusher flusher = it -> {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        attempts.incrementAndGet();
+        throw new IOException("Injected flush failure");
+      };
+      MemStore memstore = new MemStore(conf, flusher, pool);
+      memstore.add(KeyValue.createPut(Bytes.toBytes(0), Bytes.toBytes(0), 0L));
+      memstore.add(KeyValue.createPut(Bytes.toBytes(1), Bytes.toBytes(1), 1L));
+
+      // Stalled behind the flush, then failed instead of waiting forever.
+      AtomicBoolean failed = new AtomicBoolean(false);
+      Thread writer = new Thread(() -> {
+        try {
+          memstore.add(KeyValue.createPut(Bytes.toBytes(2), Bytes.toBytes(2), 2L));
+        } catch (IOException e) {
+          failed.set(true);
+        }
+      });
+      writer.start();
+      while (memstore.getWriteController().getStalledWrites() < 1) {
+        Thread.sleep(5L);
+      }
+      latch.countDown();
+      writer.join();
+      assertTrue(failed.get());
+      assertEquals(2, attempts.get());
+
+      try {
+        memstore.add(KeyValue.createPut(Bytes.toBytes(3), Bytes.toBytes(3), 3L));
+        fail("Should be rejected after the flush failed");
+      } catch (IOException e) {
+        // Expected.
+      }
+      // The un-flushed key values are still readable.
+      assertEquals(KeyValue.createPut(Bytes.toBytes(0), Bytes.toBytes(0), 0L),
+        memstore.get(Bytes.toBytes(0)));
+      assertEquals(KeyValue.createPut(Bytes.toBytes(1), Bytes.toBytes(1), 1L),
+        memstore.get(Bytes.toBytes(1)));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
 }
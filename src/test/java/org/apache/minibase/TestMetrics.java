@@ -0,0 +1,110 @@
+package org.apache.minibase;
+
+import org.apache.minibase.MiniBase.Iter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class TestMetrics {
+
+  @Test
+  public void testHistogramBucket() {
+    for (long value = 0; value < 100000; value += 7) {
+      int index = Histogram.bucketIndex(value);
+      Assert.assertTrue(value <= Histogram.bucketUpperBound(index));
+      if (index > 0) {
+        Assert.assertTrue(value > Histogram.bucketUpperBound(index - 1));
+      }
+    }
+    Assert.assertEquals(Long.MAX_VALUE,
+      Histogram.bucketUpperBound(Histogram.bucketIndex(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testHistogramPercentile() {
+    Histogram histogram = new Histogram();
+    Assert.assertEquals(0, histogram.getPercentile(99));
+    for (long i = 1; i <= 10000; i++) {
+      histogram.update(i);
+    }
+    Assert.assertEquals(10000, histogram.getCount());
+    Assert.assertEquals(10000, histogram.getMax());
+    Assert.assertEquals(5000, histogram.getMean());
+    // The error of a log-linear bucket is bounded by 1/32 of the value.
+    assertNear(5000, histogram.getPercentile(50));
+    assertNear(9500, histogram.getPercentile(95));
+    assertNear(9900, histogram.getPercentile(99));
+    assertNear(9990, histogram.getPercentile(99.9));
+    Assert.assertEquals(10000, histogram.getPercentile(100));
+  }
+
+  private static void assertNear(long expected, long actual) {
+    Assert.assertTrue("expected " + expected + " but " + actual,
+      Math.abs(expected - actual) <= expected / 32 + 1);
+  }
+
+  @Test
+  public void testSnapshot() {
+    Metrics metrics = new Metrics();
+    metrics.counter("a.count").add(3);
+    metrics.counter("a.count").increment();
+    metrics.gauge("b.size", () -> 42L);
+    metrics.histogram("c.latency").update(100);
+
+    Map<String, Long> snapshot = metrics.snapshot();
+    Assert.assertEquals(4L, (long) snapshot.get("a.count"));
+    Assert.assertEquals(42L, (long) snapshot.get("b.size"));
+    Assert.assertEquals(1L, (long) snapshot.get("c.latency.count"));
+    Assert.assertEquals(100L, (long) snapshot.get("c.latency.max"));
+    Assert.assertTrue(snapshot.containsKey("c.latency.p99"));
+    Assert.assertTrue(snapshot.containsKey("c.latency.p99_9"));
+  }
+
+  @Test
+  public void testStoreMetrics() throws Exception {
+    String dataDir = "target/minibase-metrics-" + System.nanoTime();
+    Assert.assertTrue(new File(dataDir).mkdirs());
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(4 * 1024)
+        .setMaxDiskFiles(Integer.MAX_VALUE).setMetricsJmxEnabled(true);
+    MStore db = MStore.create(conf);
+    db.open();
+    int count = 1000;
+    for (int i = 0; i < count; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    for (int i = 0; i < count; i++) {
+      Assert.assertArrayEquals(Bytes.toBytes(i), db.get(Bytes.toBytes(i)).getValue());
+    }
+    Iter<KeyValue> it = db.scan();
+    while (it.hasNext()) {
+      it.next();
+    }
+    while (db.getMetrics().snapshot().get("memstore.immutableCount") > 0) {
+      Thread.sleep(5L);
+    }
+
+    Map<String, Long> snapshot = db.getMetrics().snapshot();
+    Assert.assertEquals(count, (long) snapshot.get("write.latencyNs.count"));
+    Assert.assertEquals(count, (long) snapshot.get("get.latencyNs.count"));
+    Assert.assertEquals(1L, (long) snapshot.get("scan.latencyNs.count"));
+    Assert.assertTrue(snapshot.get("flush.count") > 0);
+    Assert.assertEquals(snapshot.get("flush.count"), snapshot.get("diskstore.fileCount"));
+    Assert.assertTrue(snapshot.get("flush.bytes") > 0);
+    Assert.assertTrue(snapshot.get("diskfile.bloomChecks") > 0);
+
+    // The same metrics are published as the attributes of the MBean.
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = db.getMetrics().getObjectName();
+    Assert.assertTrue(server.isRegistered(name));
+    Assert.assertEquals((long) count, server.getAttribute(name, "write.latencyNs.count"));
+
+    db.close();
+    Assert.assertFalse(server.isRegistered(name));
+  }
+}
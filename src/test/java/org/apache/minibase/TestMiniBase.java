@@ -1,6 +1,7 @@
 package org.apache.minibase;
 
 import org.apache.minibase.KeyValue.Op;
+import org.apache.minibase.MStore.DescendingScanIter;
 import org.apache.minibase.MStore.ScanIter;
 import org.apache.minibase.MStore.SeekIter;
 import org.apache.minibase.MiniBase.Iter;
@@ -12,6 +13,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class TestMiniBase {
@@ -20,7 +22,7 @@ public class TestMiniBase {
 
   @Before
   public void setUp() {
-    dataDir = "target/minihbase-" + System.currentTimeMillis();
+    dataDir = "target/minihbase-" + System.nanoTime();
     File f = new File(dataDir);
     Assert.assertTrue(f.mkdirs());
   }
@@ -129,6 +131,117 @@ public class TestMiniBase {
     Assert.assertNull(db.get(B));
   }
 
+  @Test
+  public void testGetAcrossDiskFiles() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1).setFlushMaxRetries(1)
+            .setMaxDiskFiles(100);
+    MiniBase db = MStore.create(conf).open();
+
+    // Every put will trigger a flush, so the versions spread across many disk files.
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 10; i++) {
+        putWithRetries(db, Bytes.toBytes(i), Bytes.toBytes(round * 100 + i));
+      }
+    }
+    for (int i = 0; i < 10; i += 2) {
+      deleteWithRetries(db, Bytes.toBytes(i));
+    }
+    for (int i = 0; i < 10; i++) {
+      KeyValue kv = db.get(Bytes.toBytes(i));
+      if (i % 2 == 0) {
+        Assert.assertNull(kv);
+      } else {
+        Assert.assertArrayEquals(Bytes.toBytes(200 + i), kv.getValue());
+      }
+    }
+    Assert.assertNull(db.get(Bytes.toBytes(10)));
+
+    // Unsorted, duplicated and missing keys, resolved across the memstore and the disk files.
+    putWithRetries(db, Bytes.toBytes(3), Bytes.toBytes(300));
+    List<byte[]> keys = new ArrayList<>();
+    for (int i = 10; i >= 0; i--) {
+      keys.add(Bytes.toBytes(i));
+    }
+    keys.add(Bytes.toBytes(5));
+    List<KeyValue> kvs = db.multiGet(keys);
+    Assert.assertEquals(keys.size(), kvs.size());
+    for (int i = 0; i < keys.size(); i++) {
+      int key = Bytes.toInt(keys.get(i));
+      KeyValue kv = kvs.get(i);
+      if (key == 10 || key % 2 == 0) {
+        Assert.assertNull(kv);
+      } else {
+        Assert.assertArrayEquals(Bytes.toBytes(key == 3 ? 300 : 200 + key), kv.getValue());
+      }
+    }
+    db.close();
+  }
+
+  @Test
+  public void testRecoverSequenceIdFromDiskFiles() throws Exception {
+    // Without WAL, the sequence id can only be recovered from the disk files. Disable compaction,
+    // so the files can be listed by another disk store safely.
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(1).setFlushMaxRetries(1)
+            .setWalSyncMode(WAL.SyncMode.NONE).setMaxDiskFiles(Integer.MAX_VALUE);
+    MiniBase db = MStore.create(conf).open();
+    for (int i = 0; i < 10; i++) {
+      putWithRetries(db, Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    // Wait until the last put is flushed. The last put won't trigger a flush if the previous flush
+    // is still running, so put it again in that case.
+    long lastSequenceId;
+    long flushedSequenceId = -1L;
+    do {
+      putWithRetries(db, Bytes.toBytes(9), Bytes.toBytes(9));
+      lastSequenceId = db.get(Bytes.toBytes(9)).getSequenceId();
+      for (int i = 0; i < 100 && flushedSequenceId < lastSequenceId; i++) {
+        Thread.sleep(10);
+        DiskStore diskStore = new DiskStore(conf, null);
+        diskStore.open();
+        flushedSequenceId = diskStore.getMaxSequenceId();
+        diskStore.close();
+      }
+    } while (flushedSequenceId < lastSequenceId);
+    db.close();
+
+    db = MStore.create(conf).open();
+    putWithRetries(db, Bytes.toBytes(1), Bytes.toBytes(100));
+    KeyValue kv = db.get(Bytes.toBytes(1));
+    Assert.assertEquals(lastSequenceId + 1, kv.getSequenceId());
+    Assert.assertArrayEquals(Bytes.toBytes(100), kv.getValue());
+    db.close();
+  }
+
+  private static void putWithRetries(MiniBase db, byte[] key, byte[] value) throws Exception {
+    for (int retries = 0; ; retries++) {
+      try {
+        db.put(key, value);
+        return;
+      } catch (IOException e) {
+        // Memstore maybe full, so let's retry.
+        if (retries >= 50) {
+          throw e;
+        }
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  private static void deleteWithRetries(MiniBase db, byte[] key) throws Exception {
+    for (int retries = 0; ; retries++) {
+      try {
+        db.delete(key);
+        return;
+      } catch (IOException e) {
+        // Memstore maybe full, so let's retry.
+        if (retries >= 50) {
+          throw e;
+        }
+        Thread.sleep(10);
+      }
+    }
+  }
+
   static class MockSeekIter implements SeekIter<KeyValue> {
 
     private int curIdx = 0;
@@ -190,5 +303,82 @@ public class TestMiniBase {
     Assert.assertTrue(scan.hasNext());
     Assert.assertEquals(scan.next(), KeyValue.createPut(B, B, 100));
     Assert.assertFalse(scan.hasNext());
+
+    // The same key values in the descending order resolve to the same versions.
+    List<KeyValue> reversed = new ArrayList<>(list);
+    Collections.reverse(reversed);
+    scan = new DescendingScanIter(null, new MockSeekIter(reversed), Long.MAX_VALUE, null);
+    Assert.assertTrue(scan.hasNext());
+    Assert.assertEquals(scan.next(), KeyValue.createPut(C, C, 80));
+    Assert.assertTrue(scan.hasNext());
+    Assert.assertEquals(scan.next(), KeyValue.createPut(B, B, 100));
+    Assert.assertFalse(scan.hasNext());
+
+    scan = new DescendingScanIter(KeyValue.createDelete(C, Long.MAX_VALUE),
+        new MockSeekIter(reversed), Long.MAX_VALUE, null);
+    Assert.assertEquals(scan.next(), KeyValue.createPut(C, C, 80));
+    Assert.assertFalse(scan.hasNext());
+
+    // Only the versions visible to the read point, the Put of A at 99 is visible now.
+    scan = new DescendingScanIter(null, new MockSeekIter(reversed), 99, null);
+    Assert.assertEquals(scan.next(), KeyValue.createPut(C, C, 80));
+    Assert.assertEquals(scan.next(), KeyValue.createPut(B, B, 99));
+    Assert.assertFalse(scan.hasNext());
+  }
+
+  @Test
+  public void testDescendingScan() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(4 * 1024);
+    MiniBase db = MStore.create(conf).open();
+    int count = 2000;
+    for (int i = 0; i < count; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    Snapshot snapshot = db.getSnapshot();
+    // Overwrite and delete some keys after the snapshot, across the memstore and the disk files.
+    for (int i = 0; i < count; i++) {
+      if (i % 3 == 0) {
+        db.delete(Bytes.toBytes(i));
+      } else if (i % 3 == 1) {
+        db.put(Bytes.toBytes(i), Bytes.toBytes(i + 1));
+      }
+    }
+
+    List<KeyValue> forward = new ArrayList<>();
+    for (Iter<KeyValue> it = db.scan(); it.hasNext(); ) {
+      forward.add(it.next());
+    }
+    Assert.assertEquals(count * 2 / 3, forward.size());
+    List<KeyValue> descending = new ArrayList<>();
+    for (Iter<KeyValue> it = db.descendingScan(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES);
+        it.hasNext(); ) {
+      descending.add(it.next());
+    }
+    Collections.reverse(descending);
+    Assert.assertEquals(forward, descending);
+
+    // [100, 200) from 199 to 100.
+    Iter<KeyValue> it = db.descendingScan(Bytes.toBytes(100), Bytes.toBytes(200));
+    for (int i = 199; i >= 100; i--) {
+      if (i % 3 == 0) {
+        continue;
+      }
+      Assert.assertTrue(it.hasNext());
+      KeyValue kv = it.next();
+      Assert.assertArrayEquals(Bytes.toBytes(i), kv.getKey());
+      Assert.assertArrayEquals(Bytes.toBytes(i % 3 == 1 ? i + 1 : i), kv.getValue());
+    }
+    Assert.assertFalse(it.hasNext());
+
+    // The latest 10 keys before 1000 as of the snapshot, and stop in the middle.
+    it = db.descendingScan(Bytes.EMPTY_BYTES, Bytes.toBytes(1000), snapshot);
+    for (int i = 999; i >= 990; i--) {
+      KeyValue kv = it.next();
+      Assert.assertArrayEquals(Bytes.toBytes(i), kv.getKey());
+      Assert.assertArrayEquals(Bytes.toBytes(i), kv.getValue());
+    }
+    it.close();
+    snapshot.close();
+    db.close();
   }
 }
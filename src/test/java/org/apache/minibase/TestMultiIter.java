@@ -2,6 +2,7 @@ package org.apache.minibase;
 
 import org.apache.minibase.DiskFile.DiskFileWriter;
 import org.apache.minibase.DiskStore.MultiIter;
+import org.apache.minibase.MemStore.IteratorWrapper;
 import org.apache.minibase.MStore.SeekIter;
 import org.apache.minibase.MiniBase.Iter;
 import org.junit.Assert;
@@ -11,7 +12,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
 
 public class TestMultiIter {
 
@@ -121,6 +125,83 @@ public class TestMultiIter {
     Assert.assertEquals(count, 4);
   }
 
+  @Test
+  public void testMergeManyIters() throws IOException {
+    Random random = new Random(42);
+    int iterCount = 37;
+    SeekIter<KeyValue>[] iters = new SeekIter[iterCount];
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < iterCount; i++) {
+      int[] array = new int[random.nextInt(50)];
+      for (int j = 0; j < array.length; j++) {
+        array[j] = random.nextInt(10000);
+      }
+      Arrays.sort(array);
+      for (int value : array) {
+        expected.add(value);
+      }
+      iters[i] = new MockIter(array);
+    }
+    Collections.sort(expected);
+
+    MultiIter multiIter = new MultiIter(iters);
+    for (int value : expected) {
+      Assert.assertTrue(multiIter.hasNext());
+      String s = String.format("%05d", value);
+      Assert.assertArrayEquals(Bytes.toBytes(s), multiIter.next().getKey());
+    }
+    Assert.assertFalse(multiIter.hasNext());
+    Assert.assertNull(multiIter.next());
+
+    // Seek back into the middle after the iterators are exhausted.
+    int target = expected.get(expected.size() / 2);
+    String s = String.format("%05d", target);
+    multiIter.seekTo(KeyValue.createPut(Bytes.toBytes(s), Bytes.toBytes(s), 1L));
+    for (int value : expected.subList(expected.indexOf(target), expected.size())) {
+      Assert.assertTrue(multiIter.hasNext());
+      Assert.assertArrayEquals(Bytes.toBytes(String.format("%05d", value)),
+        multiIter.next().getKey());
+    }
+    Assert.assertFalse(multiIter.hasNext());
+  }
+
+  @Test
+  public void testDescendingMerge() throws IOException {
+    Random random = new Random(42);
+    List<TreeMap<KeyValue, KeyValue>> maps = new ArrayList<>();
+    TreeMap<KeyValue, KeyValue> all = new TreeMap<>();
+    for (int i = 0; i < 8; i++) {
+      maps.add(new TreeMap<>());
+    }
+    for (int i = 0; i < 2000; i++) {
+      // The same key with different sequence ids in different iterators.
+      KeyValue kv = KeyValue.createPut(Bytes.toBytes(random.nextInt(500)), Bytes.toBytes(i), i);
+      maps.get(random.nextInt(maps.size())).put(kv, kv);
+      all.put(kv, kv);
+    }
+    SeekIter<KeyValue>[] iters = new SeekIter[maps.size()];
+    for (int i = 0; i < iters.length; i++) {
+      iters[i] = new IteratorWrapper(maps.get(i).descendingMap());
+    }
+    MultiIter multiIter = new MultiIter(iters, true);
+    for (KeyValue kv : all.descendingKeySet()) {
+      Assert.assertTrue(multiIter.hasNext());
+      Assert.assertEquals(kv, multiIter.next());
+    }
+    Assert.assertFalse(multiIter.hasNext());
+
+    // Seek to the largest key value <= the target.
+    for (int key = 0; key < 500; key += 7) {
+      KeyValue target = KeyValue.createDelete(Bytes.toBytes(key), Long.MAX_VALUE);
+      multiIter.seekTo(target);
+      for (KeyValue kv : all.headMap(target, true).descendingKeySet()) {
+        Assert.assertTrue(multiIter.hasNext());
+        Assert.assertEquals(kv, multiIter.next());
+      }
+      Assert.assertFalse(multiIter.hasNext());
+    }
+  }
+
   private void testDiskFileMergeSort(String[] inputs, String output, int rowCount)
       throws IOException {
     try {
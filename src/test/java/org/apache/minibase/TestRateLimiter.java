@@ -0,0 +1,115 @@
+package org.apache.minibase;
+
+import org.apache.minibase.RateLimiter.Priority;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestRateLimiter {
+
+  @Test
+  public void testUnlimited() throws Exception {
+    RateLimiter limiter = new RateLimiter(0);
+    Assert.assertFalse(limiter.isLimited());
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) {
+      limiter.request(1024 * 1024, Priority.LOW);
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+    Assert.assertEquals(100 * 1024 * 1024, limiter.getTotalBytes());
+    Assert.assertEquals(0, limiter.getThrottledTimeMs());
+  }
+
+  @Test
+  public void testLimited() throws Exception {
+    // 5MB in 10MB/s, the first 100ms is granted by the initial burst at most.
+    RateLimiter limiter = new RateLimiter(10 * 1024 * 1024);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      limiter.request(1024 * 1024, Priority.LOW);
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    Assert.assertTrue("elapsed " + elapsed, elapsed >= 350);
+    Assert.assertTrue(limiter.getThrottledTimeMs() >= 350);
+  }
+
+  @Test
+  public void testHighPriority() throws Exception {
+    RateLimiter limiter = new RateLimiter(1024 * 1024);
+    long start = System.currentTimeMillis();
+    // The high priority requests are never delayed, but they take the tokens.
+    for (int i = 0; i < 5; i++) {
+      limiter.request(1024 * 1024, Priority.HIGH);
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+    Assert.assertEquals(0, limiter.getThrottledTimeMs());
+
+    // So the next low priority request waits for the tokens taken by them.
+    limiter = new RateLimiter(10 * 1024 * 1024);
+    limiter.request(2 * 1024 * 1024, Priority.HIGH);
+    start = System.currentTimeMillis();
+    limiter.request(1, Priority.LOW);
+    Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+  }
+
+  @Test
+  public void testAutoTune() throws Exception {
+    long maxRate = 100 * 1024 * 1024;
+    RateLimiter limiter = new RateLimiter(maxRate);
+    AtomicLong debt = new AtomicLong();
+    Histogram latency = new Histogram();
+    limiter.enableAutoTune(debt::get, latency);
+
+    // Build the baseline latency.
+    for (int i = 0; i < 1000; i++) {
+      latency.update(100);
+    }
+    limiter.tune();
+    Assert.assertEquals(maxRate, limiter.getBytesPerSecond());
+
+    // The latency is degraded, back off.
+    for (int i = 0; i < 1000; i++) {
+      latency.update(1000);
+    }
+    limiter.tune();
+    Assert.assertEquals(maxRate - maxRate / 5, limiter.getBytesPerSecond());
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 1000; j++) {
+        latency.update(1000);
+      }
+      limiter.tune();
+    }
+    Assert.assertEquals(maxRate / 10, limiter.getBytesPerSecond());
+
+    // The compaction debt grows, speed up even if the latency is still degraded.
+    for (int i = 0; i < 20; i++) {
+      debt.incrementAndGet();
+      for (int j = 0; j < 1000; j++) {
+        latency.update(1000);
+      }
+      limiter.tune();
+    }
+    Assert.assertEquals(maxRate, limiter.getBytesPerSecond());
+  }
+
+  @Test
+  public void testRateLimitedStore() throws Exception {
+    String dataDir = "target/minibase-ratelimiter-" + System.nanoTime();
+    Assert.assertTrue(new File(dataDir).mkdirs());
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(16 * 1024)
+        .setIoRateLimit(1024 * 1024).setIoRateAutoTuned(true);
+    MStore db = MStore.create(conf);
+    db.open();
+    int count = 5000;
+    for (int i = 0; i < count; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    for (int i = 0; i < count; i++) {
+      Assert.assertArrayEquals(Bytes.toBytes(i), db.get(Bytes.toBytes(i)).getValue());
+    }
+    Assert.assertTrue(db.getMetrics().snapshot().get("ratelimiter.totalBytes") > 0);
+    db.close();
+  }
+}
@@ -0,0 +1,172 @@
+package org.apache.minibase;
+
+import org.apache.minibase.CompactionPolicy.Compaction;
+import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.DiskStore.CompactionIter;
+import org.apache.minibase.DiskStore.DefaultCompactor;
+import org.apache.minibase.KeyValue.Op;
+import org.apache.minibase.MiniBase.Iter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class TestSnapshot {
+
+  private String dataDir;
+
+  @Before
+  public void setUp() {
+    dataDir = "target/minibase-snapshot-" + System.nanoTime();
+    Assert.assertTrue(new File(dataDir).mkdirs());
+  }
+
+  private static class ListIter implements Iter<KeyValue> {
+    private final Iterator<KeyValue> it;
+
+    ListIter(KeyValue... kvs) {
+      this.it = Arrays.asList(kvs).iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return it.hasNext();
+    }
+
+    @Override
+    public KeyValue next() {
+      return it.next();
+    }
+  }
+
+  private static List<KeyValue> toList(Iter<KeyValue> it) throws IOException {
+    List<KeyValue> kvs = new ArrayList<>();
+    while (it.hasNext()) {
+      kvs.add(it.next());
+    }
+    return kvs;
+  }
+
+  private static KeyValue put(String key, long sequenceId) throws IOException {
+    return KeyValue.createPut(Bytes.toBytes(key), Bytes.toBytes(key + sequenceId), sequenceId);
+  }
+
+  private static KeyValue delete(String key, long sequenceId) throws IOException {
+    return KeyValue.createDelete(Bytes.toBytes(key), sequenceId);
+  }
+
+  @Test
+  public void testCompactionIter() throws IOException {
+    // The snapshot 5 and the read point 9 split the versions into (0, 5], (5, 9] and (9, +inf).
+    long[] retained = new long[] { 5, 9 };
+    KeyValue[] kvs = { put("a", 12), put("a", 10), put("a", 8), put("a", 6), put("a", 4),
+        put("a", 2), delete("b", 4), put("b", 3), put("c", 1) };
+    Assert.assertEquals(Arrays.asList(put("a", 12), put("a", 10), put("a", 8), put("a", 4),
+      delete("b", 4), put("c", 1)), toList(new CompactionIter(new ListIter(kvs), retained, false)));
+
+    // Nothing is under the bottommost delete marker.
+    CompactionIter it = new CompactionIter(new ListIter(kvs), retained, true);
+    Assert.assertEquals(Arrays.asList(put("a", 12), put("a", 10), put("a", 8), put("a", 4),
+      put("c", 1)), toList(it));
+    Assert.assertEquals(4, it.getDroppedCount());
+
+    // The delete marker is still needed by the readers above the snapshot.
+    kvs = new KeyValue[] { delete("a", 8), put("a", 4) };
+    Assert.assertEquals(Arrays.asList(kvs),
+      toList(new CompactionIter(new ListIter(kvs), retained, true)));
+  }
+
+  private void writeDiskFile(int fileId, KeyValue... kvs) throws IOException {
+    String fileName = new File(dataDir, String.format("data.%020d", fileId)).toString();
+    try (DiskFileWriter writer = new DiskFileWriter(fileName, 0)) {
+      for (KeyValue kv : kvs) {
+        writer.append(kv);
+      }
+      writer.appendIndex();
+      writer.appendTrailer();
+    }
+  }
+
+  @Test
+  public void testCompactionKeepsSnapshotVersions() throws IOException {
+    writeDiskFile(0, put("a", 1), put("b", 2), put("c", 3));
+    writeDiskFile(1, put("a", 4), delete("b", 5));
+    writeDiskFile(2, put("a", 6), delete("c", 7));
+    DiskStore diskStore = new DiskStore(new Config().setDataDir(dataDir), null);
+    diskStore.open();
+
+    MVCC mvcc = new MVCC(0);
+    mvcc.advanceTo(4);
+    Snapshot snapshot = mvcc.takeSnapshot();
+    mvcc.advanceTo(7);
+
+    CompactionPolicy policy = files -> new Compaction(files, 1, Long.MAX_VALUE);
+    DefaultCompactor compactor = new DefaultCompactor(diskStore, policy, 1, mvcc);
+    compactor.performCompact(policy.pickCompaction(diskStore.getDiskFiles()));
+    Assert.assertEquals(7, diskStore.getCompactedReadPoint());
+    Assert.assertEquals(Arrays.asList(put("a", 6), put("a", 4), delete("b", 5), put("b", 2),
+      delete("c", 7), put("c", 3)), toList(diskStore.createIterator()));
+
+    // Nothing is kept for the released snapshot.
+    snapshot.close();
+    Assert.assertTrue(snapshot.isReleased());
+    Assert.assertArrayEquals(new long[] { 7 }, mvcc.getRetainedSequenceIds());
+    compactor.performCompact(policy.pickCompaction(diskStore.getDiskFiles()));
+    Assert.assertEquals(Arrays.asList(put("a", 6)), toList(diskStore.createIterator()));
+    diskStore.close();
+  }
+
+  @Test
+  public void testSnapshotRead() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(4 * 1024)
+        .setMaxDiskFiles(Integer.MAX_VALUE);
+    MiniBase db = MStore.create(conf).open();
+    for (int i = 0; i < 1000; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    Snapshot snapshot = db.getSnapshot();
+    // Overwrite and delete the keys after the snapshot, some of them are flushed.
+    for (int i = 0; i < 1000; i++) {
+      if (i % 2 == 0) {
+        db.put(Bytes.toBytes(i), Bytes.toBytes(i + 1));
+      } else {
+        db.delete(Bytes.toBytes(i));
+      }
+    }
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertArrayEquals(Bytes.toBytes(i), db.get(Bytes.toBytes(i), snapshot).getValue());
+      KeyValue kv = db.get(Bytes.toBytes(i));
+      if (i % 2 == 0) {
+        Assert.assertArrayEquals(Bytes.toBytes(i + 1), kv.getValue());
+      } else {
+        Assert.assertNull(kv);
+      }
+    }
+
+    Iter<KeyValue> it = db.scan(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES, snapshot);
+    // The writes after the scan started are invisible too.
+    db.put(Bytes.toBytes(1000), Bytes.toBytes(1000));
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertTrue(it.hasNext());
+      KeyValue kv = it.next();
+      Assert.assertArrayEquals(Bytes.toBytes(i), kv.getKey());
+      Assert.assertArrayEquals(Bytes.toBytes(i), kv.getValue());
+    }
+    Assert.assertFalse(it.hasNext());
+
+    snapshot.close();
+    try {
+      db.get(Bytes.toBytes(0), snapshot);
+      Assert.fail("Should throw IOException because the snapshot is released");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage().contains("already released"));
+    }
+    db.close();
+  }
+}
@@ -0,0 +1,132 @@
+package org.apache.minibase;
+
+import org.apache.minibase.CompactionPolicy.Compaction;
+import org.apache.minibase.DiskFile.DiskFileWriter;
+import org.apache.minibase.DiskStore.DefaultCompactor;
+import org.apache.minibase.MiniBase.Iter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestVersion {
+
+  private String dataDir;
+
+  @Before
+  public void setUp() {
+    dataDir = "target/minibase-version-" + System.nanoTime();
+    Assert.assertTrue(new File(dataDir).mkdirs());
+  }
+
+  private String writeDiskFile(int fileId, int start, int count) throws IOException {
+    String fileName = new File(dataDir, String.format("data.%020d", fileId)).toString();
+    try (DiskFileWriter writer = new DiskFileWriter(fileName, 0)) {
+      for (int i = start; i < start + count; i++) {
+        writer.append(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), fileId));
+      }
+      writer.appendIndex();
+      writer.appendTrailer();
+    }
+    return fileName;
+  }
+
+  @Test
+  public void testCompactionUnderPinnedVersion() throws IOException {
+    String file0 = writeDiskFile(0, 0, 100);
+    String file1 = writeDiskFile(1, 100, 100);
+    DiskStore diskStore = new DiskStore(new Config().setDataDir(dataDir), null);
+    diskStore.open();
+
+    Version version = diskStore.pinVersion();
+    List<DiskFile> files = version.getFiles();
+    Assert.assertEquals(2, files.size());
+    Iter<KeyValue> it = diskStore.createIterator(files, Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES);
+    for (int i = 0; i < 50; i++) {
+      Assert.assertArrayEquals(Bytes.toBytes(i), it.next().getKey());
+    }
+
+    CompactionPolicy policy = diskFiles -> new Compaction(diskFiles, 1, Long.MAX_VALUE);
+    DefaultCompactor compactor = new DefaultCompactor(diskStore, policy, 1);
+    compactor.performCompact(policy.pickCompaction(diskStore.getDiskFiles()));
+    Assert.assertEquals(1, diskStore.getDiskFiles().size());
+    // The compacted files are still readable by the pinned version.
+    Assert.assertTrue(new File(file0).exists());
+    Assert.assertTrue(new File(file1).exists());
+    for (int i = 50; i < 200; i++) {
+      Assert.assertTrue(it.hasNext());
+      Assert.assertArrayEquals(Bytes.toBytes(i), it.next().getKey());
+    }
+    Assert.assertFalse(it.hasNext());
+    Assert.assertArrayEquals(Bytes.toBytes(150), files.get(1).get(Bytes.toBytes(150),
+      Long.MAX_VALUE).getValue());
+
+    // Archived once the last reader releases the version.
+    version.release();
+    Assert.assertFalse(new File(file0).exists());
+    Assert.assertFalse(new File(file1).exists());
+    Assert.assertTrue(new File(file0 + ".archive").exists());
+    Assert.assertTrue(new File(file1 + ".archive").exists());
+    Assert.assertFalse(version.retain());
+    diskStore.close();
+  }
+
+  @Test
+  public void testScanWithConcurrentCompaction() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(4 * 1024)
+        .setCompactionStyle(CompactionPolicy.Style.LEVELED)
+        .setLevel0CompactionTrigger(2);
+    MiniBase db = MStore.create(conf).open();
+    int count = 5000;
+    for (int i = 0; i < count; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+
+    // Keep flushing and compacting while the scans and gets are in progress.
+    AtomicBoolean running = new AtomicBoolean(true);
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread writer = new Thread(() -> {
+      try {
+        while (running.get()) {
+          for (int i = 0; i < count; i += 7) {
+            db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+          }
+        }
+      } catch (Exception e) {
+        failure.set(e);
+      }
+    });
+    writer.start();
+    try {
+      for (int round = 0; round < 5; round++) {
+        int i = 0;
+        Iter<KeyValue> it = db.scan(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES);
+        while (it.hasNext()) {
+          KeyValue kv = it.next();
+          Assert.assertArrayEquals(Bytes.toBytes(i), kv.getKey());
+          Assert.assertArrayEquals(Bytes.toBytes(i), kv.getValue());
+          i++;
+        }
+        Assert.assertEquals(count, i);
+        for (i = 0; i < count; i += 13) {
+          Assert.assertArrayEquals(Bytes.toBytes(i), db.get(Bytes.toBytes(i)).getValue());
+        }
+        // A scan stopped in the middle releases the version once closed.
+        it = db.scan(Bytes.EMPTY_BYTES, Bytes.EMPTY_BYTES);
+        Assert.assertTrue(it.hasNext());
+        it.close();
+        Assert.assertFalse(it.hasNext());
+      }
+    } finally {
+      running.set(false);
+      writer.join();
+    }
+    Assert.assertNull(failure.get());
+    db.close();
+  }
+}
@@ -0,0 +1,267 @@
+package org.apache.minibase;
+
+import org.apache.minibase.MiniBase.Iter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestWAL {
+
+  private String dataDir;
+
+  @Before
+  public void setUp() {
+    dataDir = "target/minibase-wal-" + System.nanoTime();
+    File f = new File(dataDir);
+    Assert.assertTrue(f.mkdirs());
+  }
+
+  private File[] listLogs() {
+    return new File(dataDir).listFiles(f -> f.getName().startsWith("wal."));
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setWalSyncMode(WAL.SyncMode.SYNC);
+    WAL wal = new WAL(conf);
+    wal.open();
+
+    final int threadSize = 8;
+    final int kvPerThread = 200;
+    final AtomicLong seqId = new AtomicLong(0);
+    Thread[] writers = new Thread[threadSize];
+    for (int i = 0; i < threadSize; i++) {
+      writers[i] = new Thread(() -> {
+        try {
+          for (int j = 0; j < kvPerThread; j++) {
+            long id = seqId.incrementAndGet();
+            wal.sync(wal.append(KeyValue.createPut(Bytes.toBytes(id), Bytes.toBytes(id), id)));
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      writers[i].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    wal.close();
+
+    Set<Long> replayed = new HashSet<>();
+    for (Iter<KeyValue> it = new WAL(conf).replay(); it.hasNext(); ) {
+      KeyValue kv = it.next();
+      Assert.assertEquals(Bytes.toLong(kv.getKey()), kv.getSequenceId());
+      replayed.add(kv.getSequenceId());
+    }
+    Assert.assertEquals(threadSize * kvPerThread, replayed.size());
+  }
+
+  @Test
+  public void testRollAndRemove() throws Exception {
+    Config conf = new Config().setDataDir(dataDir);
+    WAL wal = new WAL(conf);
+    wal.open();
+    wal.sync(wal.append(KeyValue.createPut(Bytes.toBytes(1), Bytes.toBytes(1), 1L)));
+    long rolledLogId = wal.roll();
+    wal.sync(wal.append(KeyValue.createPut(Bytes.toBytes(2), Bytes.toBytes(2), 2L)));
+    Assert.assertEquals(2, listLogs().length);
+
+    wal.removeLogsUpTo(rolledLogId);
+    Assert.assertEquals(1, listLogs().length);
+    wal.close();
+
+    Iter<KeyValue> it = new WAL(conf).replay();
+    Assert.assertTrue(it.hasNext());
+    Assert.assertEquals(KeyValue.createPut(Bytes.toBytes(2), Bytes.toBytes(2), 2L), it.next());
+    Assert.assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void testReplayTornRecord() throws Exception {
+    Config conf = new Config().setDataDir(dataDir);
+    WAL wal = new WAL(conf);
+    wal.open();
+    for (int i = 1; i <= 10; i++) {
+      wal.sync(wal.append(KeyValue.createPut(Bytes.toBytes(i), Bytes.toBytes(i), i)));
+    }
+    wal.close();
+
+    // Cut the tail record in half, just like the process crashed in the middle of a write.
+    File log = listLogs()[0];
+    try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+      raf.setLength(raf.length() - 10);
+    }
+
+    int count = 0;
+    for (Iter<KeyValue> it = new WAL(conf).replay(); it.hasNext(); ) {
+      count++;
+      Assert.assertEquals(count, it.next().getSequenceId());
+    }
+    Assert.assertEquals(9, count);
+  }
+
+  @Test
+  public void testRecoverMStore() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(2 * 1024 * 1024);
+    MiniBase db = MStore.create(conf).open();
+    for (int i = 0; i < 100; i++) {
+      db.put(Bytes.toBytes(i), Bytes.toBytes(i));
+    }
+    db.delete(Bytes.toBytes(50));
+    db.close();
+
+    // Nothing flushed, all the key values should be recovered from the WAL.
+    db = MStore.create(conf).open();
+    for (int i = 0; i < 100; i++) {
+      KeyValue kv = db.get(Bytes.toBytes(i));
+      if (i == 50) {
+        Assert.assertNull(kv);
+      } else {
+        Assert.assertArrayEquals(Bytes.toBytes(i), kv.getValue());
+      }
+    }
+    db.put(Bytes.toBytes(100), Bytes.toBytes(100));
+    Assert.assertEquals(102L, db.get(Bytes.toBytes(100)).getSequenceId());
+    db.close();
+  }
+
+  @Test
+  public void testReplayLargeWAL() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(16 * 1024 * 1024);
+    MStore db = MStore.create(conf);
+    db.open();
+    byte[] value = new byte[100];
+    for (int i = 0; i < 20000; i++) {
+      db.put(Bytes.toBytes(i), value);
+    }
+    db.close();
+
+    // The WAL is much larger than the memstore now, so the replay has to flush.
+    long maxMemstoreSize = 256 * 1024;
+    conf.setMaxMemstoreSize(maxMemstoreSize);
+    db = MStore.create(conf);
+    db.open();
+    Assert.assertTrue(db.getMetrics().snapshot().get("memstore.dataSize") <= maxMemstoreSize);
+    Assert.assertTrue(db.getMetrics().snapshot().get("diskstore.fileCount") > 0);
+    for (int i = 0; i < 20000; i++) {
+      Assert.assertArrayEquals(value, db.get(Bytes.toBytes(i)).getValue());
+    }
+    db.close();
+  }
+
+  /**
+   * The writes into the logs fail while failing is set.
+   */
+  private static class FailingWAL extends WAL {
+    private final AtomicBoolean failing = new AtomicBoolean(false);
+
+    FailingWAL(Config conf) {
+      super(conf);
+    }
+
+    @Override
+    FileOutputStream createLogStream(File f) throws IOException {
+      return new FileOutputStream(f, true) {
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          if (failing.get()) {
+            throw new IOException("Injected write failure");
+          }
+          super.write(b, off, len);
+        }
+      };
+    }
+  }
+
+  @Test
+  public void testFailedSync() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setWalSyncMode(WAL.SyncMode.SYNC);
+    FailingWAL wal = new FailingWAL(conf);
+    wal.open();
+    wal.sync(wal.append(KeyValue.createPut(Bytes.toBytes(1), Bytes.toBytes(1), 1L)));
+
+    wal.failing.set(true);
+    long txid = wal.append(KeyValue.createPut(Bytes.toBytes(2), Bytes.toBytes(2), 2L));
+    try {
+      wal.sync(txid);
+      Assert.fail("Should fail to sync");
+    } catch (IOException e) {
+      // Expected.
+    }
+
+    // Even if the disk recovered, the failed record is never written behind the newer ones.
+    wal.failing.set(false);
+    try {
+      wal.append(KeyValue.createPut(Bytes.toBytes(3), Bytes.toBytes(3), 3L));
+      Assert.fail("Should fail to append after a failed sync");
+    } catch (IOException e) {
+      // Expected.
+    }
+    try {
+      wal.sync(txid);
+      Assert.fail("Should fail to sync again");
+    } catch (IOException e) {
+      // Expected.
+    }
+    wal.close();
+
+    int count = 0;
+    for (Iter<KeyValue> it = new WAL(conf).replay(); it.hasNext(); ) {
+      count++;
+      Assert.assertEquals(count, it.next().getSequenceId());
+    }
+    Assert.assertEquals(1, count);
+  }
+
+  @Test
+  public void testFailedSyncFailsWrite() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setWalSyncMode(WAL.SyncMode.SYNC);
+    ExecutorService pool = Executors.newFixedThreadPool(1);
+    FailingWAL wal = new FailingWAL(conf);
+    wal.open();
+    try {
+      MemStore memstore = new MemStore(conf, it -> {
+      }, pool, wal);
+      MVCC mvcc = new MVCC(0);
+      memstore.add(new WriteBatch().put(Bytes.toBytes(1), Bytes.toBytes(1)), mvcc);
+      Assert.assertEquals(1, mvcc.getReadPoint());
+
+      wal.failing.set(true);
+      try {
+        memstore.add(new WriteBatch().put(Bytes.toBytes(2), Bytes.toBytes(2)), mvcc);
+        Assert.fail("Should fail the write whose WAL sync failed");
+      } catch (IOException e) {
+        // Expected.
+      }
+      // The failed write is in the memstore, but never visible.
+      Assert.assertEquals(1, mvcc.getReadPoint());
+      Assert.assertNull(memstore.get(Bytes.toBytes(2), mvcc.getReadPoint()));
+      Assert.assertNotNull(memstore.get(Bytes.toBytes(1), mvcc.getReadPoint()));
+
+      // The memstore is read-only from now on.
+      wal.failing.set(false);
+      try {
+        memstore.add(new WriteBatch().put(Bytes.toBytes(3), Bytes.toBytes(3)), mvcc);
+        Assert.fail("Should reject the writes after a failed sync");
+      } catch (IOException e) {
+        // Expected.
+      }
+      Assert.assertEquals(1, mvcc.getReadPoint());
+    } finally {
+      wal.close();
+      pool.shutdownNow();
+    }
+  }
+}
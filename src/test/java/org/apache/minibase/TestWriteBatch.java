@@ -0,0 +1,156 @@
+package org.apache.minibase;
+
+import org.apache.minibase.MiniBase.Iter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestWriteBatch {
+
+  private String dataDir;
+
+  @Before
+  public void setUp() {
+    dataDir = "target/minibase-batch-" + System.nanoTime();
+    Assert.assertTrue(new File(dataDir).mkdirs());
+  }
+
+  @Test
+  public void testWriteBatch() throws Exception {
+    Config conf = new Config().setDataDir(dataDir);
+    MiniBase db = MStore.create(conf).open();
+    db.put(Bytes.toBytes(2), Bytes.toBytes(2));
+
+    WriteBatch batch = new WriteBatch();
+    batch.put(Bytes.toBytes(1), Bytes.toBytes(1)).delete(Bytes.toBytes(2));
+    batch.put(Bytes.toBytes(3), Bytes.toBytes(3)).put(Bytes.toBytes(3), Bytes.toBytes(30));
+    Assert.assertEquals(4, batch.size());
+    db.write(batch);
+
+    Assert.assertArrayEquals(Bytes.toBytes(1), db.get(Bytes.toBytes(1)).getValue());
+    Assert.assertNull(db.get(Bytes.toBytes(2)));
+    // The later mutation of the same key wins.
+    Assert.assertArrayEquals(Bytes.toBytes(30), db.get(Bytes.toBytes(3)).getValue());
+    // One contiguous range of sequence ids.
+    Assert.assertEquals(2L, db.get(Bytes.toBytes(1)).getSequenceId());
+    Assert.assertEquals(5L, db.get(Bytes.toBytes(3)).getSequenceId());
+
+    db.write(new WriteBatch());
+    db.put(Bytes.toBytes(4), Bytes.toBytes(4));
+    Assert.assertEquals(6L, db.get(Bytes.toBytes(4)).getSequenceId());
+    db.close();
+
+    // The batch should be recovered from the WAL as a whole.
+    db = MStore.create(conf).open();
+    Assert.assertArrayEquals(Bytes.toBytes(1), db.get(Bytes.toBytes(1)).getValue());
+    Assert.assertNull(db.get(Bytes.toBytes(2)));
+    Assert.assertArrayEquals(Bytes.toBytes(30), db.get(Bytes.toBytes(3)).getValue());
+    db.close();
+  }
+
+  @Test
+  public void testAtomicVisibility() throws Exception {
+    final int keyCount = 50;
+    // Flush often, but never compact, because compaction may close the files under a scan.
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(64 * 1024)
+        .setWalSyncMode(WAL.SyncMode.NONE).setMaxDiskFiles(Integer.MAX_VALUE);
+    MiniBase db = MStore.create(conf).open();
+    AtomicReference<Throwable> error = new AtomicReference<>();
+
+    Thread[] writers = new Thread[2];
+    for (int t = 0; t < writers.length; t++) {
+      writers[t] = new Thread(() -> {
+        try {
+          for (int round = 0; round < 200; round++) {
+            WriteBatch batch = new WriteBatch();
+            for (int i = 0; i < keyCount; i++) {
+              batch.put(Bytes.toBytes(i), Bytes.toBytes(round));
+            }
+            db.write(batch);
+          }
+        } catch (Throwable e) {
+          error.set(e);
+        }
+      });
+      writers[t].start();
+    }
+
+    // Every scan should see the values of one batch only.
+    try {
+      while (writers[0].isAlive() || writers[1].isAlive()) {
+        Integer expected = null;
+        int count = 0;
+        for (Iter<KeyValue> it = db.scan(); it.hasNext(); count++) {
+          int value = Bytes.toInt(it.next().getValue());
+          if (expected == null) {
+            expected = value;
+          }
+          Assert.assertEquals(expected.intValue(), value);
+        }
+        Assert.assertTrue(count == 0 || count == keyCount);
+      }
+    } finally {
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      db.close();
+    }
+    Assert.assertNull(error.get());
+  }
+
+  @Test
+  public void testPartiallyAddedBatch() throws Exception {
+    Config conf = new Config().setDataDir(dataDir).setMaxMemstoreSize(2 * 1024 * 1024);
+    // Each chunk holds 5 key values, and the second chunk can't be allocated.
+    AtomicInteger allocated = new AtomicInteger();
+    ChunkPool chunkPool = new ChunkPool(1024, 1) {
+      @Override
+      public ByteBuffer allocate() {
+        if (allocated.incrementAndGet() > 1) {
+          throw new IllegalStateException("Injected allocation failure");
+        }
+        return super.allocate();
+      }
+    };
+    ExecutorService pool = Executors.newFixedThreadPool(1);
+    try {
+      MemStore memstore = new MemStore(conf, it -> {
+      }, pool, null, chunkPool);
+      MVCC mvcc = new MVCC(0);
+      WriteBatch batch = new WriteBatch();
+      for (int i = 0; i < 10; i++) {
+        batch.put(Bytes.toBytes(i), new byte[200]);
+      }
+      try {
+        memstore.add(batch, mvcc);
+        Assert.fail("Should fail to add the batch");
+      } catch (IllegalStateException e) {
+        // Expected.
+      }
+      // Some of the key values are in the memstore, but none of them is visible.
+      Assert.assertNotNull(memstore.get(Bytes.toBytes(0)));
+      Assert.assertEquals(0, mvcc.getReadPoint());
+      for (int i = 0; i < 10; i++) {
+        Assert.assertNull(memstore.get(Bytes.toBytes(i), mvcc.getReadPoint()));
+      }
+
+      // The memstore is read-only from now on.
+      try {
+        memstore.add(new WriteBatch().put(Bytes.toBytes(10), Bytes.toBytes(10)), mvcc);
+        Assert.fail("Should reject the writes after a partially added batch");
+      } catch (IOException e) {
+        // Expected.
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}